@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle.benchmarks;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The executors that graphs are run on in the benchmarks.
+ */
+public enum ExecutionMode {
+  SAME_THREAD {
+    @Override
+    ExecutorService createExecutor() {
+      return MoreExecutors.sameThreadExecutor();
+    }
+  },
+  POOLED {
+    @Override
+    ExecutorService createExecutor() {
+      return Executors.newFixedThreadPool(POOL_SIZE);
+    }
+  };
+
+  static final int POOL_SIZE = 4;
+
+  abstract ExecutorService createExecutor();
+}
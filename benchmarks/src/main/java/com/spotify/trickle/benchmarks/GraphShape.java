@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.spotify.trickle.Func1;
+import com.spotify.trickle.Func2;
+import com.spotify.trickle.Graph;
+import com.spotify.trickle.Input;
+import com.spotify.trickle.ListFunc;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+
+/**
+ * The graph shapes measured by the benchmarks. Each shape can be built as a Trickle graph, and as
+ * the equivalent hand-written chain of Guava futures, so that the cost of Trickle on top of plain
+ * Guava can be measured. All nodes complete immediately, so what is measured is the overhead of
+ * wiring the nodes together.
+ */
+public enum GraphShape {
+  /**
+   * A number of nodes that use the input, whose results are combined pairwise until one is left.
+   */
+  FAN_OUT_FAN_IN {
+    @Override
+    Graph<Integer> trickle(Input<Integer> input) {
+      List<Graph<Integer>> level = Lists.newArrayList();
+      for (int i = 0; i < WIDTH; i++) {
+        level.add(call(INCREMENT).with(input));
+      }
+
+      while (level.size() > 1) {
+        List<Graph<Integer>> next = Lists.newArrayList();
+        for (int i = 0; i < level.size(); i += 2) {
+          next.add(call(ADD).with(level.get(i), level.get(i + 1)));
+        }
+        level = next;
+      }
+
+      return level.get(0);
+    }
+
+    @Override
+    ListenableFuture<Integer> guava(ListenableFuture<Integer> input, Executor executor) {
+      List<ListenableFuture<Integer>> level = Lists.newArrayList();
+      for (int i = 0; i < WIDTH; i++) {
+        level.add(Futures.transform(input, INCREMENT_ASYNC, executor));
+      }
+
+      while (level.size() > 1) {
+        List<ListenableFuture<Integer>> next = Lists.newArrayList();
+        for (int i = 0; i < level.size(); i += 2) {
+          next.add(add(level.get(i), level.get(i + 1), executor));
+        }
+        level = next;
+      }
+
+      return level.get(0);
+    }
+  },
+
+  /**
+   * A linear chain of nodes, each using the result of the previous one.
+   */
+  CHAIN {
+    @Override
+    Graph<Integer> trickle(Input<Integer> input) {
+      Graph<Integer> graph = call(INCREMENT).with(input);
+      for (int i = 1; i < DEPTH; i++) {
+        graph = call(INCREMENT).with(graph);
+      }
+
+      return graph;
+    }
+
+    @Override
+    ListenableFuture<Integer> guava(ListenableFuture<Integer> input, Executor executor) {
+      ListenableFuture<Integer> future = input;
+      for (int i = 0; i < DEPTH; i++) {
+        future = Futures.transform(future, INCREMENT_ASYNC, executor);
+      }
+
+      return future;
+    }
+  },
+
+  /**
+   * A stack of diamonds: two nodes using the same value, joined by a third.
+   */
+  DIAMOND {
+    @Override
+    Graph<Integer> trickle(Input<Integer> input) {
+      Graph<Integer> top = call(INCREMENT).with(input);
+      for (int i = 0; i < DIAMONDS; i++) {
+        top = call(ADD).with(call(INCREMENT).with(top), call(INCREMENT).with(top));
+      }
+
+      return top;
+    }
+
+    @Override
+    ListenableFuture<Integer> guava(ListenableFuture<Integer> input, Executor executor) {
+      ListenableFuture<Integer> top = Futures.transform(input, INCREMENT_ASYNC, executor);
+      for (int i = 0; i < DIAMONDS; i++) {
+        top = add(Futures.transform(top, INCREMENT_ASYNC, executor),
+                  Futures.transform(top, INCREMENT_ASYNC, executor),
+                  executor);
+      }
+
+      return top;
+    }
+  },
+
+  /**
+   * A large number of nodes whose results are all passed to a single list node.
+   */
+  LIST_FAN_IN {
+    @Override
+    Graph<Integer> trickle(Input<Integer> input) {
+      List<Graph<Integer>> nodes = Lists.newArrayList();
+      for (int i = 0; i < LIST_SIZE; i++) {
+        nodes.add(call(INCREMENT).with(input));
+      }
+
+      return call(SUM).with(nodes);
+    }
+
+    @Override
+    ListenableFuture<Integer> guava(ListenableFuture<Integer> input, Executor executor) {
+      List<ListenableFuture<Integer>> futures = Lists.newArrayList();
+      for (int i = 0; i < LIST_SIZE; i++) {
+        futures.add(Futures.transform(input, INCREMENT_ASYNC, executor));
+      }
+
+      return Futures.transform(Futures.allAsList(futures), SUM_ASYNC, executor);
+    }
+  };
+
+  static final int WIDTH = 16;
+  static final int DEPTH = 32;
+  static final int DIAMONDS = 8;
+  static final int LIST_SIZE = 256;
+
+  abstract Graph<Integer> trickle(Input<Integer> input);
+
+  abstract ListenableFuture<Integer> guava(ListenableFuture<Integer> input, Executor executor);
+
+  private static final Func1<Integer, Integer> INCREMENT = new Func1<Integer, Integer>() {
+    @Override
+    public ListenableFuture<Integer> run(Integer arg) {
+      return immediateFuture(arg + 1);
+    }
+  };
+
+  private static final Func2<Integer, Integer, Integer> ADD =
+      new Func2<Integer, Integer, Integer>() {
+        @Override
+        public ListenableFuture<Integer> run(Integer arg1, Integer arg2) {
+          return immediateFuture(arg1 + arg2);
+        }
+      };
+
+  private static final ListFunc<Integer, Integer> SUM = new ListFunc<Integer, Integer>() {
+    @Override
+    public ListenableFuture<Integer> run(List<? extends Integer> arg) {
+      int sum = 0;
+      for (Integer value : arg) {
+        sum += value;
+      }
+      return immediateFuture(sum);
+    }
+  };
+
+  private static final AsyncFunction<Integer, Integer> INCREMENT_ASYNC =
+      new AsyncFunction<Integer, Integer>() {
+        @Override
+        public ListenableFuture<Integer> apply(Integer input) {
+          return INCREMENT.run(input);
+        }
+      };
+
+  private static final AsyncFunction<List<Integer>, Integer> SUM_ASYNC =
+      new AsyncFunction<List<Integer>, Integer>() {
+        @Override
+        public ListenableFuture<Integer> apply(List<Integer> input) {
+          return SUM.run(input);
+        }
+      };
+
+  private static final AsyncFunction<List<Integer>, Integer> ADD_ASYNC =
+      new AsyncFunction<List<Integer>, Integer>() {
+        @Override
+        public ListenableFuture<Integer> apply(List<Integer> input) {
+          return ADD.run(input.get(0), input.get(1));
+        }
+      };
+
+  private static ListenableFuture<Integer> add(ListenableFuture<Integer> a,
+                                               ListenableFuture<Integer> b,
+                                               Executor executor) {
+    return Futures.transform(Futures.allAsList(ImmutableList.of(a, b)), ADD_ASYNC, executor);
+  }
+}
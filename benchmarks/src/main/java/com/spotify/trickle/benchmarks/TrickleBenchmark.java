@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle.benchmarks;
+
+import com.spotify.trickle.Graph;
+import com.spotify.trickle.Input;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of running Trickle graphs of different shapes, on different executors
+ * and with debug information on or off. Compare with {@link GuavaBaselineBenchmark} to see the
+ * cost of Trickle on top of plain Guava futures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrickleBenchmark {
+  private static final Input<Integer> INPUT = Input.named("input");
+
+  @Param
+  public GraphShape shape;
+
+  @Param
+  public ExecutionMode mode;
+
+  @Param({"false", "true"})
+  public boolean debug;
+
+  private ExecutorService executor;
+  private Graph<Integer> graph;
+  private int value;
+
+  @Setup
+  public void setUp() {
+    executor = mode.createExecutor();
+    graph = shape.trickle(INPUT).debug(debug);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public Integer run() throws Exception {
+    return graph.bind(INPUT, value++).run(executor).get();
+  }
+}
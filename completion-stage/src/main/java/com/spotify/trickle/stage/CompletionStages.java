@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle.stage;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.spotify.trickle.ConfigurableGraph;
+import com.spotify.trickle.Func0;
+import com.spotify.trickle.Func1;
+import com.spotify.trickle.Func2;
+import com.spotify.trickle.Func3;
+import com.spotify.trickle.Func4;
+import com.spotify.trickle.Func5;
+import com.spotify.trickle.Trickle;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+/**
+ * Adapts Trickle graphs to code written against {@link CompletionStage}: nodes can call functions
+ * that return a {@code CompletionStage}, such as {@link StageFunc1}, and the result of a run can be
+ * read as a {@link CompletableFuture}.
+ *
+ * Neither direction needs a thread of its own. The stage returned by a function is bridged to the
+ * graph with a single callback on it, and the result of a run with a single listener on the future
+ * returned by {@link com.spotify.trickle.Graph#run()}; the nodes of the graph are not affected.
+ * Cancellation is passed on in both directions, so cancelling the {@code CompletableFuture} of a
+ * run cancels the run.
+ */
+public final class CompletionStages {
+  private CompletionStages() {
+    // prevent instantiation
+  }
+
+  /**
+   * Creates a graph consisting of a single node executing the supplied function, which returns a
+   * {@link CompletionStage}.
+   */
+  public static <R> ConfigurableGraph<R> callStage(StageFunc0<R> func) {
+    return Trickle.call(adapt(func));
+  }
+
+  /**
+   * Creates a graph consisting of a single node executing the supplied function. See
+   * {@link #callStage(StageFunc0)}.
+   */
+  public static <A, R> Trickle.NeedsParameters1<A, R> callStage(StageFunc1<A, R> func) {
+    return Trickle.call(adapt(func));
+  }
+
+  /**
+   * Creates a graph consisting of a single node executing the supplied function. See
+   * {@link #callStage(StageFunc0)}.
+   */
+  public static <A, B, R> Trickle.NeedsParameters2<A, B, R> callStage(
+      StageFunc2<A, B, R> func) {
+    return Trickle.call(adapt(func));
+  }
+
+  /**
+   * Creates a graph consisting of a single node executing the supplied function. See
+   * {@link #callStage(StageFunc0)}.
+   */
+  public static <A, B, C, R> Trickle.NeedsParameters3<A, B, C, R> callStage(
+      StageFunc3<A, B, C, R> func) {
+    return Trickle.call(adapt(func));
+  }
+
+  /**
+   * Creates a graph consisting of a single node executing the supplied function. See
+   * {@link #callStage(StageFunc0)}.
+   */
+  public static <A, B, C, D, R> Trickle.NeedsParameters4<A, B, C, D, R> callStage(
+      StageFunc4<A, B, C, D, R> func) {
+    return Trickle.call(adapt(func));
+  }
+
+  /**
+   * Creates a graph consisting of a single node executing the supplied function. See
+   * {@link #callStage(StageFunc0)}.
+   */
+  public static <A, B, C, D, E, R> Trickle.NeedsParameters5<A, B, C, D, E, R> callStage(
+      StageFunc5<A, B, C, D, E, R> func) {
+    return Trickle.call(adapt(func));
+  }
+
+  /**
+   * Returns a {@link CompletableFuture} that completes with the outcome of the supplied future,
+   * typically the result of running a graph. Cancelling the returned future cancels the supplied
+   * one.
+   */
+  public static <V> CompletableFuture<V> toCompletableFuture(final ListenableFuture<V> future) {
+    checkNotNull(future, "future");
+
+    final CompletableFuture<V> result = new CompletableFuture<V>() {
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        future.cancel(mayInterruptIfRunning);
+        return super.cancel(mayInterruptIfRunning);
+      }
+    };
+
+    future.addListener(() -> complete(result, future), sameThreadExecutor());
+
+    return result;
+  }
+
+  private static <V> void complete(CompletableFuture<V> result, Future<V> future) {
+    try {
+      result.complete(getUninterruptibly(future));
+    } catch (ExecutionException e) {
+      result.completeExceptionally(e.getCause());
+    } catch (CancellationException e) {
+      result.cancel(false);
+    }
+  }
+
+  static <R> Func0<R> adapt(final StageFunc0<R> func) {
+    checkNotNull(func, "func");
+
+    return () -> toListenableFuture(func.run());
+  }
+
+  static <A, R> Func1<A, R> adapt(final StageFunc1<A, R> func) {
+    checkNotNull(func, "func");
+
+    return arg -> toListenableFuture(func.run(arg));
+  }
+
+  static <A, B, R> Func2<A, B, R> adapt(final StageFunc2<A, B, R> func) {
+    checkNotNull(func, "func");
+
+    return (arg1, arg2) -> toListenableFuture(func.run(arg1, arg2));
+  }
+
+  static <A, B, C, R> Func3<A, B, C, R> adapt(final StageFunc3<A, B, C, R> func) {
+    checkNotNull(func, "func");
+
+    return (arg1, arg2, arg3) -> toListenableFuture(func.run(arg1, arg2, arg3));
+  }
+
+  static <A, B, C, D, R> Func4<A, B, C, D, R> adapt(final StageFunc4<A, B, C, D, R> func) {
+    checkNotNull(func, "func");
+
+    return (arg1, arg2, arg3, arg4) -> toListenableFuture(func.run(arg1, arg2, arg3, arg4));
+  }
+
+  static <A, B, C, D, E, R> Func5<A, B, C, D, E, R> adapt(
+      final StageFunc5<A, B, C, D, E, R> func) {
+    checkNotNull(func, "func");
+
+    return (arg1, arg2, arg3, arg4, arg5) ->
+        toListenableFuture(func.run(arg1, arg2, arg3, arg4, arg5));
+  }
+
+  /**
+   * Returns a {@link ListenableFuture} that completes with the outcome of the supplied stage.
+   * Cancelling the returned future cancels the stage, if it is a {@link Future}.
+   */
+  static <V> ListenableFuture<V> toListenableFuture(CompletionStage<V> stage) {
+    checkNotNull(stage, "stage");
+
+    final StageFuture<V> result = new StageFuture<V>(stage);
+    stage.whenComplete(result);
+    return result;
+  }
+
+  private static final class StageFuture<V> extends AbstractFuture<V>
+      implements BiConsumer<V, Throwable> {
+    private final CompletionStage<V> stage;
+
+    StageFuture(CompletionStage<V> stage) {
+      this.stage = stage;
+    }
+
+    @Override
+    public void accept(V value, Throwable failure) {
+      if (failure == null) {
+        set(value);
+        return;
+      }
+
+      // the stage's own failure is passed as is, but that of a stage it depends on is wrapped
+      final Throwable cause =
+          failure instanceof CompletionException && failure.getCause() != null
+          ? failure.getCause()
+          : failure;
+
+      if (cause instanceof CancellationException) {
+        super.cancel(false);
+      } else {
+        setException(cause);
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+
+      if (stage instanceof Future) {
+        ((Future<?>) stage).cancel(mayInterruptIfRunning);
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle.stage;
+
+import com.spotify.trickle.Func;
+import com.spotify.trickle.Func3;
+
+import java.util.concurrent.CompletionStage;
+
+import javax.annotation.Nullable;
+
+/**
+ * Code that has inputs of type A, B and C and returns a {@link CompletionStage} of a value of type
+ * R. Trickle adapts it to a {@link Func3}; see {@link CompletionStages#callStage(StageFunc3)}.
+ * Implementations should otherwise behave like those of {@link Func3}.
+ */
+public interface StageFunc3<A, B, C, R> extends Func<R> {
+  CompletionStage<R> run(@Nullable A arg1, @Nullable B arg2, @Nullable C arg3);
+}
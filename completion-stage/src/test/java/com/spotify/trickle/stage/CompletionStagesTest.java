@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle.stage;
+
+import com.spotify.trickle.Graph;
+import com.spotify.trickle.GraphExecutionException;
+import com.spotify.trickle.Input;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static com.spotify.trickle.stage.CompletionStages.callStage;
+import static com.spotify.trickle.stage.CompletionStages.toCompletableFuture;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CompletionStagesTest {
+  Input<String> input;
+  CompletableFuture<String> pending;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    pending = new CompletableFuture<String>();
+  }
+
+  @Test
+  public void shouldCallFunctionReturningStage() throws Exception {
+    Graph<String> graph = callStage((String arg) -> CompletableFuture.completedFuture(arg + "!"))
+        .with(input);
+
+    assertThat(toCompletableFuture(graph.bind(input, "hi").run()).get(5, TimeUnit.SECONDS),
+               equalTo("hi!"));
+  }
+
+  @Test
+  public void shouldMixStageAndListenableFutureFunctions() throws Exception {
+    Graph<String> exclaimed = callStage((String arg) -> pending.thenApply(value -> arg + value))
+        .with(input);
+    Graph<String> graph = call((String arg) -> immediateFuture(arg + "?")).with(exclaimed);
+
+    CompletableFuture<String> result = toCompletableFuture(graph.bind(input, "hi").run());
+
+    assertThat(result.isDone(), is(false));
+
+    pending.complete("!");
+
+    assertThat(result.get(5, TimeUnit.SECONDS), equalTo("hi!?"));
+  }
+
+  @Test
+  public void shouldFailRunWhenStageFails() throws Exception {
+    Graph<String> graph = callStage((String arg) -> pending).with(input);
+    CompletableFuture<String> result = toCompletableFuture(graph.bind(input, "hi").run());
+    IOException expected = new IOException("expected");
+
+    pending.completeExceptionally(expected);
+
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), is(instanceOf(GraphExecutionException.class)));
+      assertThat(e.getCause().getCause(), is((Throwable) expected));
+    }
+  }
+
+  @Test
+  public void shouldUnwrapFailureOfDependentStage() throws Exception {
+    final IOException expected = new IOException("expected");
+    Graph<String> graph = callStage((String arg) -> pending.<String>thenApply(value -> {
+      throw new RuntimeException(expected);
+    })).with(input);
+    CompletableFuture<String> result = toCompletableFuture(graph.bind(input, "hi").run());
+
+    pending.complete("!");
+
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getCause(), is(instanceOf(RuntimeException.class)));
+      assertThat(e.getCause().getCause().getCause(), is((Throwable) expected));
+    }
+  }
+
+  @Test
+  public void shouldCancelStageWhenResultIsCancelled() throws Exception {
+    Graph<String> graph = callStage((String arg) -> pending).with(input);
+    CompletableFuture<String> result = toCompletableFuture(graph.bind(input, "hi").run());
+
+    result.cancel(true);
+
+    assertThat(result.isCancelled(), is(true));
+    assertThat(pending.isCancelled(), is(true));
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.base.Throwables;
+
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Wraps an executor so that a task submitted from a thread that is running a task of the same
+ * executor is run on that thread, once the current task has returned, rather than being submitted
+ * to the executor again. A node whose inputs were produced by a node on the same executor then
+ * continues on the same thread without a hop through the executor's queue. Since the task is
+ * deferred rather than run right away, a long chain of such nodes runs in a loop instead of
+ * nesting calls.
+ *
+ * Only one task is kept on the thread per running task; any others submitted by it go to the
+ * executor as usual, so that nodes that become ready at the same time still run in parallel.
+ *
+ * Executors are compared by identity, so this applies to tasks of any wrapper of the same executor.
+ * Since a deferred task waits for the running one to return, this is only used for the executors
+ * of nodes that have opted in with {@link ConfigurableGraph#executeOn}, and not for the executor a
+ * graph is run with.
+ */
+final class AffinityExecutor implements Executor {
+  // the executor whose task the thread is running, and the task to run once it's done
+  private static final ThreadLocal<Running> RUNNING = new ThreadLocal<Running>();
+
+  private final Executor delegate;
+
+  AffinityExecutor(Executor delegate) {
+    this.delegate = checkNotNull(delegate, "delegate");
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    checkNotNull(command, "command");
+
+    final Running running = RUNNING.get();
+
+    if (running != null && running.executor == delegate && running.next == null) {
+      running.next = command;
+      return;
+    }
+
+    delegate.execute(new Task(command));
+  }
+
+  private final class Task implements Runnable {
+    private final Runnable command;
+
+    Task(Runnable command) {
+      this.command = command;
+    }
+
+    @Override
+    public void run() {
+      final Running previous = RUNNING.get();
+      final Running running = new Running(delegate);
+      RUNNING.set(running);
+
+      Throwable failure = null;
+
+      try {
+        // whatever a task throws, the task it left to run next is run, since nothing else would
+        for (Runnable task = command; task != null; task = running.takeNext()) {
+          try {
+            task.run();
+          } catch (Throwable t) {
+            if (failure == null) {
+              failure = t;
+            }
+          }
+        }
+      } finally {
+        restore(previous);
+      }
+
+      if (failure != null) {
+        throw Throwables.propagate(failure);
+      }
+    }
+  }
+
+  private static void restore(@Nullable Running previous) {
+    if (previous == null) {
+      RUNNING.remove();
+    } else {
+      RUNNING.set(previous);
+    }
+  }
+
+  private static final class Running {
+    private final Executor executor;
+    @Nullable
+    private Runnable next;
+
+    Running(Executor executor) {
+      this.executor = executor;
+    }
+
+    @Nullable
+    Runnable takeNext() {
+      final Runnable result = next;
+      next = null;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Code that looks up values of type V for a list of keys of type K in a single call, typically
+ * using a backend's multi-get endpoint. A node running a BatchFunc takes a single key as its
+ * parameter; keys from concurrent invocations of the node are collected and looked up together.
+ * See {@link Trickle#call(BatchFunc, int, long, java.util.concurrent.TimeUnit)}.
+ *
+ * Unlike the {@link Func} interfaces, the function isn't invoked once per node invocation, so it
+ * can't be used as a node on its own.
+ */
+public interface BatchFunc<K, V> {
+  /**
+   * Looks up the values for a list of distinct keys. Keys that are missing from the returned map
+   * cause the node invocations for those keys to fail.
+   */
+  ListenableFuture<Map<K, V>> run(List<K> keys);
+}
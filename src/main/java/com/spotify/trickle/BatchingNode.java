@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Node that collects the keys it is invoked with across all concurrent graph runs, and looks them
+ * up with a single call to a {@link BatchFunc}. A batch is sent when it reaches the maximum size,
+ * or when the maximum delay has passed since its first key was added, whichever happens first.
+ * A full batch is sent from the invocation that filled it up, and one whose delay has passed from
+ * a thread of the {@link Timers#executor() timers' executor}. Keys whose invocations have all
+ * been cancelled by the time the batch is sent, for instance because their runs were cancelled,
+ * are left out of it.
+ *
+ * Since a single instance of this class is shared by all runs of the graphs it is part of, it is
+ * thread safe.
+ */
+final class BatchingNode<K, V> extends TrickleNode<V> {
+  private final BatchFunc<K, V> func;
+  private final int maxSize;
+  private final long maxDelayNanos;
+
+  // guarded by this
+  private Batch current;
+
+  BatchingNode(BatchFunc<K, V> func, int maxSize, long maxDelay, TimeUnit unit) {
+    checkArgument(maxSize > 0, "maxSize must be positive: %s", maxSize);
+    checkArgument(maxDelay >= 0, "maxDelay must not be negative: %s", maxDelay);
+
+    this.func = checkNotNull(func, "func");
+    this.maxSize = maxSize;
+    this.maxDelayNanos = checkNotNull(unit, "unit").toNanos(maxDelay);
+  }
+
+  @Override
+  public ListenableFuture<V> run(List<Object> values) {
+    checkNotNull(values, "values");
+
+    // this cast is safe, as guaranteed by the API for creating nodes
+    //noinspection unchecked
+    final K key = (K) values.get(0);
+    final SettableFuture<V> result = SettableFuture.create();
+
+    final Batch batch;
+    final boolean first;
+    final boolean full;
+
+    synchronized (this) {
+      if (current == null) {
+        current = new Batch();
+      }
+
+      batch = current;
+      first = batch.add(key, result) == 1;
+      full = batch.size() >= maxSize;
+
+      if (full) {
+        current = null;
+      }
+    }
+
+    if (full) {
+      batch.send();
+    } else if (first) {
+      Timers.schedule(new Runnable() {
+        @Override
+        public void run() {
+          sendIfCurrent(batch);
+        }
+      }, maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    return result;
+  }
+
+  /**
+   * Sends a batch whose delay has passed, unless it has already been sent. Called on the timer
+   * thread, so the batch function is invoked on another executor.
+   */
+  private void sendIfCurrent(final Batch batch) {
+    synchronized (this) {
+      if (current != batch) {
+        // already sent because it filled up
+        return;
+      }
+
+      current = null;
+    }
+
+    Timers.executor().execute(new Runnable() {
+      @Override
+      public void run() {
+        batch.send();
+      }
+    });
+  }
+
+  /**
+   * The keys collected for a single call to the batch function, with the futures waiting for
+   * each of them. Only modified while holding the lock of the enclosing node, and only read once
+   * it has been removed from the node.
+   */
+  private final class Batch {
+    private final Map<K, List<SettableFuture<V>>> waiting = Maps.newLinkedHashMap();
+    private int size = 0;
+
+    /**
+     * Adds a key to the batch, returning the number of invocations in it.
+     */
+    int add(@Nullable K key, SettableFuture<V> future) {
+      List<SettableFuture<V>> futures = waiting.get(key);
+
+      if (futures == null) {
+        futures = Lists.newArrayListWithCapacity(1);
+        waiting.put(key, futures);
+      }
+
+      futures.add(future);
+      return ++size;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void send() {
+      removeCancelled();
+
+      if (waiting.isEmpty()) {
+        return;
+      }
+
+      final ListenableFuture<Map<K, V>> lookup;
+
+      try {
+        lookup = func.run(Collections.unmodifiableList(Lists.newArrayList(waiting.keySet())));
+      } catch (Throwable t) {
+        failAll(t);
+        return;
+      }
+
+      if (lookup == null) {
+        failAll(new NullPointerException("BatchFunc returned null instead of a future"));
+        return;
+      }
+
+      Futures.addCallback(lookup, new FutureCallback<Map<K, V>>() {
+        @Override
+        public void onSuccess(@Nullable Map<K, V> result) {
+          if (result == null) {
+            failAll(new NullPointerException("BatchFunc returned a null map"));
+            return;
+          }
+
+          for (Map.Entry<K, List<SettableFuture<V>>> entry : waiting.entrySet()) {
+            if (result.containsKey(entry.getKey())) {
+              setAll(entry.getValue(), result.get(entry.getKey()));
+            } else {
+              failAll(entry.getValue(),
+                      new NoSuchElementException("No value returned for key: " + entry.getKey()));
+            }
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          failAll(t);
+        }
+      });
+    }
+
+    private void removeCancelled() {
+      final Iterator<List<SettableFuture<V>>> keys = waiting.values().iterator();
+
+      while (keys.hasNext()) {
+        final List<SettableFuture<V>> futures = keys.next();
+
+        for (Iterator<SettableFuture<V>> i = futures.iterator(); i.hasNext(); ) {
+          if (i.next().isCancelled()) {
+            i.remove();
+          }
+        }
+
+        if (futures.isEmpty()) {
+          keys.remove();
+        }
+      }
+    }
+
+    private void failAll(Throwable t) {
+      for (List<SettableFuture<V>> futures : waiting.values()) {
+        failAll(futures, t);
+      }
+    }
+
+    private void setAll(List<SettableFuture<V>> futures, @Nullable V value) {
+      for (SettableFuture<V> future : futures) {
+        future.set(value);
+      }
+    }
+
+    private void failAll(List<SettableFuture<V>> futures, Throwable t) {
+      for (SettableFuture<V> future : futures) {
+        future.setException(t);
+      }
+    }
+  }
+}
@@ -17,13 +17,10 @@
 package com.spotify.trickle;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.List;
 
-import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.util.concurrent.Futures.immediateFuture;
 
 /**
  * Defines a dependency on a value bound to a specific input.
@@ -35,20 +32,8 @@ class BindingDep<T> implements Dep<T> {
     this.input = checkNotNull(input, "input");
   }
 
-  @Override
-  public ListenableFuture<T> getFuture(final TraverseState state) {
-    final T bindingValue = state.getBinding(input);
-
-    checkArgument(bindingValue != null,
-                  "Input not bound to a value for input %s", input);
-
-    if (bindingValue instanceof ListenableFuture) {
-      // this cast is guaranteed by the API to be safe.
-      //noinspection unchecked
-      return (ListenableFuture<T>) bindingValue;
-    } else {
-      return immediateFuture(bindingValue);
-    }
+  Input<T> getInput() {
+    return input;
   }
 
   @Override
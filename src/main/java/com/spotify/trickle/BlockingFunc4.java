@@ -0,0 +1,29 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import javax.annotation.Nullable;
+
+/**
+ * Code that has inputs of type A, B, C and D and returns a value of type R, blocking the calling
+ * thread until the value is available, typically because it wraps a blocking client. Trickle runs
+ * blocking functions on a thread of their own; see {@link Trickle#callBlocking(BlockingFunc4)}.
+ * Implementations should otherwise behave like those of {@link Func4}.
+ */
+public interface BlockingFunc4<A, B, C, D, R> extends Func<R> {
+  @Nullable
+  R run(@Nullable A arg1, @Nullable B arg2, @Nullable C arg3, @Nullable D arg4) throws Exception;
+}
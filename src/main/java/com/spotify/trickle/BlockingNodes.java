@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+
+/**
+ * Adapts blocking functions such as {@link BlockingFunc1} to the asynchronous function interfaces,
+ * by running each invocation on a thread of its own.
+ *
+ * On a JDK with virtual threads, every invocation gets a new virtual thread, so any number of
+ * blocking calls can be in progress without sizing a thread pool for them. On older JDKs, a cached
+ * pool of daemon threads is used instead; it grows with the number of concurrent calls, so the
+ * backends called should be protected by other means.
+ */
+final class BlockingNodes {
+  private BlockingNodes() {
+    // prevent instantiation
+  }
+
+  static <R> Func0<R> adapt(final BlockingFunc0<R> func) {
+    checkNotNull(func, "func");
+
+    return new Func0<R>() {
+      @Override
+      public ListenableFuture<R> run() {
+        return submit(new Callable<R>() {
+          @Override
+          public R call() throws Exception {
+            return func.run();
+          }
+        });
+      }
+    };
+  }
+
+  static <A, R> Func1<A, R> adapt(final BlockingFunc1<A, R> func) {
+    checkNotNull(func, "func");
+
+    return new Func1<A, R>() {
+      @Override
+      public ListenableFuture<R> run(@Nullable final A arg) {
+        return submit(new Callable<R>() {
+          @Override
+          public R call() throws Exception {
+            return func.run(arg);
+          }
+        });
+      }
+    };
+  }
+
+  static <A, B, R> Func2<A, B, R> adapt(final BlockingFunc2<A, B, R> func) {
+    checkNotNull(func, "func");
+
+    return new Func2<A, B, R>() {
+      @Override
+      public ListenableFuture<R> run(@Nullable final A arg1, @Nullable final B arg2) {
+        return submit(new Callable<R>() {
+          @Override
+          public R call() throws Exception {
+            return func.run(arg1, arg2);
+          }
+        });
+      }
+    };
+  }
+
+  static <A, B, C, R> Func3<A, B, C, R> adapt(final BlockingFunc3<A, B, C, R> func) {
+    checkNotNull(func, "func");
+
+    return new Func3<A, B, C, R>() {
+      @Override
+      public ListenableFuture<R> run(@Nullable final A arg1, @Nullable final B arg2,
+                                     @Nullable final C arg3) {
+        return submit(new Callable<R>() {
+          @Override
+          public R call() throws Exception {
+            return func.run(arg1, arg2, arg3);
+          }
+        });
+      }
+    };
+  }
+
+  static <A, B, C, D, R> Func4<A, B, C, D, R> adapt(final BlockingFunc4<A, B, C, D, R> func) {
+    checkNotNull(func, "func");
+
+    return new Func4<A, B, C, D, R>() {
+      @Override
+      public ListenableFuture<R> run(@Nullable final A arg1, @Nullable final B arg2,
+                                     @Nullable final C arg3, @Nullable final D arg4) {
+        return submit(new Callable<R>() {
+          @Override
+          public R call() throws Exception {
+            return func.run(arg1, arg2, arg3, arg4);
+          }
+        });
+      }
+    };
+  }
+
+  static <A, B, C, D, E, R> Func5<A, B, C, D, E, R> adapt(
+      final BlockingFunc5<A, B, C, D, E, R> func) {
+    checkNotNull(func, "func");
+
+    return new Func5<A, B, C, D, E, R>() {
+      @Override
+      public ListenableFuture<R> run(@Nullable final A arg1, @Nullable final B arg2,
+                                     @Nullable final C arg3, @Nullable final D arg4,
+                                     @Nullable final E arg5) {
+        return submit(new Callable<R>() {
+          @Override
+          public R call() throws Exception {
+            return func.run(arg1, arg2, arg3, arg4, arg5);
+          }
+        });
+      }
+    };
+  }
+
+  private static <R> ListenableFuture<R> submit(Callable<R> call) {
+    return Holder.EXECUTOR.submit(call);
+  }
+
+  /**
+   * Creates a virtual-thread-per-task executor if the JDK supports it, or a cached thread pool
+   * otherwise. The virtual thread executor is looked up reflectively, since Trickle is built for
+   * JDKs that don't have it.
+   */
+  static ExecutorService createExecutor() {
+    try {
+      final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception e) {
+      // no virtual threads on this JDK, or they are a preview feature that hasn't been enabled
+      return Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("trickle-blocking-%d")
+              .build());
+    }
+  }
+
+  /**
+   * Lazy holder for the executor, so it is only created once a blocking node is invoked.
+   */
+  private static final class Holder {
+    static final ListeningExecutorService EXECUTOR = listeningDecorator(createExecutor());
+  }
+}
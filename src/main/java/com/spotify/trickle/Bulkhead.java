@@ -0,0 +1,391 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
+/**
+ * A limit on the number of concurrent calls to the nodes it is assigned to, shared by all runs of
+ * the graphs those nodes are part of. See {@link ConfigurableGraph#bulkhead(Bulkhead)}. A call
+ * counts as in progress from when the node is invoked until the future it returns completes.
+ *
+ * Calls beyond the limit wait in a bounded queue, and are started in order as calls in progress
+ * complete. Once the queue is full too, further calls fail with a {@link
+ * RejectedExecutionException}, which is handled by the node's fallback, if any, like any other
+ * failure. With a queue size of zero, calls beyond the limit are rejected right away.
+ *
+ * The limit can be fixed, or adapt to the latencies of the calls, so that it doesn't need tuning:
+ * see {@link #aimd(int, int, long, TimeUnit)} and {@link #gradient(int, int)}. Adaptive limits
+ * shrink when a backend slows down and calls start queueing up in it, shedding the excess calls
+ * into the fallbacks of the nodes instead.
+ *
+ * A bulkhead can be shared by several nodes, for instance ones that call the same backend, to
+ * limit their calls together. The current limit and the number of calls in progress, queued and
+ * rejected can be retrieved for monitoring. The calls of each node that are queued and rejected
+ * are also reported to the {@link ExecutionListener} of the run, so that {@link NodeMetrics} can
+ * tell which of the nodes sharing a bulkhead are held back by it.
+ */
+public final class Bulkhead {
+  private final ConcurrencyLimit limit;
+  private final int maxQueued;
+  private final AtomicLong rejected = new AtomicLong();
+
+  // guarded by this
+  private int inFlight;
+  private final Queue<Pending<?>> queue = new ArrayDeque<Pending<?>>();
+
+  Bulkhead(ConcurrencyLimit limit, int maxQueued) {
+    checkArgument(maxQueued >= 0, "maxQueued must not be negative: %s", maxQueued);
+
+    this.limit = checkNotNull(limit, "limit");
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Creates a bulkhead that allows at most {@code maxConcurrent} calls in progress, and rejects
+   * any calls beyond that.
+   */
+  public static Bulkhead maxConcurrent(int maxConcurrent) {
+    return maxConcurrent(maxConcurrent, 0);
+  }
+
+  /**
+   * Creates a bulkhead that allows at most {@code maxConcurrent} calls in progress, queues up to
+   * {@code maxQueued} calls beyond that, and rejects any further calls.
+   */
+  public static Bulkhead maxConcurrent(int maxConcurrent, int maxQueued) {
+    return new Bulkhead(ConcurrencyLimit.fixed(maxConcurrent), maxQueued);
+  }
+
+  /**
+   * Creates a bulkhead with a limit that adapts by additive increase and multiplicative decrease.
+   * Every call that completes within {@code latencyThreshold} while at least half the limit is in
+   * use raises the limit by one, up to {@code maxLimit}, and every call that takes longer than
+   * that, or fails with a {@link java.util.concurrent.TimeoutException}, lowers it by 10%. Calls
+   * beyond the limit are rejected.
+   */
+  public static Bulkhead aimd(int initialLimit, int maxLimit, long latencyThreshold,
+                              TimeUnit unit) {
+    return aimd(initialLimit, maxLimit, latencyThreshold, unit, 0);
+  }
+
+  /**
+   * Creates a bulkhead with a limit that adapts by additive increase and multiplicative decrease,
+   * as in {@link #aimd(int, int, long, TimeUnit)}, and that queues up to {@code maxQueued} calls
+   * beyond the limit before rejecting any.
+   */
+  public static Bulkhead aimd(int initialLimit, int maxLimit, long latencyThreshold,
+                              TimeUnit unit, int maxQueued) {
+    checkNotNull(unit, "unit");
+
+    return new Bulkhead(
+        new ConcurrencyLimit.Aimd(initialLimit, maxLimit, unit.toNanos(latencyThreshold)),
+        maxQueued);
+  }
+
+  /**
+   * Creates a bulkhead with a limit that adapts to the ratio between the latency of the calls when
+   * the backend isn't loaded and the latency of recent calls. The limit shrinks when calls get
+   * slower than that, which happens when they start queueing up in the backend, and grows, up to
+   * {@code maxLimit}, while latencies stay close to it. Calls that fail with a {@link
+   * java.util.concurrent.TimeoutException} halve the limit. Calls beyond the limit are rejected.
+   */
+  public static Bulkhead gradient(int initialLimit, int maxLimit) {
+    return gradient(initialLimit, maxLimit, 0);
+  }
+
+  /**
+   * Creates a bulkhead with a limit that adapts to the latency of the calls, as in {@link
+   * #gradient(int, int)}, and that queues up to {@code maxQueued} calls beyond the limit before
+   * rejecting any.
+   */
+  public static Bulkhead gradient(int initialLimit, int maxLimit, int maxQueued) {
+    return new Bulkhead(new ConcurrencyLimit.Gradient(initialLimit, maxLimit), maxQueued);
+  }
+
+  /**
+   * Returns the current limit on the number of calls in progress.
+   */
+  public int limit() {
+    return limit.get();
+  }
+
+  /**
+   * Returns the number of calls currently in progress.
+   */
+  public synchronized int inFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Returns the number of calls currently waiting for a call in progress to complete.
+   */
+  public synchronized int queued() {
+    return queue.size();
+  }
+
+  /**
+   * Returns the number of calls that have been rejected since this bulkhead was created.
+   */
+  public long rejected() {
+    return rejected.get();
+  }
+
+  /**
+   * Invokes a node if the limit allows it, or queues the call. A queued call is started on the
+   * executor of the caller, once a call in progress completes.
+   */
+  <V> ListenableFuture<V> call(TrickleNode<V> node, List<Object> values, Executor executor,
+                               @Nullable NodeExecution execution) {
+    checkNotNull(node, "node");
+    checkNotNull(values, "values");
+    checkNotNull(executor, "executor");
+
+    Pending<V> pending = null;
+    String rejection = null;
+
+    synchronized (this) {
+      if (inFlight >= limit.get()) {
+        if (queue.size() < maxQueued) {
+          pending = new Pending<V>(node, values, executor, execution);
+          queue.add(pending);
+        } else {
+          rejected.incrementAndGet();
+          rejection = "Too many concurrent calls: " + inFlight + " in progress and " +
+                      queue.size() + " queued";
+        }
+      } else {
+        inFlight++;
+      }
+    }
+
+    // the listener of the run, if any, is called once the lock has been released
+    if (pending != null) {
+      if (execution != null) {
+        execution.queued();
+      }
+      return pending.result;
+    }
+
+    if (rejection != null) {
+      if (execution != null) {
+        execution.rejected();
+      }
+      return immediateFailedFuture(new RejectedExecutionException(rejection));
+    }
+
+    return start(node, values, executor, execution);
+  }
+
+  /**
+   * Invokes a node that has been given a slot, and frees the slot once the call completes.
+   */
+  @Nullable
+  private <V> ListenableFuture<V> start(TrickleNode<V> node, List<Object> values,
+                                        Executor executor, @Nullable NodeExecution execution) {
+    final long startNanos = System.nanoTime();
+    final ListenableFuture<V> future;
+    try {
+      future = node.run(values, executor, execution);
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    }
+
+    if (future == null) {
+      release();
+      return null;
+    }
+
+    // the trampoline keeps a queue of calls that complete right away from nesting a call each
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        completed(future, System.nanoTime() - startNanos);
+      }
+    }, Trampoline.INSTANCE);
+    return future;
+  }
+
+  private void completed(ListenableFuture<?> future, long latencyNanos) {
+    if (!future.isCancelled()) {
+      final int current;
+      synchronized (this) {
+        current = inFlight;
+      }
+
+      limit.onSample(latencyNanos, current, timedOut(future));
+    }
+
+    release();
+  }
+
+  private static boolean timedOut(ListenableFuture<?> future) {
+    try {
+      Uninterruptibles.getUninterruptibly(future);
+      return false;
+    } catch (ExecutionException e) {
+      return e.getCause() instanceof TimeoutException;
+    }
+  }
+
+  /**
+   * Frees the slot of a completed call, and starts queued calls as long as the limit allows; more
+   * than one if the limit has grown. Each queued call is started on the executor it was made
+   * from, rather than on the thread that completed the call in progress.
+   */
+  private void release() {
+    synchronized (this) {
+      inFlight--;
+    }
+
+    while (true) {
+      final Pending<?> next;
+
+      synchronized (this) {
+        if (inFlight >= limit.get()) {
+          return;
+        }
+
+        next = queue.poll();
+
+        if (next == null) {
+          return;
+        }
+
+        inFlight++;
+      }
+
+      next.dequeued();
+
+      try {
+        next.executor.execute(next);
+      } catch (RuntimeException e) {
+        next.result.setException(e);
+
+        synchronized (this) {
+          inFlight--;
+        }
+      }
+    }
+  }
+
+  private synchronized boolean dequeue(Pending<?> pending) {
+    return queue.remove(pending);
+  }
+
+  private final class Pending<V> implements Runnable {
+    private final TrickleNode<V> node;
+    private final List<Object> values;
+    private final Executor executor;
+    @Nullable
+    private final NodeExecution execution;
+    private final SettableFuture<V> result = SettableFuture.create();
+
+    Pending(TrickleNode<V> node, List<Object> values, Executor executor,
+            @Nullable NodeExecution execution) {
+      this.node = node;
+      this.values = values;
+      this.executor = executor;
+      this.execution = execution;
+
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (result.isCancelled() && dequeue(Pending.this)) {
+            dequeued();
+          }
+        }
+      }, sameThreadExecutor());
+    }
+
+    /**
+     * Reports that the call has left the queue, either to be started or because it was cancelled.
+     */
+    void dequeued() {
+      if (execution != null) {
+        execution.dequeued();
+      }
+    }
+
+    /**
+     * Starts the call in the slot of one that has completed, or passes the slot on if the call was
+     * cancelled since it was taken off the queue.
+     */
+    @Override
+    public void run() {
+      if (result.isCancelled()) {
+        release();
+        return;
+      }
+
+      final ListenableFuture<V> future;
+      try {
+        future = Bulkhead.this.start(node, values, executor, execution);
+      } catch (RuntimeException e) {
+        result.setException(e);
+        return;
+      }
+
+      if (future == null) {
+        result.setException(new NullPointerException("Node returned null instead of a future"));
+        return;
+      }
+
+      Futures.addCallback(future, new FutureCallback<V>() {
+        @Override
+        public void onSuccess(@Nullable V value) {
+          result.set(value);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          result.setException(t);
+        }
+      });
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (result.isCancelled()) {
+            future.cancel(false);
+          }
+        }
+      }, sameThreadExecutor());
+    }
+  }
+}
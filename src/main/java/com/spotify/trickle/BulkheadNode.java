@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Node that invokes the node it wraps through a {@link Bulkhead}, which limits the number of
+ * concurrent calls across all runs.
+ */
+final class BulkheadNode<V> extends TrickleNode<V> {
+  private final TrickleNode<V> delegate;
+  private final Bulkhead bulkhead;
+
+  BulkheadNode(TrickleNode<V> delegate, Bulkhead bulkhead) {
+    this.delegate = checkNotNull(delegate, "delegate");
+    this.bulkhead = checkNotNull(bulkhead, "bulkhead");
+  }
+
+  @Override
+  public ListenableFuture<V> run(List<Object> values) {
+    return run(values, Trampoline.INSTANCE, null);
+  }
+
+  @Override
+  ListenableFuture<V> run(List<Object> values, Executor executor,
+                          @Nullable NodeExecution execution) {
+    return bulkhead.call(delegate, values, executor, execution);
+  }
+}
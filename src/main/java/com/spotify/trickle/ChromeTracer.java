@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes the node executions of sampled graph runs as Chrome Trace Event JSON, which can be
+ * loaded into Perfetto or chrome://tracing to see how nodes ran in parallel, which threads they
+ * ran on and how long they waited for an executor. Events are written incrementally, as nodes
+ * finish, to a buffered stream. Use {@link #sample()} to get a listener for a run:
+ *
+ * <pre>
+ * ChromeTracer tracer = ChromeTracer.toFile(new File("trace.json"), 100);
+ * ...
+ * graph.listener(tracer.sample()).run();
+ * ...
+ * tracer.close();
+ * </pre>
+ *
+ * Each node invocation becomes a complete event named by {@link NodeInfo#name()}, on the thread
+ * that invoked it, with the run number, the names of the node's arguments and the time spent
+ * waiting for the executor as its arguments. Nodes that fail because of their inputs, and so are
+ * never invoked, become instant events.
+ *
+ * A tracer can be shared by any number of concurrent runs. If writing fails, the tracer stops
+ * writing and the exception is thrown from {@link #flush()} or {@link #close()}.
+ */
+public final class ChromeTracer implements Flushable, Closeable {
+  private final Writer out;
+  private final int sampleEvery;
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong runs = new AtomicLong();
+  private final Set<Long> threads =
+      Sets.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+  // guarded by this
+  private boolean first = true;
+  private boolean closed;
+  private IOException failure;
+
+  private ChromeTracer(Writer out, int sampleEvery) {
+    checkArgument(sampleEvery > 0, "sampleEvery must be positive: %s", sampleEvery);
+
+    this.out = checkNotNull(out, "out");
+    this.sampleEvery = sampleEvery;
+  }
+
+  /**
+   * Creates a tracer that writes to the given stream, tracing one in every {@code sampleEvery}
+   * runs. The stream is closed when the tracer is closed.
+   */
+  public static ChromeTracer to(OutputStream out, int sampleEvery) {
+    return new ChromeTracer(
+        new BufferedWriter(new OutputStreamWriter(checkNotNull(out, "out"), Charsets.UTF_8)),
+        sampleEvery);
+  }
+
+  /**
+   * Creates a tracer that writes to the given file, replacing it if it exists, tracing one in
+   * every {@code sampleEvery} runs.
+   */
+  public static ChromeTracer toFile(File file, int sampleEvery) throws IOException {
+    return to(new FileOutputStream(checkNotNull(file, "file")), sampleEvery);
+  }
+
+  /**
+   * Returns a listener that traces a single run if the run is sampled, or null otherwise, so that
+   * runs that aren't sampled have no overhead. Pass the result to {@link
+   * Graph#listener(ExecutionListener)} for each run.
+   */
+  @Nullable
+  public ExecutionListener sample() {
+    final long run = runs.getAndIncrement();
+
+    return run % sampleEvery == 0 ? new RunListener(run) : null;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    throwIfFailed();
+
+    if (!closed) {
+      out.flush();
+    }
+  }
+
+  /**
+   * Ends the trace and closes the underlying stream. Nodes that finish after the tracer has been
+   * closed are not written.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    try {
+      if (failure == null) {
+        out.write(first ? "[]\n" : "\n]\n");
+      }
+    } finally {
+      out.close();
+    }
+
+    throwIfFailed();
+  }
+
+  private void throwIfFailed() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private synchronized void write(String event) {
+    if (closed || failure != null) {
+      return;
+    }
+
+    try {
+      out.write(first ? "[\n" : ",\n");
+      out.write(event);
+      first = false;
+    } catch (IOException e) {
+      failure = e;
+    }
+  }
+
+  private void nameThread(long threadId) {
+    if (threads.add(threadId)) {
+      final StringBuilder event = new StringBuilder();
+
+      event.append("{\"ph\":\"M\",\"pid\":1,\"tid\":").append(threadId)
+          .append(",\"name\":\"thread_name\",\"args\":{\"name\":");
+      appendString(event, Thread.currentThread().getName());
+      event.append("}}");
+
+      write(event.toString());
+    }
+  }
+
+  private static void appendMicros(StringBuilder event, long nanos) {
+    event.append(nanos / 1000).append('.');
+
+    final long fraction = Math.abs(nanos % 1000);
+    if (fraction < 100) {
+      event.append('0');
+    }
+    if (fraction < 10) {
+      event.append('0');
+    }
+    event.append(fraction);
+  }
+
+  private static void appendString(StringBuilder event, String value) {
+    event.append('"');
+
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+
+      if (c == '"' || c == '\\') {
+        event.append('\\').append(c);
+      } else if (c < ' ') {
+        event.append(String.format("\\u%04x", (int) c));
+      } else {
+        event.append(c);
+      }
+    }
+
+    event.append('"');
+  }
+
+  /**
+   * Traces the nodes of a single run.
+   */
+  private final class RunListener extends ExecutionListener {
+    private final long run;
+    private final Map<NodeExecution, Long> startedThreads =
+        Maps.newConcurrentMap();
+
+    RunListener(long run) {
+      this.run = run;
+    }
+
+    @Override
+    public void nodeStarted(NodeExecution execution) {
+      final long threadId = Thread.currentThread().getId();
+
+      nameThread(threadId);
+      startedThreads.put(execution, threadId);
+    }
+
+    @Override
+    public void nodeCompleted(NodeExecution execution) {
+      finished(execution, null);
+    }
+
+    @Override
+    public void nodeFailed(NodeExecution execution, Throwable failure) {
+      finished(execution, failure);
+    }
+
+    private void finished(NodeExecution execution, @Nullable Throwable failure) {
+      final Long startedThread = startedThreads.remove(execution);
+      final long threadId;
+      final StringBuilder event = new StringBuilder();
+
+      event.append("{\"name\":");
+      appendString(event, execution.node().name());
+      event.append(",\"cat\":\"trickle\"");
+
+      if (startedThread != null) {
+        threadId = startedThread;
+        event.append(",\"ph\":\"X\",\"ts\":");
+        appendMicros(event, execution.startedNanos() - startNanos);
+        event.append(",\"dur\":");
+        appendMicros(event, execution.finishedNanos() - execution.startedNanos());
+      } else {
+        threadId = Thread.currentThread().getId();
+        nameThread(threadId);
+        event.append(",\"ph\":\"i\",\"s\":\"t\",\"ts\":");
+        appendMicros(event, execution.finishedNanos() - startNanos);
+      }
+
+      event.append(",\"pid\":1,\"tid\":").append(threadId);
+      event.append(",\"args\":{\"run\":").append(run);
+
+      event.append(",\"arguments\":[");
+      boolean firstArgument = true;
+      for (NodeInfo argument : execution.node().arguments()) {
+        if (!firstArgument) {
+          event.append(',');
+        }
+        appendString(event, argument.name());
+        firstArgument = false;
+      }
+      event.append(']');
+
+      if (startedThread != null) {
+        event.append(",\"queued_us\":");
+        appendMicros(event, execution.startedNanos() - execution.inputsReadyNanos());
+      }
+
+      if (failure != null) {
+        event.append(",\"failure\":");
+        appendString(event, String.valueOf(failure));
+      }
+
+      event.append("}}");
+
+      write(event.toString());
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
+/**
+ * Node that shares the pending result of an invocation with all concurrent invocations that have
+ * equal argument values, so that the underlying node is only called once for them. An invocation
+ * is forgotten as soon as its future completes, so no results are retained.
+ *
+ * Each caller gets its own future for the shared result. Cancelling it only cancels the
+ * underlying call once all the callers sharing it have cancelled theirs.
+ *
+ * Since a single instance of this class is shared by all runs of the graphs it is part of, it is
+ * thread safe.
+ */
+final class CoalescingNode<V> extends TrickleNode<V> {
+  private final TrickleNode<V> delegate;
+  private final ConcurrentMap<List<Object>, Invocation> inFlight =
+      new ConcurrentHashMap<List<Object>, Invocation>();
+
+  CoalescingNode(TrickleNode<V> delegate) {
+    this.delegate = checkNotNull(delegate, "delegate");
+  }
+
+  @Override
+  public ListenableFuture<V> run(List<Object> values) {
+    return run(values, Trampoline.INSTANCE, null);
+  }
+
+  @Override
+  ListenableFuture<V> run(final List<Object> values, Executor executor,
+                          @Nullable NodeExecution execution) {
+    checkNotNull(values, "values");
+    checkNotNull(executor, "executor");
+
+    final Invocation invocation = new Invocation();
+
+    // the invocation is registered before the node is called, so that callers that arrive while
+    // it is being called wait for its result rather than calling it too
+    while (true) {
+      final Invocation existing = inFlight.putIfAbsent(values, invocation);
+
+      if (existing == null) {
+        break;
+      }
+      if (existing.join()) {
+        return existing.newConsumer();
+      }
+      // every caller of the existing invocation has cancelled it, so it can't be shared
+      if (inFlight.replace(values, existing, invocation)) {
+        break;
+      }
+    }
+
+    invocation.result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        inFlight.remove(values, invocation);
+      }
+    }, sameThreadExecutor());
+
+    final ListenableFuture<V> future;
+    try {
+      future = delegate.run(values, executor, execution);
+    } catch (RuntimeException e) {
+      invocation.result.setException(e);
+      throw e;
+    }
+
+    if (future == null) {
+      invocation.result.setException(
+          new NullPointerException("Node returned null instead of a future"));
+      return null;
+    }
+
+    invocation.follow(future);
+
+    return future.isDone() ? future : invocation.newConsumer();
+  }
+
+  /**
+   * Returns the number of invocations currently in flight.
+   */
+  int inFlightCount() {
+    return inFlight.size();
+  }
+
+  /**
+   * A call to the underlying node, with a count of the callers that still want its result. The
+   * result is created before the node is called, and completes with the node's future.
+   */
+  private final class Invocation {
+    private final SettableFuture<V> result = SettableFuture.create();
+    private final AtomicInteger consumers = new AtomicInteger(1);
+
+    /**
+     * Adds a consumer, unless all previous consumers have already cancelled the invocation.
+     */
+    boolean join() {
+      for (int count = consumers.get(); count > 0; count = consumers.get()) {
+        if (consumers.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    /**
+     * Completes the result with the future returned by the node, and cancels that future if the
+     * result is cancelled.
+     */
+    void follow(final ListenableFuture<V> future) {
+      Futures.addCallback(future, new FutureCallback<V>() {
+        @Override
+        public void onSuccess(@Nullable V value) {
+          result.set(value);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          result.setException(t);
+        }
+      });
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (result.isCancelled()) {
+            future.cancel(false);
+          }
+        }
+      }, sameThreadExecutor());
+    }
+
+    ListenableFuture<V> newConsumer() {
+      final SettableFuture<V> consumer = SettableFuture.create();
+
+      Futures.addCallback(result, new FutureCallback<V>() {
+        @Override
+        public void onSuccess(@Nullable V value) {
+          consumer.set(value);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          consumer.setException(t);
+        }
+      });
+      consumer.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (consumer.isCancelled() && consumers.decrementAndGet() == 0) {
+            result.cancel(false);
+          }
+        }
+      }, sameThreadExecutor());
+
+      return consumer;
+    }
+  }
+}
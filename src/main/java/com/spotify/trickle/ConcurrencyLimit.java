@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The number of concurrent calls a {@link Bulkhead} allows. Limits may adapt to how the calls
+ * behave: the bulkhead reports the latency of every completed call, along with the number of calls
+ * in progress when it completed, and whether it was dropped, meaning that it timed out.
+ *
+ * Samples are passed in rather than measured by the limit itself, so that limits can be tested
+ * with simulated latencies.
+ */
+abstract class ConcurrencyLimit {
+  /**
+   * Returns the current limit; always at least one.
+   */
+  abstract int get();
+
+  /**
+   * Records the outcome of a call.
+   *
+   * @param latencyNanos the time from when the call was started until it completed
+   * @param inFlight     the number of calls in progress when it completed, including this one
+   * @param dropped      true if the call timed out
+   */
+  abstract void onSample(long latencyNanos, int inFlight, boolean dropped);
+
+  static ConcurrencyLimit fixed(int limit) {
+    return new Fixed(limit);
+  }
+
+  /**
+   * A limit that never changes.
+   */
+  static final class Fixed extends ConcurrencyLimit {
+    private final int limit;
+
+    Fixed(int limit) {
+      checkArgument(limit > 0, "limit must be positive: %s", limit);
+
+      this.limit = limit;
+    }
+
+    @Override
+    int get() {
+      return limit;
+    }
+
+    @Override
+    void onSample(long latencyNanos, int inFlight, boolean dropped) {
+      // fixed
+    }
+  }
+
+  /**
+   * Additive increase, multiplicative decrease, as in TCP congestion control: the limit grows by
+   * one for every call that completes within the latency threshold while the limit is in use,
+   * and shrinks by a constant factor for every call that is slower than that or times out.
+   */
+  static final class Aimd extends ConcurrencyLimit {
+    static final double BACKOFF_RATIO = 0.9;
+
+    private final int maxLimit;
+    private final long thresholdNanos;
+
+    // guarded by this for updates
+    private volatile int limit;
+
+    Aimd(int initialLimit, int maxLimit, long thresholdNanos) {
+      checkArgument(initialLimit > 0, "initialLimit must be positive: %s", initialLimit);
+      checkArgument(maxLimit >= initialLimit,
+                    "maxLimit must be at least initialLimit: %s < %s", maxLimit, initialLimit);
+      checkArgument(thresholdNanos > 0, "latency threshold must be positive: %s", thresholdNanos);
+
+      this.limit = initialLimit;
+      this.maxLimit = maxLimit;
+      this.thresholdNanos = thresholdNanos;
+    }
+
+    @Override
+    int get() {
+      return limit;
+    }
+
+    @Override
+    synchronized void onSample(long latencyNanos, int inFlight, boolean dropped) {
+      if (dropped || latencyNanos > thresholdNanos) {
+        limit = Math.max(1, (int) (limit * BACKOFF_RATIO));
+      } else if (inFlight * 2 >= limit) {
+        // only grow if the limit is actually in use; otherwise, good latencies say nothing about
+        // how many calls the backend can take
+        limit = Math.min(maxLimit, limit + 1);
+      }
+    }
+  }
+
+  /**
+   * Adjusts the limit by the gradient between the no-load latency of the calls and the latency of
+   * each call, in the style of the gradient limits of Netflix's concurrency-limits library. When
+   * calls get slower than that, requests are queueing up in the backend, and the limit shrinks in
+   * proportion; while latencies stay within the tolerance, the limit grows by roughly its square
+   * root.
+   *
+   * The no-load latency is the lowest latency seen, except that it follows the latencies of calls
+   * made while the limit isn't in use, or while only a single call is in progress, since calls
+   * can't be queueing up behind each other then. That way, it follows lasting changes in latency,
+   * but doesn't creep up while the backend is overloaded, which would let the limit grow without
+   * bound. The limit is smoothed, so a single slow call only has a small effect.
+   */
+  static final class Gradient extends ConcurrencyLimit {
+    // latencies up to this factor above the no-load latency don't reduce the limit
+    static final double TOLERANCE = 1.5;
+    // the weight of each new estimate in the limit
+    static final double SMOOTHING = 0.2;
+    // the weight of each sample of an unloaded backend in the no-load latency
+    static final double BASELINE_SMOOTHING = 0.1;
+
+    private final int maxLimit;
+
+    // guarded by this
+    private double noLoadLatency;
+    private double estimate;
+
+    // guarded by this for updates
+    private volatile int limit;
+
+    Gradient(int initialLimit, int maxLimit) {
+      checkArgument(initialLimit > 0, "initialLimit must be positive: %s", initialLimit);
+      checkArgument(maxLimit >= initialLimit,
+                    "maxLimit must be at least initialLimit: %s < %s", maxLimit, initialLimit);
+
+      this.limit = initialLimit;
+      this.estimate = initialLimit;
+      this.maxLimit = maxLimit;
+    }
+
+    @Override
+    int get() {
+      return limit;
+    }
+
+    @Override
+    synchronized void onSample(long latencyNanos, int inFlight, boolean dropped) {
+      final double latency = Math.max(1, latencyNanos);
+      final boolean idle = inFlight * 2 < estimate;
+
+      if (noLoadLatency == 0 || latency < noLoadLatency) {
+        noLoadLatency = latency;
+      } else if (idle || inFlight <= 1) {
+        noLoadLatency += (latency - noLoadLatency) * BASELINE_SMOOTHING;
+      }
+
+      if (dropped) {
+        estimate = Math.max(1, estimate / 2);
+      } else {
+        // an idle backend says nothing about how many calls it can take
+        if (idle) {
+          return;
+        }
+
+        final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * noLoadLatency / latency));
+        // only allow for more queueing while latencies are within the tolerance, so that the limit
+        // can shrink all the way down if the backend stays slow
+        final double target = gradient < 1.0
+                              ? estimate * gradient
+                              : estimate + Math.sqrt(estimate);
+
+        estimate = estimate * (1 - SMOOTHING) + target * SMOOTHING;
+        estimate = Math.max(1, Math.min(maxLimit, estimate));
+      }
+
+      limit = (int) estimate;
+    }
+  }
+}
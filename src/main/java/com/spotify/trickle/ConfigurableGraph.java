@@ -18,6 +18,9 @@ package com.spotify.trickle;
 
 import com.google.common.util.concurrent.AsyncFunction;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Defines operations available on an intermediate node builder when constructing a graph.
  */
@@ -48,6 +51,104 @@ public abstract class ConfigurableGraph<R> extends Graph<R> {
    */
   public abstract ConfigurableGraph<R> after(Graph<?>... predecessors);
 
+  /**
+   * Caches the results of this node across graph runs. A cached result is used whenever the
+   * graph inputs that this node depends on, directly or indirectly, are bound to values equal to
+   * those of an earlier run; in that case neither this node nor any node that only it depends on
+   * is invoked. Only results returned by the node itself are cached, not fallback values.
+   *
+   * <p>This is only correct if the node's value is fully determined by those graph inputs, so the
+   * node and the nodes it depends on should be free of side-effects. Inputs bound to futures are
+   * only used as cache keys if the futures have completed successfully when the graph is run;
+   * otherwise the cache is bypassed. The node may be part of several graphs, which then share
+   * its cached results.
+   *
+   * @param cache the cache to use; it shouldn't be shared with any other node
+   */
+  public abstract ConfigurableGraph<R> cached(NodeCache cache);
+
+  /**
+   * Makes concurrent invocations of this node with equal argument values share a single call to
+   * the node. While a call is in progress, any other run of the graph that reaches this node with
+   * the same arguments gets the pending future of that call instead of invoking the node again.
+   * Nothing is retained once the call completes; see {@link #cached(NodeCache)} for that.
+   *
+   * <p>Argument values must have proper {@code equals()} and {@code hashCode()} implementations.
+   */
+  public abstract ConfigurableGraph<R> coalesced();
+
+  /**
+   * Limits the time this node may take to complete, counted from when it is invoked. If the node
+   * hasn't completed by then, it fails with a {@link java.util.concurrent.TimeoutException},
+   * which is handled by the node's fallback, if any, like any other failure.
+   *
+   * @param timeout the maximum time to wait for the node, which must be positive
+   * @param unit    the unit of the timeout
+   */
+  public abstract ConfigurableGraph<R> timeout(long timeout, TimeUnit unit);
+
+  /**
+   * Limits the number of concurrent calls to this node across all runs of the graph, using the
+   * supplied bulkhead. Calls beyond the bulkhead's limits fail with a {@link
+   * java.util.concurrent.RejectedExecutionException}, which is handled by the node's fallback, if
+   * any, like any other failure.
+   *
+   * @param bulkhead the bulkhead to invoke the node through; it may be shared with other nodes to
+   *                 limit their calls together
+   */
+  public abstract ConfigurableGraph<R> bulkhead(Bulkhead bulkhead);
+
+  /**
+   * Invokes this node a second time if it hasn't completed within the given delay, and uses
+   * whichever call succeeds first, cancelling the other. This is the same as {@code
+   * hedge(Hedging.after(delay, unit))}; see {@link #hedge(Hedging)}.
+   *
+   * @param delay the time to wait for the first call before making the second one
+   * @param unit  the unit of the delay
+   */
+  public abstract ConfigurableGraph<R> hedge(long delay, TimeUnit unit);
+
+  /**
+   * Invokes this node a second time if it hasn't completed within the delay of the supplied
+   * hedging, which may be fixed or follow a percentile of the node's latencies, and uses
+   * whichever call succeeds first, cancelling the other. This reduces tail latency when slow
+   * calls are caused by, for instance, a slow replica of a backend, at the cost of a limited
+   * number of extra calls.
+   *
+   * <p>Only hedge nodes that are safe to invoke more than once with the same arguments.
+   *
+   * @param hedging the delay and limit on extra calls to use; it also counts the hedges made and
+   *                won, and should only be used for a single node
+   */
+  public abstract ConfigurableGraph<R> hedge(Hedging hedging);
+
+  /**
+   * Invokes this node on the supplied executor, rather than on the executor the graph is run
+   * with. This can be used to isolate expensive nodes on a pool of their own, while cheap nodes
+   * run on whatever thread completed their inputs.
+   *
+   * <p>A node whose inputs were produced by a node running on the same executor is invoked on the
+   * same thread, right after that node's task has finished, rather than being submitted to the
+   * executor again. Nodes on the executor therefore shouldn't block waiting for other work on the
+   * same executor, such as another run of a graph with nodes on it.
+   *
+   * @param executor the executor to invoke the node on
+   */
+  public abstract ConfigurableGraph<R> executeOn(Executor executor);
+
+  /**
+   * Invokes this node again if it fails, as described by the supplied policy, before falling back
+   * to the node's fallback, if any. Each retry is an invocation like the first one, so timeouts
+   * and bulkheads apply to each attempt separately. Retries are scheduled on a timer rather than
+   * waiting on a thread, and are only made within the run's deadline and retry budget. Failures of
+   * the node's inputs are never retried.
+   *
+   * <p>Only retry nodes that are safe to invoke more than once with the same arguments.
+   *
+   * @param policy the number of attempts, backoff and retry budget to use
+   */
+  public abstract ConfigurableGraph<R> retry(RetryPolicy policy);
+
   // prevent construction from outside of package
   ConfigurableGraph() {
   }
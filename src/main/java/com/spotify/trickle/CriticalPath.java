@@ -0,0 +1,334 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The critical path of a graph run: the chain of dependencies, ending with the root node of the
+ * graph, that determined how long the run took. Each node in the chain became ready to execute
+ * when the previous one finished, so making any of them faster makes the run faster, while
+ * making other nodes faster doesn't help unless they are slower than their slack.
+ *
+ * The slack of a node is how much later it could have finished without delaying the run, given
+ * the recorded durations of the nodes that depend on it. Nodes on the critical path have close to
+ * no slack.
+ *
+ * The duration of a node is counted from when all its inputs were available until it finished,
+ * so it includes any time spent waiting for a thread in the executor. Nodes whose results were
+ * taken from a {@link NodeCache} are not executed and so not included.
+ *
+ * Use a {@link CriticalPathRecorder} to get the critical path of a run.
+ */
+public final class CriticalPath {
+  private final long durationNanos;
+  private final ImmutableList<Segment> path;
+  private final ImmutableList<Segment> nodes;
+
+  private CriticalPath(long durationNanos, List<Segment> path, List<Segment> nodes) {
+    this.durationNanos = durationNanos;
+    this.path = ImmutableList.copyOf(path);
+    this.nodes = ImmutableList.copyOf(nodes);
+  }
+
+  /**
+   * The time from when the first node was scheduled until the root node finished.
+   */
+  public long durationNanos() {
+    return durationNanos;
+  }
+
+  /**
+   * The nodes on the critical path, in execution order; the last one is the root of the graph.
+   */
+  public List<Segment> path() {
+    return path;
+  }
+
+  /**
+   * All the executed nodes of the run, ordered by when they became ready to execute.
+   */
+  public List<Segment> nodes() {
+    return nodes;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder result = new StringBuilder();
+
+    result.append(String.format("critical path, %s total:%n", millis(durationNanos)));
+    appendSegments(result, path);
+    result.append(String.format("all nodes:%n"));
+    appendSegments(result, nodes);
+
+    return result.toString();
+  }
+
+  private static void appendSegments(StringBuilder result, List<Segment> segments) {
+    for (Segment segment : segments) {
+      result.append(String.format("  %-30s start %10s  duration %10s  slack %10s%n",
+                                  segment.node().name(),
+                                  millis(segment.startNanos()),
+                                  millis(segment.durationNanos()),
+                                  millis(segment.slackNanos())));
+    }
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.3f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  /**
+   * Determines the critical path from the executions of the nodes of a run, keyed by node
+   * identity. The root of the run is the node that no other recorded node depends on.
+   */
+  static CriticalPath analyze(Map<NodeInfo, NodeExecution> executions) {
+    final NodeInfo root = findRoot(executions);
+
+    final List<NodeInfo> order = Lists.newArrayList();
+    addInTopologicalOrder(root, executions, Sets.<NodeInfo>newIdentityHashSet(), order);
+
+    long runStart = Long.MAX_VALUE;
+    for (NodeInfo node : order) {
+      runStart = Math.min(runStart, executions.get(node).scheduledNanos());
+    }
+
+    // consumers come after their dependencies in the order, so when walking it backwards, the
+    // latest allowed finish time of a node is known before it is propagated to its dependencies
+    final Map<NodeInfo, Long> latestFinish = Maps.newIdentityHashMap();
+    latestFinish.put(root, executions.get(root).finishedNanos());
+
+    for (NodeInfo node : Lists.reverse(order)) {
+      final long latestStart = latestFinish.get(node) - duration(executions.get(node));
+
+      for (NodeInfo dependency : dependencies(node, executions)) {
+        final Long current = latestFinish.get(dependency);
+        if (current == null || latestStart < current) {
+          latestFinish.put(dependency, latestStart);
+        }
+      }
+    }
+
+    final Map<NodeInfo, Segment> segments = Maps.newIdentityHashMap();
+    for (NodeInfo node : order) {
+      final NodeExecution execution = executions.get(node);
+      final long slack = Math.max(0, latestFinish.get(node) - execution.finishedNanos());
+
+      segments.put(node, new Segment(node,
+                                     ready(execution) - runStart,
+                                     duration(execution),
+                                     slack));
+    }
+
+    final List<Segment> path = Lists.newArrayList();
+    for (NodeInfo node = root; node != null; node = latestDependency(node, executions)) {
+      path.add(segments.get(node));
+    }
+
+    final List<Segment> nodes = Lists.newArrayList(segments.values());
+    Collections.sort(nodes, new Comparator<Segment>() {
+      @Override
+      public int compare(Segment o1, Segment o2) {
+        return o1.startNanos < o2.startNanos ? -1 : (o1.startNanos == o2.startNanos ? 0 : 1);
+      }
+    });
+
+    return new CriticalPath(executions.get(root).finishedNanos() - runStart,
+                            Lists.reverse(path),
+                            nodes);
+  }
+
+  private static NodeInfo findRoot(Map<NodeInfo, NodeExecution> executions) {
+    final Set<NodeInfo> dependencies = Sets.newIdentityHashSet();
+    for (NodeInfo node : executions.keySet()) {
+      Iterables.addAll(dependencies, dependencies(node, executions));
+    }
+
+    NodeInfo root = null;
+    for (NodeInfo node : executions.keySet()) {
+      if (!dependencies.contains(node) &&
+          (root == null ||
+           executions.get(node).finishedNanos() - executions.get(root).finishedNanos() > 0)) {
+        root = node;
+      }
+    }
+
+    if (root == null) {
+      throw new IllegalStateException("PROGRAMMER ERROR: no root among " + executions.keySet());
+    }
+
+    return root;
+  }
+
+  /**
+   * Adds a node after all its dependencies to the order. This is a depth-first traversal using an
+   * explicit stack rather than recursion, so that the depth of the graph isn't limited by the size
+   * of the thread stack.
+   */
+  private static void addInTopologicalOrder(NodeInfo root,
+                                            Map<NodeInfo, NodeExecution> executions,
+                                            Set<NodeInfo> visited,
+                                            List<NodeInfo> order) {
+    final Deque<Visit> stack = new ArrayDeque<Visit>();
+
+    visited.add(root);
+    stack.push(new Visit(root, executions));
+
+    while (!stack.isEmpty()) {
+      final Visit visit = stack.peek();
+
+      if (visit.dependencies.hasNext()) {
+        final NodeInfo dependency = visit.dependencies.next();
+
+        if (visited.add(dependency)) {
+          stack.push(new Visit(dependency, executions));
+        }
+        continue;
+      }
+
+      stack.pop();
+      order.add(visit.node);
+    }
+  }
+
+  /**
+   * A node on the stack of the traversal, with the dependencies that remain to be visited.
+   */
+  private static final class Visit {
+    private final NodeInfo node;
+    private final Iterator<NodeInfo> dependencies;
+
+    Visit(NodeInfo node, Map<NodeInfo, NodeExecution> executions) {
+      this.node = node;
+      this.dependencies = dependencies(node, executions).iterator();
+    }
+  }
+
+  /**
+   * Returns the dependency that finished last, and so was the one the node was waiting for, or
+   * null if the node had no recorded dependencies.
+   */
+  @Nullable
+  private static NodeInfo latestDependency(NodeInfo node,
+                                           Map<NodeInfo, NodeExecution> executions) {
+    NodeInfo latest = null;
+
+    for (NodeInfo dependency : dependencies(node, executions)) {
+      if (latest == null ||
+          executions.get(dependency).finishedNanos() -
+          executions.get(latest).finishedNanos() > 0) {
+        latest = dependency;
+      }
+    }
+
+    return latest;
+  }
+
+  /**
+   * Returns the arguments and predecessors of a node that were executed in the run; inputs and
+   * cached nodes are left out.
+   */
+  private static List<NodeInfo> dependencies(NodeInfo node,
+                                             Map<NodeInfo, NodeExecution> executions) {
+    final List<NodeInfo> result = Lists.newArrayList();
+
+    for (NodeInfo dependency : Iterables.concat(node.arguments(), node.predecessors())) {
+      if (executions.containsKey(dependency)) {
+        result.add(dependency);
+      }
+    }
+
+    return result;
+  }
+
+  private static long ready(NodeExecution execution) {
+    // nodes whose inputs failed are never invoked, and finish as soon as the failure is known
+    return execution.wasStarted() ? execution.inputsReadyNanos() : execution.finishedNanos();
+  }
+
+  private static long duration(NodeExecution execution) {
+    return execution.finishedNanos() - ready(execution);
+  }
+
+  /**
+   * The execution of a node in a run. Times are relative to the start of the run.
+   */
+  public static final class Segment {
+    private final NodeInfo node;
+    private final long startNanos;
+    private final long durationNanos;
+    private final long slackNanos;
+
+    Segment(NodeInfo node, long startNanos, long durationNanos, long slackNanos) {
+      this.node = checkNotNull(node, "node");
+      this.startNanos = startNanos;
+      this.durationNanos = durationNanos;
+      this.slackNanos = slackNanos;
+    }
+
+    public NodeInfo node() {
+      return node;
+    }
+
+    /**
+     * The time when all the inputs of the node were available.
+     */
+    public long startNanos() {
+      return startNanos;
+    }
+
+    /**
+     * The time from when all the inputs of the node were available until it finished.
+     */
+    public long durationNanos() {
+      return durationNanos;
+    }
+
+    /**
+     * How much later the node could have finished without delaying the run.
+     */
+    public long slackNanos() {
+      return slackNanos;
+    }
+
+    @Override
+    public String toString() {
+      return "Segment{" + node.name() +
+             ", start=" + startNanos +
+             ", duration=" + durationNanos +
+             ", slack=" + slackNanos +
+             '}';
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An {@link ExecutionListener} that records when each node of a graph run was ready to execute
+ * and when it finished, so that the {@link CriticalPath} of the run can be determined once it has
+ * completed. For instance:
+ *
+ * <pre>
+ * CriticalPathRecorder recorder = new CriticalPathRecorder();
+ * graph.listener(recorder).run().get();
+ * System.out.println(recorder.report());
+ * </pre>
+ *
+ * A recorder should only be used for a single run.
+ */
+public final class CriticalPathRecorder extends ExecutionListener {
+  private final Map<NodeInfo, NodeExecution> executions = Maps.newIdentityHashMap();
+
+  @Override
+  public void nodeCompleted(NodeExecution execution) {
+    record(execution);
+  }
+
+  @Override
+  public void nodeFailed(NodeExecution execution, Throwable failure) {
+    record(execution);
+  }
+
+  private synchronized void record(NodeExecution execution) {
+    executions.put(execution.node(), execution);
+  }
+
+  /**
+   * Returns the critical path of the recorded run, which must have completed.
+   *
+   * @throws IllegalStateException if no nodes have finished yet
+   */
+  public CriticalPath report() {
+    final Map<NodeInfo, NodeExecution> finished;
+
+    synchronized (this) {
+      checkState(!executions.isEmpty(), "No node executions have been recorded");
+      finished = Maps.newIdentityHashMap();
+      finished.putAll(executions);
+    }
+
+    return CriticalPath.analyze(finished);
+  }
+}
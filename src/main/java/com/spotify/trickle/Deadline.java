@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The time limit for a whole graph run. Once it expires, every node future that hasn't completed
+ * fails with a {@link TimeoutException}, and nodes that are invoked after that time fail
+ * immediately unless they complete synchronously. The failures go through the fallbacks of the
+ * nodes, so a graph with fallbacks returns a degraded result rather than failing.
+ *
+ * A deadline uses a single timer, regardless of the number of nodes in the graph.
+ */
+final class Deadline {
+  private final SettableFuture<Void> expired = SettableFuture.create();
+  private final TimerWheel.Timeout timer;
+
+  Deadline(final long timeout, final TimeUnit unit) {
+    checkArgument(timeout > 0, "timeout must be positive: %s", timeout);
+    checkNotNull(unit, "unit");
+
+    // the listeners of the expiry fail nodes, so they are run off the timer thread
+    this.timer = Timers.schedule(new Runnable() {
+      @Override
+      public void run() {
+        Timers.executor().execute(new Runnable() {
+          @Override
+          public void run() {
+            expired.setException(
+                new TimeoutException("Graph didn't complete within " + timeout + " " + unit));
+          }
+        });
+      }
+    }, timeout, unit);
+  }
+
+  /**
+   * Returns a future that fails with a {@link TimeoutException} when the deadline expires. It
+   * never succeeds, and is shared by all nodes of the run, so it must not be cancelled.
+   */
+  ListenableFuture<Void> expiry() {
+    return expired;
+  }
+
+  /**
+   * Stops the timer, for when the run has completed.
+   */
+  void cancel() {
+    timer.cancel();
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+/**
+ * Receives events about the execution of the nodes in a graph, for instance to measure how long
+ * each node takes. Register a listener using {@link Graph#listener(ExecutionListener)}.
+ *
+ * <p>For each node in a run, {@link #nodeScheduled(NodeExecution)} is called first, followed by
+ * {@link #nodeInputsReady(NodeExecution)} and {@link #nodeStarted(NodeExecution)} once the node
+ * can be invoked, and then exactly one of {@link #nodeCompleted(NodeExecution)} or {@link
+ * #nodeFailed(NodeExecution, Throwable)}. If the inputs of a node fail, it is never started, and
+ * {@code nodeFailed} is called with the input's failure. Failures that are handled by the node's
+ * fallback are followed by {@link #nodeFallback(NodeExecution, Throwable)}. Nodes whose values are
+ * taken from a {@link NodeCache} don't produce any events.
+ *
+ * <p>Nodes with a {@link Bulkhead} also report what the bulkhead does with their calls: {@link
+ * #nodeQueued(NodeExecution)} when a call has to wait for a slot, followed by {@link
+ * #nodeDequeued(NodeExecution)} when it leaves the queue, and {@link #nodeRejected(NodeExecution)}
+ * when the bulkhead rejects it. These come between {@code nodeStarted} and the outcome of the node,
+ * and more than once if the node is retried or hedged.
+ *
+ * <p>All the events for one node invocation get the same {@link NodeExecution}, which holds the
+ * node and the {@link System#nanoTime()} timestamps of the events so far. Methods are called
+ * synchronously on the threads that run the graph, so they should be fast and must not throw
+ * exceptions. A single listener may receive events from several threads and concurrent runs, so
+ * implementations must be thread safe.
+ *
+ * <p>All methods do nothing by default, so implementations only need to override the ones they
+ * are interested in.
+ */
+public abstract class ExecutionListener {
+
+  /**
+   * Called when a run starts waiting for the inputs of a node.
+   */
+  public void nodeScheduled(NodeExecution execution) {
+  }
+
+  /**
+   * Called when all the arguments and predecessors of a node have completed successfully.
+   */
+  public void nodeInputsReady(NodeExecution execution) {
+  }
+
+  /**
+   * Called right before a node is invoked. Any time between this and {@link
+   * #nodeInputsReady(NodeExecution)} is spent waiting for the executor.
+   */
+  public void nodeStarted(NodeExecution execution) {
+  }
+
+  /**
+   * Called when the future returned by a node has completed successfully.
+   */
+  public void nodeCompleted(NodeExecution execution) {
+  }
+
+  /**
+   * Called when a node fails: when it throws an exception, returns a failed future or times out,
+   * or when one of its inputs fails. This is called before the node's fallback, if any, is
+   * applied.
+   */
+  public void nodeFailed(NodeExecution execution, Throwable failure) {
+  }
+
+  /**
+   * Called when a failure of a node is handled by the node's fallback, right before the fallback
+   * is invoked.
+   */
+  public void nodeFallback(NodeExecution execution, Throwable failure) {
+  }
+
+  /**
+   * Called when a call to a node waits in the queue of its {@link Bulkhead}, because the bulkhead's
+   * limit has been reached.
+   */
+  public void nodeQueued(NodeExecution execution) {
+  }
+
+  /**
+   * Called when a call to a node leaves the queue of its {@link Bulkhead}, either to be started or
+   * because it has been cancelled.
+   */
+  public void nodeDequeued(NodeExecution execution) {
+  }
+
+  /**
+   * Called when the {@link Bulkhead} of a node rejects a call because both its limit and its queue
+   * are full. The node then fails with a {@link java.util.concurrent.RejectedExecutionException}.
+   */
+  public void nodeRejected(NodeExecution execution) {
+  }
+}
@@ -0,0 +1,1319 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.util.concurrent.Futures.allAsList;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
+/**
+ * A compiled form of a graph: the nodes reachable from a root node, flattened into topological
+ * order so that running the graph is a single pass over an array rather than a recursive walk.
+ *
+ * Every input and node in the plan is assigned an integer slot. Inputs take the first slots,
+ * followed by the nodes, with the root node last. A run fills an array of futures indexed by
+ * slot, and each node finds its arguments and predecessors by slot number. Nodes are identified
+ * by the {@link Graph} instance that refers to them, so a node used in several places in the graph
+ * is only invoked once per run.
+ *
+ * Nodes that have a {@link NodeCache} are looked up in their caches before the run starts, working
+ * backwards from the root, so that nodes whose results are only needed by cached nodes aren't
+ * invoked at all on a cache hit.
+ *
+ * Cancelling the future for the result of a run cancels the futures of all nodes in the run, since
+ * every node in a plan only exists to produce the root's value. Nodes that are cancelled before
+ * their inputs are ready are never invoked. Futures bound to inputs of the graph are never
+ * cancelled, since they may be used elsewhere, and neither are the futures a node waits for,
+ * except through the plan; that way, node results that are shared beyond a single run, such as
+ * those of coalesced nodes, are only cancelled by their own consumers.
+ *
+ * This class is immutable and thread safe; a plan is compiled once per {@link GraphBuilder} and
+ * shared by all runs of that graph.
+ */
+final class ExecutionPlan<R> {
+  /**
+   * Stands in for input values that can't be part of a cache key, because they're bound to futures
+   * that haven't completed successfully.
+   */
+  private static final Object UNKNOWN = new Object();
+
+  private final ImmutableList<Input<?>> inputs;
+  private final ImmutableMap<Input<?>, Integer> inputIndexes;
+  private final Object[] subgraphBindings;
+  private final Object[] noBindings;
+  private final ImmutableList<Step<?>> steps;
+  private final boolean hasCachedSteps;
+
+  private ExecutionPlan(ImmutableList<Input<?>> inputs,
+                        Object[] subgraphBindings,
+                        ImmutableList<Step<?>> steps) {
+    this.inputs = inputs;
+    this.subgraphBindings = subgraphBindings;
+    this.noBindings = new Object[inputs.size()];
+    this.steps = steps;
+
+    boolean cached = false;
+    for (Step<?> step : steps) {
+      cached |= step.cache != null;
+    }
+    this.hasCachedSteps = cached;
+
+    ImmutableMap.Builder<Input<?>, Integer> indexes = ImmutableMap.builder();
+    for (int i = 0; i < inputs.size(); i++) {
+      indexes.put(inputs.get(i), i);
+    }
+    this.inputIndexes = indexes.build();
+  }
+
+  static <R> ExecutionPlan<R> compile(GraphBuilder<R> root) {
+    checkNotNull(root, "root");
+
+    return new Compiler().compile(root);
+  }
+
+  /**
+   * Runs the plan.
+   *
+   * @param bindings values bound to the inputs of the plan, indexed by input slot. Inputs that are
+   *                 bound by subgraphs of this plan should be null.
+   * @param state    the state of this run
+   */
+  ListenableFuture<R> run(Object[] bindings, TraverseState state) {
+    checkNotNull(bindings, "bindings");
+    checkNotNull(state, "state");
+    checkArgument(bindings.length == inputs.size(), "wrong number of bindings: %s", bindings.length);
+
+    final int inputCount = inputs.size();
+    final ListenableFuture<?>[] futures = new ListenableFuture<?>[inputCount + steps.size()];
+
+    final Object[] values = new Object[inputCount];
+
+    for (int i = 0; i < inputCount; i++) {
+      values[i] = bindings[i] != null ? bindings[i] : subgraphBindings[i];
+      futures[i] = inputFuture(i, values[i]);
+    }
+
+    state.prepareCalls(steps.size());
+
+    if (!hasCachedSteps) {
+      for (int i = 0; i < steps.size(); i++) {
+        futures[inputCount + i] = steps.get(i).future(futures, state, i, null);
+      }
+    } else {
+      final boolean[] needed = new boolean[steps.size()];
+      final List<?>[] cacheKeys = new List<?>[steps.size()];
+      lookupCachedSteps(values, futures, needed, cacheKeys);
+
+      for (int i = 0; i < steps.size(); i++) {
+        if (needed[i] && futures[inputCount + i] == null) {
+          futures[inputCount + i] = steps.get(i).future(futures, state, i, cacheKeys[i]);
+        }
+      }
+    }
+
+    // the root is always the last step, and its type is guaranteed by the compiler
+    //noinspection unchecked
+    final ListenableFuture<R> result = (ListenableFuture<R>) futures[futures.length - 1];
+
+    if (!result.isDone()) {
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (result.isCancelled()) {
+            cancelSteps(futures);
+          }
+        }
+      }, sameThreadExecutor());
+    }
+
+    return result;
+  }
+
+  /**
+   * Runs the plan once for each of a list of bindings, as a single pass over the nodes. A node is
+   * only invoked once for all the runs in which the inputs it depends on, directly or indirectly,
+   * are bound to the same values.
+   *
+   * @param bindings a list of values bound to the inputs of the plan, as for {@link
+   *                 #run(Object[], TraverseState)}
+   * @param state    the state of the first run; the other runs get states with the same
+   *                 settings from {@link TraverseState#newRun()}
+   * @return a future for the list of results, in the same order as the bindings
+   */
+  ListenableFuture<List<R>> runBatch(List<Object[]> bindings, TraverseState state) {
+    checkNotNull(bindings, "bindings");
+    checkNotNull(state, "state");
+
+    final int inputCount = inputs.size();
+    final int runCount = bindings.size();
+    final Object[][] values = new Object[runCount][];
+    final ListenableFuture<?>[][] futures = new ListenableFuture<?>[runCount][];
+    final TraverseState[] states = new TraverseState[runCount];
+
+    for (int run = 0; run < runCount; run++) {
+      final Object[] runBindings = bindings.get(run);
+      checkArgument(runBindings.length == inputCount,
+                    "wrong number of bindings: %s", runBindings.length);
+
+      values[run] = new Object[inputCount];
+      futures[run] = new ListenableFuture<?>[inputCount + steps.size()];
+      states[run] = run == 0 ? state : state.newRun();
+      states[run].prepareCalls(steps.size());
+
+      for (int i = 0; i < inputCount; i++) {
+        values[run][i] = runBindings[i] != null ? runBindings[i] : subgraphBindings[i];
+        futures[run][i] = inputFuture(i, values[run][i]);
+      }
+    }
+
+    final boolean[][] needed = new boolean[runCount][];
+    final List<?>[][] cacheKeys = new List<?>[runCount][];
+
+    if (hasCachedSteps) {
+      for (int run = 0; run < runCount; run++) {
+        needed[run] = new boolean[steps.size()];
+        cacheKeys[run] = new List<?>[steps.size()];
+        lookupCachedSteps(values[run], futures[run], needed[run], cacheKeys[run]);
+      }
+    }
+
+    // the first run to invoke a step with each key; the runs sharing the invocation record the
+    // debug information of that run
+    final Map<List<Object>, Integer> invocations = Maps.newHashMap();
+
+    for (int i = 0; i < steps.size(); i++) {
+      final Step<?> step = steps.get(i);
+
+      for (int run = 0; run < runCount; run++) {
+        if (hasCachedSteps && (!needed[run][i] || futures[run][inputCount + i] != null)) {
+          continue;
+        }
+
+        final List<Object> key = step.invocationKey(values[run]);
+        final Integer invoked = invocations.get(key);
+
+        if (invoked == null) {
+          futures[run][inputCount + i] = step.future(futures[run], states[run], i,
+                                                     hasCachedSteps ? cacheKeys[run][i] : null);
+          invocations.put(key, run);
+        } else {
+          futures[run][inputCount + i] = futures[invoked][inputCount + i];
+          states[run].recordShared(i, states[invoked]);
+        }
+      }
+
+      invocations.clear();
+    }
+
+    final List<ListenableFuture<R>> results = Lists.newArrayListWithCapacity(runCount);
+    for (int run = 0; run < runCount; run++) {
+      // the root is always the last step, and its type is guaranteed by the compiler
+      //noinspection unchecked
+      results.add((ListenableFuture<R>) futures[run][inputCount + steps.size() - 1]);
+    }
+
+    final ListenableFuture<List<R>> result = allAsList(results);
+
+    if (!result.isDone()) {
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (result.isCancelled()) {
+            for (ListenableFuture<?>[] runFutures : futures) {
+              cancelSteps(runFutures);
+            }
+          }
+        }
+      }, sameThreadExecutor());
+    }
+
+    return result;
+  }
+
+  /**
+   * Cancels the futures of all the steps of a run. Slots of steps that weren't run, because they
+   * were only needed by a cached step, are null.
+   */
+  private void cancelSteps(ListenableFuture<?>[] slots) {
+    for (int i = inputs.size(); i < slots.length; i++) {
+      if (slots[i] != null) {
+        slots[i].cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Works backwards from the root to find out which steps need to run, filling in the slots of
+   * cached steps that have a cache hit. A step is needed if it is the root or if a needed step
+   * that didn't have a cache hit depends on it. Steps that aren't needed are left null in the
+   * slots array.
+   *
+   * @param values    the values bound to the inputs of the plan
+   * @param slots     the slots of the run, with the input slots filled in
+   * @param needed    receives true for every step that needs to run, or had a cache hit
+   * @param cacheKeys receives the cache key for every cached step that needs to run, if a key
+   *                  could be computed
+   */
+  private void lookupCachedSteps(Object[] values, ListenableFuture<?>[] slots,
+                                 boolean[] needed, List<?>[] cacheKeys) {
+    final int inputCount = inputs.size();
+    final Object[] keyValues = new Object[inputCount];
+
+    for (int i = 0; i < inputCount; i++) {
+      keyValues[i] = cacheKeyValue(values[i]);
+    }
+
+    needed[needed.length - 1] = true;
+
+    for (int i = needed.length - 1; i >= 0; i--) {
+      if (!needed[i]) {
+        continue;
+      }
+
+      final Step<?> step = steps.get(i);
+
+      if (step.cache != null) {
+        final List<Object> key = step.invocationKey(keyValues);
+
+        if (!key.contains(UNKNOWN)) {
+          final ListenableFuture<?> cached = step.cache.lookup(key);
+          if (cached != null) {
+            slots[inputCount + i] = cached;
+            continue;
+          }
+
+          cacheKeys[i] = key;
+        }
+      }
+
+      markNeeded(step.arguments, needed, inputCount);
+      markNeeded(step.predecessors, needed, inputCount);
+    }
+  }
+
+  private static void markNeeded(int[] slots, boolean[] needed, int inputCount) {
+    for (int slot : slots) {
+      if (slot >= inputCount) {
+        needed[slot - inputCount] = true;
+      }
+    }
+  }
+
+  /**
+   * Returns the value to use for an input in cache keys; the value itself, or the result of a
+   * future that has completed successfully, or {@link #UNKNOWN}.
+   */
+  private static Object cacheKeyValue(Object value) {
+    if (!(value instanceof ListenableFuture)) {
+      return value;
+    }
+
+    final ListenableFuture<?> future = (ListenableFuture<?>) value;
+
+    if (!future.isDone() || Step.failure(future) != null) {
+      return UNKNOWN;
+    }
+
+    return Futures.getUnchecked(future);
+  }
+
+  ImmutableList<Input<?>> getInputs() {
+    return inputs;
+  }
+
+  /**
+   * Returns the slot of an input, or -1 if the input isn't used in this plan.
+   */
+  int inputIndex(Input<?> input) {
+    final Integer index = inputIndexes.get(checkNotNull(input, "input"));
+
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * Returns true if the input in the given slot is bound by a subgraph of this plan, meaning it
+   * mustn't be bound again.
+   */
+  boolean isBoundBySubgraph(int inputIndex) {
+    return subgraphBindings[inputIndex] != null;
+  }
+
+  /**
+   * Returns an array with no bound inputs. The array is shared and must not be modified.
+   */
+  Object[] noBindings() {
+    return noBindings;
+  }
+
+  private ListenableFuture<?> inputFuture(int index, @Nullable Object bindingValue) {
+    checkArgument(bindingValue != null,
+                  "Input not bound to a value for input %s", inputs.get(index));
+
+    if (bindingValue instanceof ListenableFuture) {
+      return (ListenableFuture<?>) bindingValue;
+    } else {
+      return immediateFuture(bindingValue);
+    }
+  }
+
+  /**
+   * A single node invocation in the plan, with the slots of its arguments and predecessors, and
+   * of all the inputs it depends on directly or indirectly.
+   */
+  private static final class Step<T> {
+    private final GraphBuilder<T> graph;
+    private final NodeInfo nodeInfo;
+    private final int[] arguments;
+    private final int[] predecessors;
+    private final int[] inputDependencies;
+    @Nullable
+    private final NodeCache cache;
+    // the executor the node should be invoked on, or null to use the run's executor
+    @Nullable
+    private final Executor executor;
+    @Nullable
+    private final RetryPolicy retry;
+
+    Step(GraphBuilder<T> graph, NodeInfo nodeInfo, int[] arguments, int[] predecessors,
+         int[] inputDependencies) {
+      this.graph = graph;
+      this.nodeInfo = nodeInfo;
+      this.arguments = arguments;
+      this.predecessors = predecessors;
+      this.inputDependencies = inputDependencies;
+      this.cache = graph.getCache().orNull();
+      this.executor = graph.getExecutor().isPresent()
+                      ? new AffinityExecutor(graph.getExecutor().get())
+                      : null;
+      this.retry = graph.getRetry().orNull();
+    }
+
+    /**
+     * Returns a key that is equal for all runs where this step is invoked with the same inputs,
+     * based on the values bound to the inputs the step depends on directly or indirectly. For a
+     * cached step, the values are in an order that doesn't depend on the plan, so that keys are
+     * equal across all the plans that share the step's cache.
+     */
+    List<Object> invocationKey(Object[] inputValues) {
+      final Object[] key = new Object[inputDependencies.length];
+
+      for (int i = 0; i < key.length; i++) {
+        key[i] = inputValues[inputDependencies[i]];
+      }
+
+      return Arrays.asList(key);
+    }
+
+    /**
+     * Returns a future for the result of this step.
+     *
+     * @param callIndex the slot in which to record debug information about the invocation
+     * @param cacheKey  if not null, the key under which a successful result from the node should
+     *                  be stored in the step's cache
+     */
+    ListenableFuture<T> future(ListenableFuture<?>[] slots, TraverseState state, int callIndex,
+                               @Nullable List<?> cacheKey) {
+      final ImmutableList.Builder<ListenableFuture<?>> futuresListBuilder = ImmutableList.builder();
+
+      for (int argument : arguments) {
+        futuresListBuilder.add(slots[argument]);
+      }
+
+      final ImmutableList<ListenableFuture<?>> futures = futuresListBuilder.build();
+      final NodeExecution execution = newExecution(state);
+
+      if (execution != null) {
+        execution.scheduled();
+      }
+
+      final TraverseState.FutureCallInformation currentCall =
+          state.record(callIndex, nodeInfo, futures);
+      final NodeExecutionFallback<T> fallback =
+          new NodeExecutionFallback<T>(graph, currentCall, state, execution);
+
+      if (state.canRunInline() && executor == null && retry == null && allDone(futures)
+          && allDone(slots, predecessors)) {
+        return runInline(futures, slots, state, execution, fallback, cacheKey);
+      }
+
+      return new NodeFuture<T>(this, futures, state, execution, fallback, cacheKey)
+          .awaitInputs(slots);
+    }
+
+    @Nullable
+    private NodeExecution newExecution(TraverseState state) {
+      final ExecutionListener listener = state.getListener();
+
+      return listener == null ? null : new NodeExecution(nodeInfo, listener);
+    }
+
+    /**
+     * Invokes the node directly on the current thread, for when all its inputs are already
+     * available. This gives the same result as a {@link NodeFuture}, but without creating any
+     * futures or listeners at all.
+     */
+    private ListenableFuture<T> runInline(ImmutableList<ListenableFuture<?>> futures,
+                                          ListenableFuture<?>[] slots,
+                                          TraverseState state,
+                                          @Nullable NodeExecution execution,
+                                          NodeExecutionFallback<T> fallback,
+                                          @Nullable List<?> cacheKey) {
+      Throwable failure = firstFailure(futures);
+      for (int i = 0; failure == null && i < predecessors.length; i++) {
+        failure = failure(slots[predecessors[i]]);
+      }
+
+      if (failure != null) {
+        return failed(failure, execution, fallback);
+      }
+
+      if (execution != null) {
+        execution.startedInline();
+      }
+
+      final ListenableFuture<T> result;
+      try {
+        result = graph.getNode().run(argumentValues(futures), state.getExecutor(), execution);
+      } catch (Throwable t) {
+        return failed(t, execution, fallback);
+      }
+
+      if (result == null) {
+        return failed(new NullPointerException(
+            "Node " + nodeInfo.name() + " returned null instead of a future"), execution, fallback);
+      }
+
+      if (cacheKey != null) {
+        storeInCache(result, cacheKey);
+      }
+
+      if (!result.isDone()) {
+        return new NodeFuture<T>(this, futures, state, execution, fallback, null).follow(result);
+      }
+
+      failure = failure(result);
+      if (failure != null) {
+        return failed(failure, execution, fallback);
+      }
+
+      if (execution != null) {
+        execution.completed();
+      }
+
+      return result;
+    }
+
+    private ListenableFuture<T> failed(Throwable failure, @Nullable NodeExecution execution,
+                                       NodeExecutionFallback<T> fallback) {
+      if (execution != null) {
+        execution.failed(failure);
+      }
+
+      return fallback.create(failure);
+    }
+
+    private void storeInCache(ListenableFuture<T> result, final List<?> cacheKey) {
+      Futures.addCallback(result, new FutureCallback<T>() {
+        @Override
+        public void onSuccess(@Nullable T value) {
+          cache.put(cacheKey, value);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          // failures aren't cached
+        }
+      });
+    }
+
+    /**
+     * Copies the values of completed argument futures into a list, so that nodes can access them
+     * any number of times without going back to the futures.
+     */
+    private static List<Object> argumentValues(ImmutableList<ListenableFuture<?>> values) {
+      if (values.isEmpty()) {
+        return ImmutableList.of();
+      }
+
+      final Object[] result = new Object[values.size()];
+
+      for (int i = 0; i < result.length; i++) {
+        result[i] = inputValueFromFuture(values.get(i));
+      }
+
+      return new ArgumentList(result);
+    }
+
+    private static boolean allDone(List<ListenableFuture<?>> futures) {
+      for (int i = 0; i < futures.size(); i++) {
+        if (!futures.get(i).isDone()) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    private static boolean allDone(ListenableFuture<?>[] slots, int[] indexes) {
+      for (int index : indexes) {
+        if (!slots[index].isDone()) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    @Nullable
+    private static Throwable firstFailure(List<ListenableFuture<?>> futures) {
+      for (int i = 0; i < futures.size(); i++) {
+        Throwable failure = failure(futures.get(i));
+        if (failure != null) {
+          return failure;
+        }
+      }
+
+      return null;
+    }
+
+    /**
+     * Returns the reason a completed future failed, or null if it succeeded.
+     */
+    @Nullable
+    private static Throwable failure(ListenableFuture<?> future) {
+      try {
+        Uninterruptibles.getUninterruptibly(future);
+        return null;
+      } catch (ExecutionException e) {
+        return e.getCause();
+      } catch (CancellationException e) {
+        return e;
+      }
+    }
+
+    private static Object inputValueFromFuture(ListenableFuture<?> input) {
+      try {
+        return Uninterruptibles.getUninterruptibly(input);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), GraphExecutionException.class);
+        throw Throwables.propagate(e);
+      }
+    }
+  }
+
+  /**
+   * The future for the result of a node that can't be computed right away. It waits for the node's
+   * arguments and predecessors, invokes the node on the run's executor, and applies the node's
+   * fallback if anything fails. This does the work of a combination of allAsList(), transform()
+   * and withFallback(), but with a single future and a single listener per dependency, rather
+   * than a chain of futures that each listen to the previous one.
+   *
+   * The outcome of the node is settled exactly once, by whichever comes first of the node's
+   * result, the failure of a dependency, the expiry of the run's deadline and cancellation. Only
+   * the settled outcome is reported to the run's listener and passed to the fallback. A node with
+   * a {@link RetryPolicy} is invoked again after a failure that the policy allows retrying, and its
+   * outcome is only settled by the last attempt.
+   */
+  @SuppressWarnings("rawtypes")
+  private static final class NodeFuture<T> extends AbstractFuture<T> implements Runnable {
+    private static final AtomicIntegerFieldUpdater<NodeFuture> REMAINING =
+        AtomicIntegerFieldUpdater.newUpdater(NodeFuture.class, "remaining");
+    private static final AtomicIntegerFieldUpdater<NodeFuture> SETTLED =
+        AtomicIntegerFieldUpdater.newUpdater(NodeFuture.class, "settled");
+    private static final AtomicReferenceFieldUpdater<NodeFuture, Throwable> EARLY_FAILURE =
+        AtomicReferenceFieldUpdater.newUpdater(NodeFuture.class, Throwable.class, "earlyFailure");
+
+    private final Step<T> step;
+    private final ImmutableList<ListenableFuture<?>> arguments;
+    private final TraverseState state;
+    @Nullable
+    private final NodeExecution execution;
+    private final NodeExecutionFallback<T> fallback;
+    @Nullable
+    private final List<?> cacheKey;
+
+    private volatile int remaining;
+    private volatile int settled;
+    // the failure of an input or the expiry of the deadline, to apply on the executor
+    @Nullable
+    private volatile Throwable earlyFailure;
+    // the node's result, or the fallback's once the node has failed; cancelled with this future
+    @Nullable
+    private volatile ListenableFuture<?> current;
+    // the number of times the node has been invoked, and the timer for the next retry, if any
+    private volatile int attempts;
+    @Nullable
+    private volatile TimerWheel.Timeout retryTimer;
+
+    NodeFuture(Step<T> step,
+               ImmutableList<ListenableFuture<?>> arguments,
+               TraverseState state,
+               @Nullable NodeExecution execution,
+               NodeExecutionFallback<T> fallback,
+               @Nullable List<?> cacheKey) {
+      this.step = step;
+      this.arguments = arguments;
+      this.state = state;
+      this.execution = execution;
+      this.fallback = fallback;
+      this.cacheKey = cacheKey;
+    }
+
+    /**
+     * Invokes the node once its arguments and the given predecessor slots have completed.
+     */
+    NodeFuture<T> awaitInputs(ListenableFuture<?>[] slots) {
+      watchDeadline();
+
+      final int[] predecessors = step.predecessors;
+      remaining = arguments.size() + predecessors.length;
+
+      if (remaining == 0) {
+        inputsReady();
+        return this;
+      }
+
+      for (int i = 0; i < arguments.size(); i++) {
+        awaitInput(arguments.get(i));
+      }
+      for (int predecessor : predecessors) {
+        awaitInput(slots[predecessor]);
+      }
+
+      return this;
+    }
+
+    /**
+     * Completes with the result of a node that has already been invoked.
+     */
+    NodeFuture<T> follow(ListenableFuture<T> result) {
+      watchDeadline();
+      awaitResult(result);
+
+      return this;
+    }
+
+    private void watchDeadline() {
+      final ListenableFuture<?> expiry = state.deadlineExpiry();
+
+      if (expiry == null) {
+        return;
+      }
+
+      expiry.addListener(new Runnable() {
+        @Override
+        public void run() {
+          failEarly(Step.failure(expiry));
+        }
+      }, sameThreadExecutor());
+    }
+
+    private void awaitInput(final ListenableFuture<?> input) {
+      input.addListener(new Runnable() {
+        @Override
+        public void run() {
+          final Throwable failure = Step.failure(input);
+
+          if (failure != null) {
+            failEarly(failure);
+          } else if (REMAINING.decrementAndGet(NodeFuture.this) == 0) {
+            inputsReady();
+          }
+        }
+      }, sameThreadExecutor());
+    }
+
+    /**
+     * Fails the node before it has completed, because an input failed or the deadline expired.
+     * Like the node, the fallback runs on the executor, which keeps a failure propagating through
+     * a long chain of nodes from nesting a call per node, and keeps the fallback and the nodes
+     * after it off the thread that completed the failed future, such as the timer's.
+     */
+    private void failEarly(Throwable failure) {
+      if (EARLY_FAILURE.compareAndSet(this, null, failure)) {
+        dispatch();
+      }
+    }
+
+    private void inputsReady() {
+      if (settled != 0) {
+        return;
+      }
+
+      if (execution != null) {
+        execution.inputsReady();
+      }
+
+      dispatch();
+    }
+
+    private Executor executor() {
+      return step.executor != null ? step.executor : state.getExecutor();
+    }
+
+    private void dispatch() {
+      try {
+        executor().execute(this);
+      } catch (RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    /**
+     * Invokes the node, or its fallback if an input failed or the deadline expired; called on the
+     * run's executor once all inputs are ready, or once it has failed early.
+     */
+    @Override
+    public void run() {
+      if (settled != 0) {
+        return;
+      }
+
+      final Throwable failure = earlyFailure;
+      if (failure != null) {
+        fail(failure);
+        return;
+      }
+
+      if (attempts++ == 0 && execution != null) {
+        execution.started();
+      }
+
+      final ListenableFuture<T> result;
+      try {
+        result = step.graph.getNode()
+            .run(Step.argumentValues(arguments), executor(), execution);
+      } catch (Throwable t) {
+        nodeFailed(t);
+        return;
+      }
+
+      if (result == null) {
+        fail(new NullPointerException(
+            "Node " + step.nodeInfo.name() + " returned null instead of a future"));
+        return;
+      }
+
+      if (cacheKey != null) {
+        step.storeInCache(result, cacheKey);
+      }
+
+      awaitResult(result);
+    }
+
+    private void awaitResult(final ListenableFuture<T> result) {
+      current = result;
+
+      // the run may have been cancelled, or its deadline expired, while the node was invoked
+      if (isCancelled() || settled != 0) {
+        result.cancel(false);
+        return;
+      }
+
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          final Throwable failure = Step.failure(result);
+
+          if (failure != null) {
+            nodeFailed(failure);
+          } else if (settle()) {
+            if (execution != null) {
+              execution.completed();
+            }
+
+            set(Futures.getUnchecked(result));
+          }
+        }
+      }, sameThreadExecutor());
+    }
+
+    /**
+     * Retries the node after a backoff if its retry policy and the run's retry budget allow it,
+     * and fails otherwise. Nothing else happens in between, since the node's next attempt is only
+     * scheduled once the previous one has completed.
+     */
+    private void nodeFailed(Throwable failure) {
+      final RetryPolicy retry = step.retry;
+
+      if (retry == null || settled != 0 || !retry.shouldRetry(failure, attempts)
+          || !state.tryRetry(retry.runBudget())) {
+        fail(failure);
+        return;
+      }
+
+      final long delayNanos = retry.delayNanos(attempts);
+
+      if (delayNanos <= 0) {
+        dispatch();
+        return;
+      }
+
+      final TimerWheel.Timeout timer = Timers.schedule(new Runnable() {
+        @Override
+        public void run() {
+          // a run on the same thread executor would retry the node on the timer thread
+          if (step.executor == null && state.canRunInline()) {
+            Timers.executor().execute(NodeFuture.this);
+          } else {
+            dispatch();
+          }
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+
+      retryTimer = timer;
+
+      // the deadline may have expired, or the run been cancelled, while scheduling
+      if (settled != 0) {
+        timer.cancel();
+      }
+    }
+
+    private void fail(Throwable failure) {
+      if (!settle()) {
+        return;
+      }
+
+      cancelRetry();
+
+      // if the run's deadline expired while the node was in progress, stop it so that it doesn't
+      // keep using resources for a result that will never be used; otherwise it has completed
+      final ListenableFuture<?> running = current;
+      if (running != null) {
+        running.cancel(false);
+      }
+
+      if (execution != null) {
+        execution.failed(failure);
+      }
+
+      final ListenableFuture<T> fallbackResult;
+      try {
+        fallbackResult = checkNotNull(fallback.create(failure), "fallback result");
+      } catch (Throwable t) {
+        setException(t);
+        return;
+      }
+
+      if (fallbackResult.isDone()) {
+        completeWith(fallbackResult);
+        return;
+      }
+
+      current = fallbackResult;
+
+      if (isCancelled()) {
+        fallbackResult.cancel(false);
+        return;
+      }
+
+      fallbackResult.addListener(new Runnable() {
+        @Override
+        public void run() {
+          completeWith(fallbackResult);
+        }
+      }, sameThreadExecutor());
+    }
+
+    private void completeWith(ListenableFuture<T> future) {
+      final Throwable failure = Step.failure(future);
+
+      if (failure == null) {
+        set(Futures.getUnchecked(future));
+      } else {
+        setException(failure);
+      }
+    }
+
+    private boolean settle() {
+      return SETTLED.compareAndSet(this, 0, 1);
+    }
+
+    private void cancelRetry() {
+      final TimerWheel.Timeout timer = retryTimer;
+      if (timer != null) {
+        timer.cancel();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+
+      final ListenableFuture<?> running = current;
+      if (running != null) {
+        running.cancel(mayInterruptIfRunning);
+      }
+
+      cancelRetry();
+
+      if (settle() && execution != null) {
+        execution.failed(new CancellationException("Node cancelled"));
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * Read-only list of node argument values, backed directly by an array. Unlike {@link
+   * ImmutableList}, it permits null values.
+   */
+  private static final class ArgumentList extends AbstractList<Object> implements RandomAccess {
+    private final Object[] values;
+
+    ArgumentList(Object[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public Object get(int index) {
+      return values[index];
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+  }
+
+  /**
+   * Flattens a graph into a plan by a depth-first, post-order traversal, so that every node ends
+   * up after all the nodes it depends on.
+   */
+  private static final class Compiler {
+    private final Map<Graph<?>, Integer> nodeIndexes = Maps.newIdentityHashMap();
+    private final Map<Input<?>, Integer> inputIndexes = Maps.newLinkedHashMap();
+    private final Map<Input<?>, Object> subgraphBindings = Maps.newHashMap();
+    private final List<GraphBuilder<?>> graphs = Lists.newArrayList();
+    private final List<NodeInfo> nodeInfos = Lists.newArrayList();
+    private final List<int[]> arguments = Lists.newArrayList();
+    private final List<int[]> predecessors = Lists.newArrayList();
+
+    <R> ExecutionPlan<R> compile(GraphBuilder<R> root) {
+      visit(root);
+
+      final int inputCount = inputIndexes.size();
+      final ImmutableList.Builder<Step<?>> steps = ImmutableList.builder();
+      final int[][] argumentSlots = new int[graphs.size()][];
+      final int[][] predecessorSlots = new int[graphs.size()][];
+      final BitSet[] inputDependencies = new BitSet[graphs.size()];
+
+      for (int i = 0; i < graphs.size(); i++) {
+        argumentSlots[i] = toSlots(arguments.get(i), inputCount);
+        predecessorSlots[i] = toSlots(predecessors.get(i), inputCount);
+
+        inputDependencies[i] = new BitSet(inputCount);
+        addInputDependencies(inputDependencies, i, argumentSlots[i], inputCount);
+        addInputDependencies(inputDependencies, i, predecessorSlots[i], inputCount);
+
+        // the keys of cached steps must mean the same in every plan that shares the cache
+        final int[] dependencies = graphs.get(i).getCache().isPresent()
+            ? inDependencyOrder(i, inputDependencies[i], argumentSlots, predecessorSlots,
+                                inputCount)
+            : toArray(inputDependencies[i]);
+
+        steps.add(step(graphs.get(i), nodeInfos.get(i), argumentSlots[i], predecessorSlots[i],
+                       dependencies));
+      }
+
+      final Object[] bindings = new Object[inputCount];
+      for (Map.Entry<Input<?>, Integer> entry : inputIndexes.entrySet()) {
+        bindings[entry.getValue()] = subgraphBindings.get(entry.getKey());
+      }
+
+      return new ExecutionPlan<R>(ImmutableList.copyOf(inputIndexes.keySet()),
+                                  bindings,
+                                  steps.build());
+    }
+
+    /**
+     * Adds the node for a graph and all its dependencies, returning its index among the nodes.
+     * This is a depth-first traversal using an explicit stack rather than recursion, so that the
+     * depth of the graph isn't limited by the size of the thread stack.
+     */
+    private int visit(Graph<?> root) {
+      final Integer existing = nodeIndexes.get(root);
+      if (existing != null) {
+        return existing;
+      }
+
+      final Deque<Visit> stack = new ArrayDeque<Visit>();
+      stack.push(new Visit(root));
+
+      while (true) {
+        final Visit visit = stack.peek();
+        final Graph<?> dependency = visit.nextDependency();
+
+        if (dependency != null) {
+          stack.push(new Visit(dependency));
+          continue;
+        }
+
+        stack.pop();
+        final int index = add(visit);
+
+        if (stack.isEmpty()) {
+          return index;
+        }
+
+        stack.peek().dependencyAdded(index);
+      }
+    }
+
+    private int add(Visit visit) {
+      final int index = graphs.size();
+      nodeIndexes.put(visit.graph, index);
+      graphs.add(visit.builder);
+      nodeInfos.add(visit.graph);
+      arguments.add(visit.argumentRefs);
+      predecessors.add(visit.predecessorRefs);
+
+      return index;
+    }
+
+    /**
+     * A graph being visited, keeping track of which of its arguments and predecessors have been
+     * resolved so far. Arguments are resolved in order, followed by predecessors.
+     */
+    private final class Visit {
+      private final Graph<?> graph;
+      private final GraphBuilder<?> builder;
+      private final ImmutableList<Dep<?>> inputs;
+      private final ImmutableList<Graph<?>> predecessorGraphs;
+      private final int[] argumentRefs;
+      private final int[] predecessorRefs;
+      private int position;
+
+      Visit(Graph<?> graph) {
+        this.graph = graph;
+
+        if (graph instanceof GraphBuilder) {
+          builder = (GraphBuilder<?>) graph;
+        } else if (graph instanceof PreparedGraph) {
+          PreparedGraph<?> preparedGraph = (PreparedGraph<?>) graph;
+          addBindings(preparedGraph);
+          builder = preparedGraph.getGraph();
+        } else {
+          throw new IllegalStateException("PROGRAMMER ERROR: illegal graph object: " + graph);
+        }
+
+        inputs = builder.getInputs();
+        predecessorGraphs = builder.getPredecessors();
+        argumentRefs = new int[inputs.size()];
+        predecessorRefs = new int[predecessorGraphs.size()];
+      }
+
+      /**
+       * Resolves the references of the following arguments and predecessors that are inputs or
+       * nodes that have already been added, and returns the first one that needs to be visited,
+       * or null if all have been resolved.
+       */
+      @Nullable
+      Graph<?> nextDependency() {
+        while (position < argumentRefs.length) {
+          final Dep<?> dep = inputs.get(position);
+
+          if (dep instanceof BindingDep) {
+            argumentRefs[position++] = inputReference(((BindingDep<?>) dep).getInput());
+          } else if (dep instanceof GraphDep) {
+            final Graph<?> dependency = ((GraphDep<?>) dep).getGraph();
+            final Integer index = nodeIndexes.get(dependency);
+
+            if (index == null) {
+              return dependency;
+            }
+
+            argumentRefs[position++] = index;
+          } else {
+            throw new IllegalStateException("PROGRAMMER ERROR: illegal dependency: " + dep);
+          }
+        }
+
+        while (position < argumentRefs.length + predecessorRefs.length) {
+          final Graph<?> dependency = predecessorGraphs.get(position - argumentRefs.length);
+          final Integer index = nodeIndexes.get(dependency);
+
+          if (index == null) {
+            return dependency;
+          }
+
+          predecessorRefs[position++ - argumentRefs.length] = index;
+        }
+
+        return null;
+      }
+
+      /**
+       * Records the index of the dependency returned by the last call to {@link
+       * #nextDependency()}, once it has been added.
+       */
+      void dependencyAdded(int index) {
+        if (position < argumentRefs.length) {
+          argumentRefs[position++] = index;
+        } else {
+          predecessorRefs[position++ - argumentRefs.length] = index;
+        }
+      }
+    }
+
+    private void addBindings(PreparedGraph<?> graph) {
+      final Map<Input<?>, Object> newBindings = Maps.newHashMap();
+      graph.collectBindings(newBindings);
+
+      Sets.SetView<Input<?>> intersection =
+          Sets.intersection(subgraphBindings.keySet(), newBindings.keySet());
+      checkState(intersection.isEmpty(), "Duplicate binding for inputs: %s", intersection);
+
+      subgraphBindings.putAll(newBindings);
+    }
+
+    /**
+     * Returns a reference to the slot for an input; node indexes are non-negative, while the index
+     * i of an input is encoded as -(i + 1) until the number of inputs is known.
+     */
+    private int inputReference(Input<?> input) {
+      Integer index = inputIndexes.get(input);
+      if (index == null) {
+        index = inputIndexes.size();
+        inputIndexes.put(input, index);
+      }
+      return -(index + 1);
+    }
+
+    private static int[] toSlots(int[] references, int inputCount) {
+      final int[] slots = new int[references.length];
+
+      for (int i = 0; i < references.length; i++) {
+        slots[i] = references[i] < 0 ? -(references[i] + 1) : inputCount + references[i];
+      }
+
+      return slots;
+    }
+
+    /**
+     * Adds the inputs that the given slots depend on to the dependencies of a node. Since nodes
+     * are visited in topological order, the dependencies of any node slots are already known.
+     */
+    private static void addInputDependencies(BitSet[] dependencies, int index, int[] slots,
+                                             int inputCount) {
+      for (int slot : slots) {
+        if (slot < inputCount) {
+          dependencies[index].set(slot);
+        } else {
+          dependencies[index].or(dependencies[slot - inputCount]);
+        }
+      }
+    }
+
+    /**
+     * Returns the slots of the inputs a node depends on in the order in which a depth-first
+     * traversal of its arguments and predecessors first reaches them. Unlike the order of the
+     * slots, which depends on the plan the node is part of, this order is the same in every plan.
+     */
+    private static int[] inDependencyOrder(int index, BitSet dependencies, int[][] argumentSlots,
+                                           int[][] predecessorSlots, int inputCount) {
+      final int[] result = new int[dependencies.cardinality()];
+      final BitSet reachedInputs = new BitSet(inputCount);
+      final BitSet reachedNodes = new BitSet(argumentSlots.length);
+      int found = 0;
+
+      // pairs of a node index and the position of the next of its dependencies to traverse
+      final Deque<int[]> stack = new ArrayDeque<int[]>();
+      stack.push(new int[]{index, 0});
+      reachedNodes.set(index);
+
+      while (!stack.isEmpty()) {
+        final int[] visit = stack.peek();
+        final int[] nodeArguments = argumentSlots[visit[0]];
+        final int[] nodePredecessors = predecessorSlots[visit[0]];
+
+        if (visit[1] == nodeArguments.length + nodePredecessors.length) {
+          stack.pop();
+          continue;
+        }
+
+        final int slot = visit[1] < nodeArguments.length
+                         ? nodeArguments[visit[1]]
+                         : nodePredecessors[visit[1] - nodeArguments.length];
+        visit[1]++;
+
+        if (slot < inputCount) {
+          if (!reachedInputs.get(slot)) {
+            reachedInputs.set(slot);
+            result[found++] = slot;
+          }
+        } else if (!reachedNodes.get(slot - inputCount)) {
+          reachedNodes.set(slot - inputCount);
+          stack.push(new int[]{slot - inputCount, 0});
+        }
+      }
+
+      return result;
+    }
+
+    private static int[] toArray(BitSet bits) {
+      final int[] result = new int[bits.cardinality()];
+
+      for (int i = 0, bit = bits.nextSetBit(0); bit >= 0; i++, bit = bits.nextSetBit(bit + 1)) {
+        result[i] = bit;
+      }
+
+      return result;
+    }
+
+    private static <T> Step<T> step(GraphBuilder<T> graph, NodeInfo nodeInfo,
+                                    int[] arguments, int[] predecessors,
+                                    int[] inputDependencies) {
+      return new Step<T>(graph, nodeInfo, arguments, predecessors, inputDependencies);
+    }
+  }
+}
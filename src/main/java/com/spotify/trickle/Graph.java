@@ -18,7 +18,12 @@ package com.spotify.trickle;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 /**
  * A runnable graph, possibly with unbound input parameters.
@@ -52,6 +57,10 @@ public abstract class Graph<T> implements Parameter<T>, NodeInfo {
    * This is equivalent to calling {@link #run(java.util.concurrent.Executor)} with {@link
    * com.google.common.util.concurrent.MoreExecutors#sameThreadExecutor()}.
    *
+   * <p>Nodes that a timer resumes, for instance to retry them, to make a hedged call or to apply
+   * the fallback of a timed out node, have no future completing on a thread of the caller's. They
+   * run on a small pool of daemon threads shared by all graphs instead, so they shouldn't block.
+   *
    * @return a future for the value returned by the graph execution
    * @throws IllegalArgumentException if not all {@link Input}s used in node invocations are bound
    *                                  to values
@@ -69,12 +78,58 @@ public abstract class Graph<T> implements Parameter<T>, NodeInfo {
   public abstract ListenableFuture<T> run(Executor executor);
 
   /**
-   * Package private method for running the graph from an existing state.
+   * Run the graph, executing node methods on the supplied executor, with a time limit for the
+   * whole run. When the time is up, every node that hasn't yet completed fails with a {@link
+   * java.util.concurrent.TimeoutException}. That failure is handled by the nodes' fallbacks like
+   * any other, so a graph with fallbacks for slow nodes returns a degraded result within the time
+   * limit instead of failing.
    *
-   * @param state state to continue running from
-   * @return future for the value returned by the graph execution
+   * @param executor to run callbacks on
+   * @param timeout  the maximum time for the run, which must be positive
+   * @param unit     the unit of the timeout
+   * @return a future for the value returned by the graph execution
+   * @throws IllegalArgumentException if not all {@link Input}s used in node invocations are bound
+   *                                  to values
    */
-  abstract ListenableFuture<T> run(TraverseState state);
+  public abstract ListenableFuture<T> run(Executor executor, long timeout, TimeUnit unit);
+
+  /**
+   * Run the graph once for each of a list of bindings, executing all node methods on the thread
+   * that completes the underlying future. This is equivalent to calling {@link
+   * #runBatch(java.util.List, java.util.concurrent.Executor)} with {@link
+   * com.google.common.util.concurrent.MoreExecutors#sameThreadExecutor()}.
+   *
+   * @param bindings a list of input bindings, one for each time the graph should be run
+   * @return a future for the list of values returned by each graph execution
+   * @throws IllegalArgumentException if not all {@link Input}s used in node invocations are bound
+   *                                  to values in every binding
+   */
+  public abstract ListenableFuture<List<T>> runBatch(List<? extends Map<Input<?>, ?>> bindings);
+
+  /**
+   * Run the graph once for each of a list of bindings, executing node methods on the supplied
+   * executor. Each map in the list holds the values to bind for one graph execution, in addition
+   * to any values already bound to this graph; map values can be futures, just like with {@link
+   * #bind(Input, com.google.common.util.concurrent.ListenableFuture)}.
+   *
+   * <p>All the executions are set up in a single pass over the graph. A node is only invoked once
+   * for all the executions where the inputs it depends on, directly or indirectly, have equal
+   * values, so for instance nodes without any inputs are only invoked once for the whole batch.
+   *
+   * <p>The returned future fails if any of the graph executions fails; use {@link
+   * ConfigurableGraph#fallback(com.google.common.util.concurrent.AsyncFunction)} on the graph to
+   * get partial results instead.
+   *
+   * @param bindings a list of input bindings, one for each time the graph should be run
+   * @param executor to run callbacks on
+   * @return a future for the list of values returned by each graph execution, in the same order
+   * as the bindings
+   * @throws IllegalArgumentException if not all {@link Input}s used in node invocations are bound
+   *                                  to values in every binding
+   * @throws IllegalStateException    if a binding includes an input that is already bound
+   */
+  public abstract ListenableFuture<List<T>> runBatch(List<? extends Map<Input<?>, ?>> bindings,
+                                                     Executor executor);
 
   /**
    * Turns debug information on or off depending on the value of the <code>debug</code> parameter.
@@ -89,6 +144,41 @@ public abstract class Graph<T> implements Parameter<T>, NodeInfo {
    */
   public abstract Graph<T> debug(boolean debug);
 
+  /**
+   * Turns debug information on for a random sample of one in every {@code runs} runs of this
+   * graph, so that it can be left on in production at a low cost. Runs that aren't sampled behave
+   * as if debug information was off. {@code debugEvery(1)} is the same as {@code debug(true)}.
+   *
+   * @param runs the sampling interval; must be positive
+   * @return a Graph instance with the specified debug setting
+   */
+  public abstract Graph<T> debugEvery(int runs);
+
+  /**
+   * Turns lightweight exceptions on or off. The default is off. When on, the {@link
+   * GraphExecutionException}s that wrap node failures are created without a stack trace, and
+   * their message and {@link GraphExecutionException#getCalls() calls} are only rendered when
+   * asked for. That makes failing runs much cheaper, which matters when a dependency is failing
+   * every request. The stack trace of a wrapper exception rarely says much anyway, since it is
+   * created in a future callback; the stack trace of the original failure is kept as its cause.
+   *
+   * @param lightweightExceptions pass in <code>true</code> to turn on lightweight exceptions,
+   *                              <code>false</code> to turn them off.
+   * @return a Graph instance with the specified setting
+   */
+  public abstract Graph<T> lightweightExceptions(boolean lightweightExceptions);
+
+  /**
+   * Sets a listener that receives events about each node invocation when this graph is run,
+   * replacing any previously set listener. Listeners are only notified about runs of the graph
+   * they're set on; if this graph is used as a dependency of another graph, it is the outer
+   * graph's listener that applies.
+   *
+   * @param listener the listener to notify, or null for no listener
+   * @return a Graph instance with the specified listener
+   */
+  public abstract Graph<T> listener(@Nullable ExecutionListener listener);
+
   // prevent construction from outside of package
   Graph() {
   }
@@ -24,11 +24,14 @@ import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import static com.google.common.base.Optional.of;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.ImmutableList.copyOf;
 import static java.util.Arrays.asList;
@@ -44,47 +47,91 @@ class GraphBuilder<R> extends ConfigurableGraph<R> {
   private final ImmutableList<Graph<?>> predecessors;
 
   private final Optional<AsyncFunction<Throwable, R>> fallback;
+  private final Optional<NodeCache> cache;
+  private final Optional<Executor> executor;
+  private final Optional<RetryPolicy> retry;
 
-  private final boolean debug;
+  // 0 if debug information is off, otherwise it is collected for one in this many runs
+  private final int debugEvery;
+
+  // compiled lazily, since most builder instances are intermediate steps that are never run. A
+  // race just means the plan is compiled more than once, which is harmless.
+  private volatile ExecutionPlan<R> plan;
 
   GraphBuilder(String name,
                TrickleNode<R> node,
                ImmutableList<Dep<?>> inputs,
                ImmutableList<Graph<?>> predecessors,
                Optional<AsyncFunction<Throwable, R>> fallback,
-               boolean debug) {
+               Optional<NodeCache> cache,
+               Optional<Executor> executor,
+               Optional<RetryPolicy> retry,
+               int debugEvery) {
     this.name = checkNotNull(name, "name");
     this.node = checkNotNull(node, "node");
     this.inputs = checkNotNull(inputs, "inputs");
     this.predecessors = checkNotNull(predecessors, "predecessors");
     this.fallback = checkNotNull(fallback, "fallback");
-    this.debug = debug;
+    this.cache = checkNotNull(cache, "cache");
+    this.executor = checkNotNull(executor, "executor");
+    this.retry = checkNotNull(retry, "retry");
+    this.debugEvery = debugEvery;
   }
 
   GraphBuilder(Func<R> func) {
-    this("unnamed", TrickleNode.create(func), ImmutableList.<Dep<?>>of(),
-         ImmutableList.<Graph<?>>of(), Optional.<AsyncFunction<Throwable, R>>absent(), false);
+    this(TrickleNode.create(func));
+  }
+
+  GraphBuilder(TrickleNode<R> node) {
+    this("unnamed", node, ImmutableList.<Dep<?>>of(),
+         ImmutableList.<Graph<?>>of(), Optional.<AsyncFunction<Throwable, R>>absent(),
+         Optional.<NodeCache>absent(), Optional.<Executor>absent(),
+         Optional.<RetryPolicy>absent(), 0);
   }
 
   private GraphBuilder<R> withName(String name) {
-    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, debug);
+    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, cache, executor, retry,
+                               debugEvery);
   }
 
   private GraphBuilder<R> withInputs(ImmutableList<Dep<?>> newInputs) {
-    return new GraphBuilder<R>(name, node, with(inputs, newInputs), predecessors, fallback, debug);
+    return new GraphBuilder<R>(name, node, with(inputs, newInputs), predecessors, fallback, cache,
+                               executor, retry, debugEvery);
   }
 
   private GraphBuilder<R> withPredecessors(ImmutableList<Graph<?>> newPredecessors) {
     return new GraphBuilder<R>(name, node, inputs, with(predecessors, newPredecessors), fallback,
-                               debug);
+                               cache, executor, retry, debugEvery);
   }
 
   private GraphBuilder<R> withFallback(AsyncFunction<Throwable, R> fallback) {
-    return new GraphBuilder<R>(name, node, inputs, predecessors, of(fallback), debug);
+    return new GraphBuilder<R>(name, node, inputs, predecessors, of(fallback), cache, executor,
+                               retry, debugEvery);
+  }
+
+  private GraphBuilder<R> withNode(TrickleNode<R> node) {
+    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, cache, executor, retry,
+                               debugEvery);
+  }
+
+  private GraphBuilder<R> withCache(NodeCache cache) {
+    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, of(cache), executor,
+                               retry, debugEvery);
+  }
+
+  private GraphBuilder<R> withExecutor(Executor executor) {
+    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, cache, of(executor),
+                               retry, debugEvery);
+  }
+
+  private GraphBuilder<R> withRetry(RetryPolicy retry) {
+    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, cache, executor,
+                               of(retry), debugEvery);
   }
 
-  private GraphBuilder<R> withDebug(boolean debug) {
-    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, debug);
+  private GraphBuilder<R> withDebug(int debugEvery) {
+    return new GraphBuilder<R>(name, node, inputs, predecessors, fallback, cache, executor, retry,
+                               debugEvery);
   }
 
   static <E> ImmutableList<E> with(ImmutableList<E> list, List<E> elements) {
@@ -126,6 +173,46 @@ class GraphBuilder<R> extends ConfigurableGraph<R> {
     return withFallback(handler);
   }
 
+  @Override
+  public ConfigurableGraph<R> cached(NodeCache cache) {
+    return withCache(cache);
+  }
+
+  @Override
+  public ConfigurableGraph<R> coalesced() {
+    return withNode(new CoalescingNode<R>(node));
+  }
+
+  @Override
+  public ConfigurableGraph<R> timeout(long timeout, TimeUnit unit) {
+    return withNode(new TimeoutNode<R>(node, timeout, unit));
+  }
+
+  @Override
+  public ConfigurableGraph<R> bulkhead(Bulkhead bulkhead) {
+    return withNode(new BulkheadNode<R>(node, bulkhead));
+  }
+
+  @Override
+  public ConfigurableGraph<R> hedge(long delay, TimeUnit unit) {
+    return hedge(Hedging.after(delay, unit));
+  }
+
+  @Override
+  public ConfigurableGraph<R> hedge(Hedging hedging) {
+    return withNode(new HedgingNode<R>(node, hedging));
+  }
+
+  @Override
+  public ConfigurableGraph<R> executeOn(Executor executor) {
+    return withExecutor(executor);
+  }
+
+  @Override
+  public ConfigurableGraph<R> retry(RetryPolicy policy) {
+    return withRetry(policy);
+  }
+
   @Override
   public ConfigurableGraph<R> named(String name) {
     return withName(name);
@@ -138,32 +225,71 @@ class GraphBuilder<R> extends ConfigurableGraph<R> {
 
   @Override
   public Graph<R> debug(boolean debug) {
-    return withDebug(debug);
+    return withDebug(debug ? 1 : 0);
+  }
+
+  @Override
+  public Graph<R> debugEvery(int runs) {
+    checkArgument(runs > 0, "runs must be positive: %s", runs);
+
+    return withDebug(runs);
+  }
+
+  @Override
+  public Graph<R> lightweightExceptions(boolean lightweightExceptions) {
+    return new PreparedGraph<R>(this, debugEvery).lightweightExceptions(lightweightExceptions);
+  }
+
+  @Override
+  public Graph<R> listener(@Nullable ExecutionListener listener) {
+    return new PreparedGraph<R>(this, debugEvery).listener(listener);
   }
 
   @Override
   public <P> Graph<R> bind(Input<P> input, P value) {
-    return new PreparedGraph<R>(this, debug).bind(input, value);
+    return new PreparedGraph<R>(this, debugEvery).bind(input, value);
   }
 
   @Override
   public <P> Graph<R> bind(Input<P> input, ListenableFuture<P> inputFuture) {
-    return new PreparedGraph<R>(this, debug).bind(input, inputFuture);
+    return new PreparedGraph<R>(this, debugEvery).bind(input, inputFuture);
   }
 
   @Override
   public ListenableFuture<R> run() {
-    return new PreparedGraph<R>(this, debug).run();
+    return new PreparedGraph<R>(this, debugEvery).run();
   }
 
   @Override
   public ListenableFuture<R> run(Executor executor) {
-    return new PreparedGraph<R>(this, debug).run(executor);
+    return new PreparedGraph<R>(this, debugEvery).run(executor);
+  }
+
+  @Override
+  public ListenableFuture<R> run(Executor executor, long timeout, TimeUnit unit) {
+    return new PreparedGraph<R>(this, debugEvery).run(executor, timeout, unit);
   }
 
   @Override
-  ListenableFuture<R> run(TraverseState state) {
-    return new PreparedGraph<R>(this, debug).run(state);
+  public ListenableFuture<List<R>> runBatch(List<? extends Map<Input<?>, ?>> bindings) {
+    return new PreparedGraph<R>(this, debugEvery).runBatch(bindings);
+  }
+
+  @Override
+  public ListenableFuture<List<R>> runBatch(List<? extends Map<Input<?>, ?>> bindings,
+                                            Executor executor) {
+    return new PreparedGraph<R>(this, debugEvery).runBatch(bindings, executor);
+  }
+
+  ExecutionPlan<R> getPlan() {
+    ExecutionPlan<R> result = plan;
+
+    if (result == null) {
+      result = ExecutionPlan.compile(this);
+      plan = result;
+    }
+
+    return result;
   }
 
   TrickleNode<R> getNode() {
@@ -182,6 +308,18 @@ class GraphBuilder<R> extends ConfigurableGraph<R> {
     return fallback;
   }
 
+  Optional<NodeCache> getCache() {
+    return cache;
+  }
+
+  Optional<Executor> getExecutor() {
+    return executor;
+  }
+
+  Optional<RetryPolicy> getRetry() {
+    return retry;
+  }
+
   @Override
   public String name() {
     return name;
@@ -217,6 +355,10 @@ class GraphBuilder<R> extends ConfigurableGraph<R> {
       super(func);
     }
 
+    GraphBuilder1(TrickleNode<R> node) {
+      super(node);
+    }
+
     @Override
     @SuppressWarnings("PMD.UselessOverridingMethod")
     // this method override is not useless - it ensures that you can only call the 'with'
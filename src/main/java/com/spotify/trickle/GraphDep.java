@@ -16,8 +16,6 @@
 
 package com.spotify.trickle;
 
-import com.google.common.util.concurrent.ListenableFuture;
-
 import static com.google.common.base.Preconditions.checkNotNull;
 
 class GraphDep<T> implements Dep<T> {
@@ -28,9 +26,8 @@ class GraphDep<T> implements Dep<T> {
     this.graph = graph;
   }
 
-  @Override
-  public ListenableFuture<T> getFuture(TraverseState state) {
-    return state.futureForGraph(graph);
+  Graph<T> getGraph() {
+    return graph;
   }
 
   @Override
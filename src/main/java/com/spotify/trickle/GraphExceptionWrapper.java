@@ -16,11 +16,16 @@
 
 package com.spotify.trickle;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import static com.google.common.collect.ImmutableList.builder;
 import static com.google.common.collect.Lists.newLinkedList;
@@ -38,45 +43,132 @@ final class GraphExceptionWrapper {
   public static Throwable wrapException(Throwable t,
                                         TraverseState.FutureCallInformation currentCall,
                                         TraverseState traverseState) {
-    return new GraphExecutionException(t, asCallInfo(currentCall), callInfos(traverseState));
+    return wrap(t, currentCall, traverseState, false);
   }
 
-  private static List<CallInfo> callInfos(TraverseState state) {
-    ImmutableList.Builder<CallInfo> builder = builder();
+  /**
+   * Wraps the failure of a parameter of a call, for a node that was never invoked because of it.
+   * Unlike {@link #wrapException}, the failed parameters are described in the call info rather
+   * than thrown, so that the failure is reported once as a {@link GraphExecutionException}, which
+   * the nodes after it pass on as it is.
+   */
+  public static Throwable wrapParameterFailure(Throwable t,
+                                               TraverseState.FutureCallInformation currentCall,
+                                               TraverseState traverseState) {
+    return wrap(t, currentCall, traverseState, true);
+  }
+
+  private static Throwable wrap(Throwable t,
+                                final TraverseState.FutureCallInformation currentCall,
+                                TraverseState traverseState,
+                                boolean describeFailures) {
+    final Supplier<List<CallInfo>> calls = callInfos(completedCalls(traverseState));
+
+    if (!traverseState.lightweightExceptions()) {
+      return new GraphExecutionException(
+          t, Suppliers.ofInstance(asCallInfo(currentCall, describeFailures)), calls, true);
+    }
+
+    // keep a reference to the call and only read its parameter values if the message is needed;
+    // parameters that fail later are reported rather than making the message throw
+    return new GraphExecutionException(t, new Supplier<CallInfo>() {
+      @Override
+      public CallInfo get() {
+        return asCallInfo(currentCall, true);
+      }
+    }, calls, false);
+  }
+
+  /**
+   * Returns the calls that had been made when the exception happened; those whose parameters were
+   * all available. Calls whose parameters failed are left out, since the node was never invoked.
+   */
+  private static List<TraverseState.FutureCallInformation> completedCalls(TraverseState state) {
+    final List<TraverseState.FutureCallInformation> calls = state.getCalls();
+
+    if (calls.isEmpty()) {
+      return calls;
+    }
+
+    ImmutableList.Builder<TraverseState.FutureCallInformation> builder = builder();
 
-    for (TraverseState.FutureCallInformation futureCallInformation : state.getCalls()) {
-      if (futureCallInformation.isComplete()) {
-        builder.add(asCallInfo(futureCallInformation));
+    for (TraverseState.FutureCallInformation futureCallInformation : calls) {
+      if (futureCallInformation.isComplete() && !futureCallInformation.hasFailedParameter()) {
+        builder.add(futureCallInformation);
       }
     }
 
     return builder.build();
   }
 
-  private static CallInfo asCallInfo(TraverseState.FutureCallInformation futureCallInformation) {
+  /**
+   * Returns a supplier that converts calls to {@link CallInfo}s, reading the parameter values from
+   * their futures, the first time it is called. The futures of the calls must have completed
+   * successfully.
+   */
+  private static Supplier<List<CallInfo>> callInfos(
+      final List<TraverseState.FutureCallInformation> calls) {
+    if (calls.isEmpty()) {
+      return Suppliers.<List<CallInfo>>ofInstance(ImmutableList.<CallInfo>of());
+    }
+
+    return Suppliers.memoize(new Supplier<List<CallInfo>>() {
+      @Override
+      public List<CallInfo> get() {
+        ImmutableList.Builder<CallInfo> builder = builder();
+
+        for (TraverseState.FutureCallInformation futureCallInformation : calls) {
+          builder.add(asCallInfo(futureCallInformation, false));
+        }
+
+        return builder.build();
+      }
+    });
+  }
+
+  /**
+   * Converts a call to a {@link CallInfo}, reading the values of its parameters.
+   *
+   * @param describeFailures if true, failed parameters are described in the call info; otherwise
+   *                         their exceptions are thrown
+   */
+  private static CallInfo asCallInfo(TraverseState.FutureCallInformation futureCallInformation,
+                                     boolean describeFailures) {
     return new CallInfo(futureCallInformation.getNode(),
                         asParameterValues(futureCallInformation.getNode().arguments(),
-                                          futureCallInformation.getParameterFutures()));
+                                          futureCallInformation.getParameterFutures(),
+                                          describeFailures));
   }
 
   private static List<ParameterValue<?>> asParameterValues(List<? extends NodeInfo> parameters,
-                                                           List<ListenableFuture<?>> parameterFutures) {
+                                                           List<ListenableFuture<?>> parameterFutures,
+                                                           boolean describeFailures) {
     List<ParameterValue<?>> result = newLinkedList();
 
     for (int i = 0 ; i < parameters.size() ; i++) {
       result.add(new ParameterValue<Object>(parameters.get(i),
-                                            inputValueFromFuture(parameterFutures.get(i))));
+                                            inputValueFromFuture(parameterFutures.get(i),
+                                                                 describeFailures)));
     }
 
     return result;
   }
 
-  private static Object inputValueFromFuture(ListenableFuture<?> input) {
-    if (input.isDone()) {
+  private static Object inputValueFromFuture(ListenableFuture<?> input, boolean describeFailures) {
+    if (!input.isDone()) {
+      return "NOT TERMINATED FUTURE";
+    }
+
+    if (!describeFailures) {
       return Futures.getUnchecked(input);
     }
-    else {
-      return "NOT TERMINATED FUTURE";
+
+    try {
+      return Uninterruptibles.getUninterruptibly(input);
+    } catch (ExecutionException e) {
+      return "FAILED FUTURE: " + e.getCause();
+    } catch (CancellationException e) {
+      return "CANCELLED FUTURE";
     }
   }
 }
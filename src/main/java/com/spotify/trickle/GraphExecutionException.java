@@ -16,28 +16,97 @@
 
 package com.spotify.trickle;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * Exception type used to wrap any exception that happens when a graph is executed in debug mode.
  * The {@link #getCalls()} method can be used to retrieve information about which calls had been
  * made leading up to the exception.
+ *
+ * If the graph was run with {@link Graph#lightweightExceptions(boolean) lightweight exceptions},
+ * the exception has no stack trace, and its message and calls are rendered the first time they
+ * are asked for.
  */
 public class GraphExecutionException extends RuntimeException {
-  private final List<CallInfo> calls;
+  // rendered from the suppliers when first asked for, and before serialization
+  private transient Supplier<String> lazyMessage;
+  private transient Supplier<List<CallInfo>> lazyCalls;
+  private String message;
+  private List<CallInfo> calls;
+
+  // false while the Throwable constructor runs, which is when it calls fillInStackTrace()
+  private final boolean constructed;
 
   public GraphExecutionException(@Nullable Throwable cause, CallInfo currentCall, List<CallInfo> calls) {
-    super(currentCall.toString() + (cause == null ? "" : " failed with message " + cause.getMessage()),
-          cause);
+    this(cause,
+         Suppliers.ofInstance(checkNotNull(currentCall, "currentCall")),
+         Suppliers.<List<CallInfo>>ofInstance(ImmutableList.copyOf(calls)),
+         true);
+  }
+
+  /**
+   * Creates an exception whose message and list of calls are only built when asked for.
+   *
+   * @param stackTrace whether to fill in the stack trace
+   */
+  GraphExecutionException(@Nullable final Throwable cause, final Supplier<CallInfo> currentCall,
+                          Supplier<List<CallInfo>> calls, boolean stackTrace) {
+    super(null, cause);
+
+    checkNotNull(currentCall, "currentCall");
+
+    this.lazyMessage = new Supplier<String>() {
+      @Override
+      public String get() {
+        return currentCall.get().toString() +
+               (cause == null ? "" : " failed with message " + cause.getMessage());
+      }
+    };
+    this.lazyCalls = checkNotNull(calls, "calls");
+    this.constructed = true;
+
+    if (stackTrace) {
+      fillInStackTrace();
+    }
+  }
+
+  @Override
+  public String getMessage() {
+    // racing threads may both render the message, which is harmless
+    if (message == null) {
+      message = lazyMessage.get();
+    }
 
-    this.calls = ImmutableList.copyOf(calls);
+    return message;
   }
 
   public List<CallInfo> getCalls() {
+    if (calls == null) {
+      calls = lazyCalls.get();
+    }
+
     return calls;
   }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return constructed ? super.fillInStackTrace() : this;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    getMessage();
+    getCalls();
+
+    out.defaultWriteObject();
+  }
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Hedging of the nodes it is assigned to, shared by all runs of the graphs those nodes are part
+ * of. See {@link ConfigurableGraph#hedge(Hedging)}. When a call to a node hasn't completed within
+ * the hedging delay, the node is invoked a second time with the same arguments, and whichever
+ * call succeeds first provides the result; the other one is cancelled. This cuts the tail latency
+ * of nodes whose slow calls are caused by, for instance, a slow replica of a backend. A call only
+ * fails if both calls do, or if it fails before the hedge is made.
+ *
+ * The delay is either fixed, or a percentile of the latencies of the node's calls, which is
+ * recomputed every {@value #WINDOW} calls from the latencies of those calls. The latency of a call
+ * is that of its first invocation, whether it succeeds or not; hedges aren't counted, since they
+ * only start after the delay. A first invocation that is cancelled, because its hedge won or the
+ * run was cancelled, counts with the time it had taken by then, which is less than it would have
+ * taken, so slow calls are never left out.
+ *
+ * To keep hedging from adding too much load when a backend is slow across the board, hedges are
+ * limited to a given ratio of the calls, {@value #DEFAULT_MAX_RATIO} unless configured otherwise.
+ * Each call earns that fraction of a hedge, and up to {@value #BURST} unused hedges are saved up
+ * for bursts of slow calls.
+ *
+ * The number of calls, hedges and hedges that won can be retrieved for monitoring. Only hedge
+ * nodes that are safe to invoke more than once with the same arguments.
+ */
+public final class Hedging {
+  public static final double DEFAULT_MAX_RATIO = 0.1;
+
+  // the number of calls between recomputations of a percentile delay
+  static final int WINDOW = 200;
+  // the number of unused hedges that are saved up
+  static final int BURST = 10;
+  // the budget is counted in thousandths of a hedge
+  private static final long HEDGE_COST = 1000;
+
+  private final double percentile;
+  private final long budgetPerCall;
+  @Nullable
+  private final LatencyHistogram latencies;
+
+  private final AtomicLong budget = new AtomicLong();
+  private final AtomicLong samples = new AtomicLong();
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong hedged = new AtomicLong();
+  private final AtomicLong wins = new AtomicLong();
+  private volatile long delayNanos;
+
+  private Hedging(long delayNanos, double percentile, double maxRatio) {
+    checkArgument(delayNanos >= 0, "delay must not be negative: %s", delayNanos);
+    checkArgument(maxRatio >= 0 && maxRatio <= 1,
+                  "maxRatio must be between 0 and 1: %s", maxRatio);
+
+    this.delayNanos = delayNanos;
+    this.percentile = percentile;
+    this.budgetPerCall = (long) (maxRatio * HEDGE_COST);
+    this.latencies = percentile > 0 ? new LatencyHistogram() : null;
+  }
+
+  /**
+   * Creates a hedging that invokes a node again if it hasn't completed after {@code delay},
+   * making at most {@link #DEFAULT_MAX_RATIO} hedges per call.
+   */
+  public static Hedging after(long delay, TimeUnit unit) {
+    return after(delay, unit, DEFAULT_MAX_RATIO);
+  }
+
+  /**
+   * Creates a hedging that invokes a node again if it hasn't completed after {@code delay},
+   * making at most {@code maxRatio} hedges per call, between 0 and 1.
+   */
+  public static Hedging after(long delay, TimeUnit unit, double maxRatio) {
+    return new Hedging(checkNotNull(unit, "unit").toNanos(delay), 0, maxRatio);
+  }
+
+  /**
+   * Creates a hedging that invokes a node again if it hasn't completed within the given
+   * percentile of the latencies of its recent calls, for instance 95, making at most {@link
+   * #DEFAULT_MAX_RATIO} hedges per call. Until enough calls have been made, {@code initialDelay}
+   * is used.
+   */
+  public static Hedging atPercentile(double percentile, long initialDelay, TimeUnit unit) {
+    return atPercentile(percentile, initialDelay, unit, DEFAULT_MAX_RATIO);
+  }
+
+  /**
+   * Creates a hedging that invokes a node again if it hasn't completed within the given
+   * percentile of the latencies of its recent calls, making at most {@code maxRatio} hedges per
+   * call, between 0 and 1. Until enough calls have been made, {@code initialDelay} is used.
+   */
+  public static Hedging atPercentile(double percentile, long initialDelay, TimeUnit unit,
+                                     double maxRatio) {
+    checkArgument(percentile > 0 && percentile < 100,
+                  "percentile must be between 0 and 100: %s", percentile);
+
+    return new Hedging(checkNotNull(unit, "unit").toNanos(initialDelay), percentile, maxRatio);
+  }
+
+  /**
+   * Returns the current delay before a node is invoked again.
+   */
+  public long delay(TimeUnit unit) {
+    return checkNotNull(unit, "unit").convert(delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of calls made through this hedging, not counting hedges.
+   */
+  public long calls() {
+    return calls.get();
+  }
+
+  /**
+   * Returns the number of times a node has been invoked again because its call was slow.
+   */
+  public long hedged() {
+    return hedged.get();
+  }
+
+  /**
+   * Returns the number of hedges that succeeded before the call they were hedging.
+   */
+  public long wins() {
+    return wins.get();
+  }
+
+  long delayNanos() {
+    return delayNanos;
+  }
+
+  /**
+   * Counts a call, adding to the budget of hedges.
+   */
+  void called() {
+    calls.incrementAndGet();
+
+    while (true) {
+      final long current = budget.get();
+      final long next = Math.min(BURST * HEDGE_COST, current + budgetPerCall);
+
+      if (next == current || budget.compareAndSet(current, next)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Counts a hedge against the budget, returning false without counting it if the budget is used
+   * up.
+   */
+  boolean tryHedge() {
+    while (true) {
+      final long current = budget.get();
+
+      if (current < HEDGE_COST) {
+        return false;
+      }
+      if (budget.compareAndSet(current, current - HEDGE_COST)) {
+        hedged.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  void hedgeWon() {
+    wins.incrementAndGet();
+  }
+
+  /**
+   * Records the latency of the first invocation of a call, updating the delay once enough have
+   * been recorded if it is a percentile.
+   */
+  void completed(long latencyNanos) {
+    if (latencies == null) {
+      return;
+    }
+
+    latencies.record(latencyNanos);
+
+    if (samples.incrementAndGet() % WINDOW == 0) {
+      delayNanos = latencies.snapshotAndReset().percentileNanos(percentile);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
+/**
+ * Node that invokes the node it wraps a second time if the first call hasn't completed within
+ * the delay of a {@link Hedging}, and completes with whichever call succeeds first, cancelling
+ * the other. Cancelling the returned future cancels both calls.
+ *
+ * The second call is made on the executor the node was invoked with, so that the wrapped node
+ * never runs on the timer thread; see {@link Timers#handOff(Runnable, Executor)}.
+ */
+final class HedgingNode<V> extends TrickleNode<V> {
+  private final TrickleNode<V> delegate;
+  private final Hedging hedging;
+
+  HedgingNode(TrickleNode<V> delegate, Hedging hedging) {
+    this.delegate = checkNotNull(delegate, "delegate");
+    this.hedging = checkNotNull(hedging, "hedging");
+  }
+
+  @Override
+  public ListenableFuture<V> run(List<Object> values) {
+    return run(values, Trampoline.INSTANCE, null);
+  }
+
+  @Override
+  ListenableFuture<V> run(List<Object> values, Executor executor,
+                          @Nullable NodeExecution execution) {
+    checkNotNull(executor, "executor");
+
+    hedging.called();
+
+    final long startNanos = System.nanoTime();
+    final ListenableFuture<V> primary = delegate.run(values, executor, execution);
+
+    if (primary == null) {
+      return null;
+    }
+
+    if (primary.isDone()) {
+      hedging.completed(System.nanoTime() - startNanos);
+      return primary;
+    }
+
+    return new HedgedCall<V>(delegate, hedging, values, executor, execution)
+        .start(primary, startNanos);
+  }
+
+  private static boolean succeeded(ListenableFuture<?> future) {
+    try {
+      Uninterruptibles.getUninterruptibly(future);
+      return true;
+    } catch (ExecutionException e) {
+      return false;
+    } catch (CancellationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The result of a call that may be hedged. It completes with the first call that succeeds, or
+   * with the failure of the last call to complete if none of them do.
+   */
+  private static final class HedgedCall<V> extends AbstractFuture<V> implements Runnable {
+    private final TrickleNode<V> delegate;
+    private final Hedging hedging;
+    private final List<Object> values;
+    private final Executor executor;
+    @Nullable
+    private final NodeExecution execution;
+
+    // the first call, plus the hedge until it has failed or been skipped; the result fails once
+    // this reaches zero
+    private final AtomicInteger outstanding = new AtomicInteger(2);
+
+    @Nullable
+    private volatile ListenableFuture<V> primary;
+    @Nullable
+    private volatile ListenableFuture<V> hedge;
+    @Nullable
+    private volatile ListenableFuture<V> lastFailure;
+    @Nullable
+    private volatile TimerWheel.Timeout timer;
+
+    HedgedCall(TrickleNode<V> delegate, Hedging hedging, List<Object> values,
+               Executor executor, @Nullable NodeExecution execution) {
+      this.delegate = delegate;
+      this.hedging = hedging;
+      this.values = values;
+      this.executor = executor;
+      this.execution = execution;
+    }
+
+    HedgedCall<V> start(ListenableFuture<V> call, final long startNanos) {
+      primary = call;
+      timer = Timers.schedule(new Runnable() {
+        @Override
+        public void run() {
+          Timers.handOff(HedgedCall.this, executor);
+        }
+      }, hedging.delayNanos(), TimeUnit.NANOSECONDS);
+
+      // recorded however the call ends; if it is cancelled, that is its latency so far
+      call.addListener(new Runnable() {
+        @Override
+        public void run() {
+          hedging.completed(System.nanoTime() - startNanos);
+        }
+      }, sameThreadExecutor());
+      await(call, false);
+
+      return this;
+    }
+
+    /**
+     * Makes the hedge, unless the first call has completed or the budget is used up. Called once
+     * the hedging delay has passed, off the timer thread.
+     */
+    @Override
+    public void run() {
+      if (isDone() || !hedging.tryHedge()) {
+        countDown();
+        return;
+      }
+
+      final ListenableFuture<V> call;
+      try {
+        call = delegate.run(values, executor, execution);
+      } catch (RuntimeException e) {
+        // the first call may still succeed
+        countDown();
+        return;
+      }
+
+      if (call == null) {
+        countDown();
+        return;
+      }
+
+      hedge = call;
+
+      if (isDone()) {
+        call.cancel(false);
+      }
+
+      await(call, true);
+    }
+
+    private void await(final ListenableFuture<V> call, final boolean isHedge) {
+      call.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (!succeeded(call)) {
+            failed(call);
+            return;
+          }
+
+          if (set(Futures.getUnchecked(call))) {
+            if (isHedge) {
+              hedging.hedgeWon();
+            }
+            cancelCalls();
+          }
+        }
+      }, sameThreadExecutor());
+    }
+
+    private void failed(ListenableFuture<V> call) {
+      lastFailure = call;
+
+      // a failure before the hedge is made isn't worth waiting for the hedge
+      if (call == primary && hedge == null && cancelTimer()) {
+        outstanding.decrementAndGet();
+      }
+
+      countDown();
+    }
+
+    private void countDown() {
+      if (outstanding.decrementAndGet() > 0) {
+        return;
+      }
+
+      final ListenableFuture<V> failed = lastFailure;
+
+      if (failed == null || failed.isCancelled()) {
+        cancel(false);
+        return;
+      }
+
+      try {
+        Uninterruptibles.getUninterruptibly(failed);
+      } catch (ExecutionException e) {
+        setException(e.getCause());
+      }
+    }
+
+    private boolean cancelTimer() {
+      final TimerWheel.Timeout pending = timer;
+
+      return pending != null && pending.cancel();
+    }
+
+    private void cancelCalls() {
+      cancelTimer();
+      cancelIfRunning(primary);
+      cancelIfRunning(hedge);
+    }
+
+    private static void cancelIfRunning(@Nullable ListenableFuture<?> call) {
+      if (call != null && !call.isDone()) {
+        call.cancel(false);
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+
+      cancelCalls();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with logarithmic buckets, in the style of HdrHistogram:
+ * each power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so values are
+ * recorded with a relative error of at most 1/{@value #SUB_BUCKETS}. Values from zero up to about
+ * two minutes are tracked; larger values are counted in the last bucket.
+ *
+ * Recording is lock free. Each stripe has its own array of buckets, so threads recording
+ * concurrently mostly update different memory.
+ */
+final class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // the highest bit that is tracked; 2^37 ns is a little over two minutes
+  private static final int MAX_BIT = 37;
+
+  static final int BUCKETS = (MAX_BIT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  // the last slot of each stripe holds the sum of the recorded values
+  private static final int SUM = BUCKETS;
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[Stripes.COUNT];
+
+  LatencyHistogram() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new AtomicLongArray(BUCKETS + 1);
+    }
+  }
+
+  void record(long nanos) {
+    final long value = Math.max(0, nanos);
+    final AtomicLongArray stripe = stripes[Stripes.current()];
+
+    stripe.incrementAndGet(bucketIndex(value));
+    stripe.addAndGet(SUM, value);
+  }
+
+  NodeMetrics.Latencies snapshot() {
+    return snapshot(false);
+  }
+
+  /**
+   * Returns the recorded values and resets the histogram. Values recorded concurrently are
+   * either included in the returned snapshot or kept for the next one, never lost, though a
+   * value's bucket and its contribution to the sum may end up in different snapshots.
+   */
+  NodeMetrics.Latencies snapshotAndReset() {
+    return snapshot(true);
+  }
+
+  private NodeMetrics.Latencies snapshot(boolean reset) {
+    final long[] counts = new long[BUCKETS];
+    long sum = 0;
+
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] += reset ? stripe.getAndSet(i, 0) : stripe.get(i);
+      }
+      sum += reset ? stripe.getAndSet(SUM, 0) : stripe.get(SUM);
+    }
+
+    return new NodeMetrics.Latencies(counts, sum);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    final int highestBit = 63 - Long.numberOfLeadingZeros(value);
+
+    if (highestBit > MAX_BIT) {
+      return BUCKETS - 1;
+    }
+
+    final int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+    return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Returns the highest value that is recorded in the given bucket.
+   */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    final int shift = index / SUB_BUCKETS - 1;
+    final long lowerBound = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+
+    return lowerBound + (1L << shift) - 1;
+  }
+}
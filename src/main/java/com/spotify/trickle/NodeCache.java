@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+
+/**
+ * A bounded cache of the results of a node, shared by all runs of the graphs the node is part of.
+ * See {@link ConfigurableGraph#cached(NodeCache)}. Each node should have its own cache instance.
+ *
+ * Cache hits, misses and evictions are counted, and can be retrieved using {@link #stats()}.
+ */
+public final class NodeCache {
+  private static final Object NULL_VALUE = new Object();
+
+  private final Cache<List<?>, Object> cache;
+
+  private NodeCache(Cache<List<?>, Object> cache) {
+    this.cache = checkNotNull(cache, "cache");
+  }
+
+  /**
+   * Creates a cache holding at most {@code maximumSize} results, evicting the least recently used
+   * ones first.
+   */
+  public static NodeCache maximumSize(long maximumSize) {
+    return new NodeCache(CacheBuilder.newBuilder()
+                             .maximumSize(maximumSize)
+                             .recordStats()
+                             .<List<?>, Object>build());
+  }
+
+  /**
+   * Creates a cache whose results are evicted once {@code duration} has passed since they were
+   * stored.
+   */
+  public static NodeCache expireAfterWrite(long duration, TimeUnit unit) {
+    return new NodeCache(CacheBuilder.newBuilder()
+                             .expireAfterWrite(duration, unit)
+                             .recordStats()
+                             .<List<?>, Object>build());
+  }
+
+  /**
+   * Creates a cache configured by a {@link com.google.common.cache.CacheBuilderSpec} string, for
+   * instance {@code "maximumSize=10000,expireAfterWrite=10m"}.
+   */
+  public static NodeCache from(String spec) {
+    return new NodeCache(CacheBuilder.from(spec)
+                             .recordStats()
+                             .<List<?>, Object>build());
+  }
+
+  /**
+   * Returns the hit, miss and eviction counts of this cache.
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * Returns the approximate number of results in this cache.
+   */
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * Discards all cached results.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Returns a future for the cached result for the given key, or null if there is none.
+   */
+  @Nullable
+  ListenableFuture<?> lookup(List<?> key) {
+    final Object value = cache.getIfPresent(checkNotNull(key, "key"));
+
+    if (value == null) {
+      return null;
+    }
+
+    return immediateFuture(value == NULL_VALUE ? null : value);
+  }
+
+  void put(List<?> key, @Nullable Object value) {
+    cache.put(checkNotNull(key, "key"), value == null ? NULL_VALUE : value);
+  }
+}
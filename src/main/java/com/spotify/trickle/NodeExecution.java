@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A single invocation of a node in a graph run, as seen by an {@link ExecutionListener}. The same
+ * instance is passed to all the events for the invocation, and holds the {@link System#nanoTime()}
+ * timestamps of the events so far. A timestamp is only meaningful once the corresponding event has
+ * happened; the timestamp of the current event is always set before the listener is called.
+ */
+public final class NodeExecution {
+  private static final AtomicIntegerFieldUpdater<NodeExecution> PHASE =
+      AtomicIntegerFieldUpdater.newUpdater(NodeExecution.class, "phase");
+  private static final int STARTED = 1;
+  private static final int FINISHED = 2;
+
+  private final NodeInfo node;
+  private final ExecutionListener listener;
+
+  // each field is written once, before the listener is called, and the events for an invocation
+  // are ordered by future completion, so later events always see the values set by earlier ones
+  private long scheduledNanos;
+  private long inputsReadyNanos;
+  private long startedNanos;
+  private long finishedNanos;
+
+  // the one event that can race with another is a failure on another thread, when the run is
+  // cancelled or its deadline expires while the node is being started; whether the node started
+  // before it failed is decided atomically, so that listeners see either both events or only the
+  // failure
+  private volatile int phase;
+
+  NodeExecution(NodeInfo node, ExecutionListener listener) {
+    this.node = checkNotNull(node, "node");
+    this.listener = checkNotNull(listener, "listener");
+  }
+
+  public NodeInfo node() {
+    return node;
+  }
+
+  /**
+   * The time when the run started waiting for the inputs of the node.
+   */
+  public long scheduledNanos() {
+    return scheduledNanos;
+  }
+
+  /**
+   * The time when all the inputs of the node were available.
+   */
+  public long inputsReadyNanos() {
+    return inputsReadyNanos;
+  }
+
+  /**
+   * The time when the node was invoked.
+   */
+  public long startedNanos() {
+    return startedNanos;
+  }
+
+  /**
+   * Returns true if the node has been invoked; nodes whose inputs fail are never invoked.
+   */
+  public boolean wasStarted() {
+    return (phase & STARTED) != 0;
+  }
+
+  /**
+   * The time when the node completed or failed.
+   */
+  public long finishedNanos() {
+    return finishedNanos;
+  }
+
+  void scheduled() {
+    scheduledNanos = System.nanoTime();
+    listener.nodeScheduled(this);
+  }
+
+  void inputsReady() {
+    inputsReadyNanos = System.nanoTime();
+    listener.nodeInputsReady(this);
+  }
+
+  void started() {
+    // set first, so that a failure on another thread that sees the node as started sees this too
+    startedNanos = System.nanoTime();
+
+    if (PHASE.compareAndSet(this, 0, STARTED)) {
+      listener.nodeStarted(this);
+    }
+  }
+
+  /**
+   * Signals that the inputs became available and the node was invoked at the same time.
+   */
+  void startedInline() {
+    PHASE.set(this, STARTED);
+    inputsReadyNanos = startedNanos = System.nanoTime();
+    listener.nodeInputsReady(this);
+    listener.nodeStarted(this);
+  }
+
+  void completed() {
+    finish();
+    listener.nodeCompleted(this);
+  }
+
+  void failed(Throwable failure) {
+    checkNotNull(failure, "failure");
+
+    finish();
+    listener.nodeFailed(this, failure);
+  }
+
+  private void finish() {
+    finishedNanos = System.nanoTime();
+
+    while (true) {
+      final int current = phase;
+
+      if (PHASE.compareAndSet(this, current, current | FINISHED)) {
+        return;
+      }
+    }
+  }
+
+  void queued() {
+    listener.nodeQueued(this);
+  }
+
+  void dequeued() {
+    listener.nodeDequeued(this);
+  }
+
+  void rejected() {
+    listener.nodeRejected(this);
+  }
+
+  void fallback(Throwable failure) {
+    listener.nodeFallback(this, checkNotNull(failure, "failure"));
+  }
+
+  @Override
+  public String toString() {
+    return "NodeExecution{" + node.name() + "}";
+  }
+}
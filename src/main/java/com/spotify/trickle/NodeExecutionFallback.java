@@ -19,9 +19,12 @@ package com.spotify.trickle;
 import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import javax.annotation.Nullable;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.spotify.trickle.GraphExceptionWrapper.wrapException;
+import static com.spotify.trickle.GraphExceptionWrapper.wrapParameterFailure;
 
 /**
  * Fallback that handles errors when executing a graph node.
@@ -31,18 +34,26 @@ class NodeExecutionFallback<R> implements FutureFallback<R> {
   private final TraverseState.FutureCallInformation currentCall;
   private final TraverseState state;
   private final GraphBuilder<R> graph;
+  @Nullable
+  private final NodeExecution execution;
 
   public NodeExecutionFallback(GraphBuilder<R> graph,
                                TraverseState.FutureCallInformation currentCall,
-                               TraverseState state) {
+                               TraverseState state,
+                               @Nullable NodeExecution execution) {
     this.currentCall = checkNotNull(currentCall);
     this.state = checkNotNull(state);
     this.graph = checkNotNull(graph);
+    this.execution = execution;
   }
 
   @Override
   public ListenableFuture<R> create(Throwable t) {
     if (graph.getFallback().isPresent()) {
+      if (execution != null) {
+        execution.fallback(t);
+      }
+
       try {
         return graph.getFallback().get().apply(t);
       } catch (Exception e) {
@@ -58,6 +69,10 @@ class NodeExecutionFallback<R> implements FutureFallback<R> {
       return t;
     }
 
+    if (currentCall.hasFailedParameter()) {
+      return wrapParameterFailure(t, currentCall, state);
+    }
+
     return wrapException(t, currentCall, state);
   }
 }
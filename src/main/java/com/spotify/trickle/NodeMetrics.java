@@ -0,0 +1,378 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An {@link ExecutionListener} that collects metrics for each node, keyed by the node's {@link
+ * NodeInfo#name()}. Nodes with the same name, including all unnamed nodes, share their metrics,
+ * so nodes should be given distinct names using {@link ConfigurableGraph#named(String)}.
+ *
+ * For each node name, it counts invocations, failures and fallbacks, and keeps histograms of
+ * the time spent waiting for inputs and the time spent executing the node. The histograms have a
+ * relative error of at most 12.5%. It also tracks how many invocations are currently in progress,
+ * and, for nodes with a {@link Bulkhead}, how many calls are waiting in its queue and how many it
+ * has rejected; for a bulkhead shared by several nodes, that shows which of them it holds back.
+ *
+ * A single instance is meant to be shared by all the graphs and runs it should collect metrics
+ * for. Recording is lock free and striped across threads, so that recording from many threads
+ * doesn't cause contention. Use {@link #snapshotAndReset()} to periodically scrape the metrics
+ * recorded since the last call.
+ */
+public final class NodeMetrics extends ExecutionListener {
+  private final ConcurrentMap<String, Recorder> recorders =
+      new ConcurrentHashMap<String, Recorder>();
+
+  @Override
+  public void nodeInputsReady(NodeExecution execution) {
+    recorder(execution).inputWaitTime.record(
+        execution.inputsReadyNanos() - execution.scheduledNanos());
+  }
+
+  @Override
+  public void nodeStarted(NodeExecution execution) {
+    final Recorder recorder = recorder(execution);
+
+    recorder.invocations.increment();
+    recorder.inFlight.increment();
+  }
+
+  @Override
+  public void nodeCompleted(NodeExecution execution) {
+    final Recorder recorder = recorder(execution);
+
+    recorder.inFlight.decrement();
+    recorder.executionTime.record(execution.finishedNanos() - execution.startedNanos());
+  }
+
+  @Override
+  public void nodeFailed(NodeExecution execution, Throwable failure) {
+    final Recorder recorder = recorder(execution);
+
+    recorder.failures.increment();
+
+    if (execution.wasStarted()) {
+      recorder.inFlight.decrement();
+      recorder.executionTime.record(execution.finishedNanos() - execution.startedNanos());
+    }
+  }
+
+  @Override
+  public void nodeFallback(NodeExecution execution, Throwable failure) {
+    recorder(execution).fallbacks.increment();
+  }
+
+  @Override
+  public void nodeQueued(NodeExecution execution) {
+    recorder(execution).queued.increment();
+  }
+
+  @Override
+  public void nodeDequeued(NodeExecution execution) {
+    recorder(execution).queued.decrement();
+  }
+
+  @Override
+  public void nodeRejected(NodeExecution execution) {
+    recorder(execution).rejected.increment();
+  }
+
+  /**
+   * Returns the metrics recorded so far, keyed by node name.
+   */
+  public Map<String, Snapshot> snapshot() {
+    final ImmutableMap.Builder<String, Snapshot> result = ImmutableMap.builder();
+
+    for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().snapshot(false));
+    }
+
+    return result.build();
+  }
+
+  /**
+   * Returns the metrics recorded since the last reset, keyed by node name, and resets them. No
+   * events are lost if nodes are running concurrently; they are included either in the returned
+   * snapshot or in the next one.
+   */
+  public Map<String, Snapshot> snapshotAndReset() {
+    final ImmutableMap.Builder<String, Snapshot> result = ImmutableMap.builder();
+
+    for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().snapshot(true));
+    }
+
+    return result.build();
+  }
+
+  /**
+   * Discards all metrics recorded so far.
+   */
+  public void reset() {
+    snapshotAndReset();
+  }
+
+  private Recorder recorder(NodeExecution execution) {
+    final String name = execution.node().name();
+    final Recorder existing = recorders.get(name);
+
+    if (existing != null) {
+      return existing;
+    }
+
+    final Recorder recorder = new Recorder();
+    final Recorder raced = recorders.putIfAbsent(name, recorder);
+
+    return raced != null ? raced : recorder;
+  }
+
+  private static final class Recorder {
+    private final StripedCounter invocations = new StripedCounter();
+    private final StripedCounter failures = new StripedCounter();
+    private final StripedCounter fallbacks = new StripedCounter();
+    private final StripedCounter rejected = new StripedCounter();
+    private final LatencyHistogram inputWaitTime = new LatencyHistogram();
+    private final LatencyHistogram executionTime = new LatencyHistogram();
+
+    // current values rather than counts of events, so they are never reset; they include calls
+    // that are queued, and the events updating them may be seen out of order, so they are
+    // adjusted when read
+    private final StripedCounter inFlight = new StripedCounter();
+    private final StripedCounter queued = new StripedCounter();
+
+    Snapshot snapshot(boolean reset) {
+      final long queuedNow = Math.max(0, queued.get());
+      final long inFlightNow = Math.max(0, inFlight.get() - queuedNow);
+
+      if (reset) {
+        return new Snapshot(invocations.getAndReset(),
+                            failures.getAndReset(),
+                            fallbacks.getAndReset(),
+                            rejected.getAndReset(),
+                            inFlightNow,
+                            queuedNow,
+                            inputWaitTime.snapshotAndReset(),
+                            executionTime.snapshotAndReset());
+      }
+
+      return new Snapshot(invocations.get(),
+                          failures.get(),
+                          fallbacks.get(),
+                          rejected.get(),
+                          inFlightNow,
+                          queuedNow,
+                          inputWaitTime.snapshot(),
+                          executionTime.snapshot());
+    }
+  }
+
+  /**
+   * The metrics for a node name at some point in time.
+   */
+  public static final class Snapshot {
+    private final long invocations;
+    private final long failures;
+    private final long fallbacks;
+    private final long rejected;
+    private final long inFlight;
+    private final long queued;
+    private final Latencies inputWaitTime;
+    private final Latencies executionTime;
+
+    Snapshot(long invocations, long failures, long fallbacks, long rejected, long inFlight,
+             long queued, Latencies inputWaitTime, Latencies executionTime) {
+      this.invocations = invocations;
+      this.failures = failures;
+      this.fallbacks = fallbacks;
+      this.rejected = rejected;
+      this.inFlight = inFlight;
+      this.queued = queued;
+      this.inputWaitTime = checkNotNull(inputWaitTime, "inputWaitTime");
+      this.executionTime = checkNotNull(executionTime, "executionTime");
+    }
+
+    /**
+     * The number of times the node was invoked.
+     */
+    public long invocations() {
+      return invocations;
+    }
+
+    /**
+     * The number of times the node failed, including failures of its inputs.
+     */
+    public long failures() {
+      return failures;
+    }
+
+    /**
+     * The number of failures that were handled by the node's fallback.
+     */
+    public long fallbacks() {
+      return fallbacks;
+    }
+
+    /**
+     * The number of calls to the node that its {@link Bulkhead} rejected.
+     */
+    public long rejected() {
+      return rejected;
+    }
+
+    /**
+     * The number of invocations of the node in progress when the snapshot was taken, not counting
+     * calls waiting in the queue of a {@link Bulkhead}. Unlike the other counts, this is not reset.
+     */
+    public long inFlight() {
+      return inFlight;
+    }
+
+    /**
+     * The number of calls to the node waiting in the queue of a {@link Bulkhead} when the snapshot
+     * was taken. Unlike the other counts, this is not reset.
+     */
+    public long queued() {
+      return queued;
+    }
+
+    /**
+     * The time from when the run started waiting for the node's inputs until they were all
+     * available.
+     */
+    public Latencies inputWaitTime() {
+      return inputWaitTime;
+    }
+
+    /**
+     * The time from when the node was invoked until it completed or failed.
+     */
+    public Latencies executionTime() {
+      return executionTime;
+    }
+
+    @Override
+    public String toString() {
+      return "Snapshot{invocations=" + invocations +
+             ", failures=" + failures +
+             ", fallbacks=" + fallbacks +
+             ", rejected=" + rejected +
+             ", inFlight=" + inFlight +
+             ", queued=" + queued +
+             ", inputWaitTime=" + inputWaitTime +
+             ", executionTime=" + executionTime +
+             '}';
+    }
+  }
+
+  /**
+   * A distribution of durations, in nanoseconds.
+   */
+  public static final class Latencies {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+
+    Latencies(long[] counts, long sum) {
+      this.counts = checkNotNull(counts, "counts");
+      this.sum = sum;
+
+      long total = 0;
+      for (long bucketCount : counts) {
+        total += bucketCount;
+      }
+      this.count = total;
+    }
+
+    /**
+     * The number of recorded durations.
+     */
+    public long count() {
+      return count;
+    }
+
+    /**
+     * The sum of all recorded durations.
+     */
+    public long totalNanos() {
+      return sum;
+    }
+
+    /**
+     * The mean duration, or 0 if nothing has been recorded.
+     */
+    public double meanNanos() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns a duration such that the given percentage of the recorded durations are at most
+     * that long, or 0 if nothing has been recorded.
+     *
+     * @param percentile a value between 0 and 100
+     */
+    public long percentileNanos(double percentile) {
+      checkArgument(percentile >= 0 && percentile <= 100,
+                    "percentile must be between 0 and 100: %s", percentile);
+
+      if (count == 0) {
+        return 0;
+      }
+
+      final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+      long seen = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return LatencyHistogram.bucketUpperBound(i);
+        }
+      }
+
+      return maxNanos();
+    }
+
+    /**
+     * The longest recorded duration, or 0 if nothing has been recorded.
+     */
+    public long maxNanos() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] > 0) {
+          return LatencyHistogram.bucketUpperBound(i);
+        }
+      }
+
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Latencies{count=" + count +
+             ", mean=" + (long) meanNanos() +
+             ", p50=" + percentileNanos(50) +
+             ", p99=" + percentileNanos(99) +
+             ", max=" + maxNanos() +
+             '}';
+    }
+  }
+}
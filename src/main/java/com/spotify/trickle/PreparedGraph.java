@@ -16,51 +16,77 @@
 
 package com.spotify.trickle;
 
-import com.google.common.base.Function;
-import com.google.common.base.Throwables;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.AsyncFunction;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.Uninterruptibles;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
-import static com.google.common.collect.ImmutableList.builder;
-import static com.google.common.util.concurrent.Futures.allAsList;
 import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
 
 /**
  * A decorator class for Graph that holds bound values for input names thus making
  * graph runnable.
  *
+ * Bound values are kept in an array indexed by the input slots of the graph's
+ * {@link ExecutionPlan}. The array is shared by a chain of graphs that each bind one more input,
+ * so binding a value writes a slot rather than copying all of them; see {@link Slots}.
+ * Values for inputs that the graph doesn't use itself are kept in a separate map; they only
+ * matter if this graph is used as a dependency of a larger graph that does use them.
+ *
  * This class is immutable and thread safe. Calls to any of the bind methods will
  * return a new instance containing that binding.
  *
  * @param <R>  The return type of the graph
  */
 final class PreparedGraph<R> extends Graph<R> {
+  // a Random per thread, so that sampling runs for debug information doesn't contend
+  private static final ThreadLocal<Random> DEBUG_SAMPLING = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
 
   private final GraphBuilder<R> graph;
-  private final ImmutableMap<Input<?>, Object> inputBindings;
-  private final boolean debug;
-
-  private PreparedGraph(GraphBuilder<R> graph, ImmutableMap<Input<?>, Object> inputBindings,
-                        boolean debug) {
+  private final Slots slots;
+  private final int boundCount;
+  private final ImmutableMap<Input<?>, Object> unplannedBindings;
+  private final int debugEvery;
+  private final boolean lightweightExceptions;
+  @Nullable
+  private final ExecutionListener listener;
+
+  // the slots this graph has bound, built from the shared ones on first use
+  @Nullable
+  private volatile Object[] inputBindings;
+
+  private PreparedGraph(GraphBuilder<R> graph, Slots slots, int boundCount,
+                        ImmutableMap<Input<?>, Object> unplannedBindings, int debugEvery,
+                        boolean lightweightExceptions, @Nullable ExecutionListener listener) {
     this.graph = checkNotNull(graph, "graph");
-    this.inputBindings = checkNotNull(inputBindings, "inputBindings");
-    this.debug = debug;
+    this.slots = checkNotNull(slots, "slots");
+    this.boundCount = boundCount;
+    this.unplannedBindings = checkNotNull(unplannedBindings, "unplannedBindings");
+    this.debugEvery = debugEvery;
+    this.lightweightExceptions = lightweightExceptions;
+    this.listener = listener;
   }
 
-  PreparedGraph(GraphBuilder<R> graph, boolean debug) {
-    this(graph, ImmutableMap.<Input<?>, Object>of(), debug);
+  PreparedGraph(GraphBuilder<R> graph, int debugEvery) {
+    this(graph, new Slots(graph.getPlan().getInputs().size()), 0,
+         ImmutableMap.<Input<?>, Object>of(), debugEvery, false, null);
   }
 
   @Override
@@ -75,7 +101,28 @@ final class PreparedGraph<R> extends Graph<R> {
 
   @Override
   public Graph<R> debug(boolean debug) {
-    return new PreparedGraph<R>(graph, inputBindings, debug);
+    return new PreparedGraph<R>(graph, slots, boundCount, unplannedBindings, debug ? 1 : 0,
+                                lightweightExceptions, listener);
+  }
+
+  @Override
+  public Graph<R> debugEvery(int runs) {
+    checkArgument(runs > 0, "runs must be positive: %s", runs);
+
+    return new PreparedGraph<R>(graph, slots, boundCount, unplannedBindings, runs,
+                                lightweightExceptions, listener);
+  }
+
+  @Override
+  public Graph<R> lightweightExceptions(boolean lightweightExceptions) {
+    return new PreparedGraph<R>(graph, slots, boundCount, unplannedBindings, debugEvery,
+                                lightweightExceptions, listener);
+  }
+
+  @Override
+  public Graph<R> listener(@Nullable ExecutionListener listener) {
+    return new PreparedGraph<R>(graph, slots, boundCount, unplannedBindings, debugEvery,
+                                lightweightExceptions, listener);
   }
 
   @Override
@@ -85,84 +132,205 @@ final class PreparedGraph<R> extends Graph<R> {
 
   @Override
   public ListenableFuture<R> run(Executor executor) {
-    return run(TraverseState.empty(executor, debug));
+    return graph.getPlan().run(inputBindings(), newState(executor, null));
   }
 
   @Override
-  ListenableFuture<R> run(TraverseState state) {
-    state.addBindings(inputBindings);
-    return future(state);
+  public ListenableFuture<R> run(Executor executor, long timeout, TimeUnit unit) {
+    final Deadline deadline = new Deadline(timeout, unit);
+    final ListenableFuture<R> result =
+        graph.getPlan().run(inputBindings(), newState(executor, deadline));
+
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        deadline.cancel();
+      }
+    }, sameThreadExecutor());
+
+    return result;
   }
 
-  private ListenableFuture<R> future(final TraverseState state) {
-    final ImmutableList.Builder<ListenableFuture<?>> futuresListBuilder = builder();
+  @Override
+  public ListenableFuture<List<R>> runBatch(List<? extends Map<Input<?>, ?>> bindings) {
+    return runBatch(bindings, sameThreadExecutor());
+  }
+
+  @Override
+  public ListenableFuture<List<R>> runBatch(List<? extends Map<Input<?>, ?>> bindings,
+                                            Executor executor) {
+    checkNotNull(bindings, "bindings");
 
-    // get node and value dependencies
-    for (Dep<?> input : graph.getInputs()) {
-      final ListenableFuture<?> inputFuture = input.getFuture(state);
-      futuresListBuilder.add(inputFuture);
+    final List<Object[]> batch = Lists.newArrayListWithCapacity(bindings.size());
+
+    for (Map<Input<?>, ?> runBindings : bindings) {
+      batch.add(withBindings(runBindings));
     }
 
-    final ImmutableList<ListenableFuture<?>> futures = futuresListBuilder.build();
+    return graph.getPlan().runBatch(batch, newState(executor, null));
+  }
+
+  private TraverseState newState(Executor executor, @Nullable Deadline deadline) {
+    return new TraverseState(executor, sampleDebug(), lightweightExceptions, deadline, listener);
+  }
+
+  /**
+   * Decides whether to collect debug information for a run.
+   */
+  private boolean sampleDebug() {
+    return debugEvery == 1 || debugEvery > 1 && DEBUG_SAMPLING.get().nextInt(debugEvery) == 0;
+  }
+
+  GraphBuilder<R> getGraph() {
+    return graph;
+  }
+
+  /**
+   * Adds all the values bound to inputs in this graph to the supplied map.
+   */
+  void collectBindings(Map<Input<?>, Object> result) {
+    checkNotNull(result, "result");
 
-    final TraverseState.FutureCallInformation currentCall = state.record(this, futures);
+    final List<Input<?>> inputs = graph.getPlan().getInputs();
+    final Object[] bindings = inputBindings();
 
-    // future for signaling propagation - needs to include predecessors, too
-    List<ListenableFuture<?>> mustHappenBefore = Lists.newArrayList(futures);
-    for (Graph<?> predecessor : graph.getPredecessors()) {
-      mustHappenBefore.add(state.futureForGraph(predecessor));
+    for (int i = 0; i < bindings.length; i++) {
+      if (bindings[i] != null) {
+        result.put(inputs.get(i), bindings[i]);
+      }
     }
 
-    final ListenableFuture<List<Object>> allFuture = allAsList(mustHappenBefore);
-
-    checkArgument(graph.getInputs().size() == futures.size(), "sanity check result: insane");
-
-    return Futures.withFallback(
-        nodeFuture(futures, allFuture, state.getExecutor()),
-        new NodeExecutionFallback<R>(graph, currentCall, state));
-  }
-
-  private ListenableFuture<R> nodeFuture(final ImmutableList<ListenableFuture<?>> values,
-                                         final ListenableFuture<List<Object>> doneSignal,
-                                         final Executor executor) {
-    return Futures.transform(
-        doneSignal,
-        new AsyncFunction<List<Object>, R>() {
-          @Override
-          public ListenableFuture<R> apply(List<Object> input) {
-            // the input future is not going to be null unless there's a Trickle bug, so we should
-            // be fine with an NPE in that case
-            //noinspection NullableProblems
-            return graph.getNode().run(
-                Lists.transform(values, new Function<ListenableFuture<?>, Object>() {
-                  @Override
-                  public Object apply(ListenableFuture<?> input) {
-                    return inputValueFromFuture(input);
-                  }
-                }));
-          }
-        },
-        executor);
-  }
-
-  private Object inputValueFromFuture(ListenableFuture<?> input) {
-    try {
-      return Uninterruptibles.getUninterruptibly(input);
-    } catch (ExecutionException e) {
-      Throwables.propagateIfInstanceOf(e.getCause(), GraphExecutionException.class);
-      throw Throwables.propagate(e);
+    result.putAll(unplannedBindings);
+  }
+
+  /**
+   * Returns a copy of the bound input values with the supplied values added; inputs that this
+   * graph doesn't use are ignored.
+   */
+  private Object[] withBindings(Map<Input<?>, ?> bindings) {
+    final ExecutionPlan<R> plan = graph.getPlan();
+    final Object[] bound = inputBindings();
+    final Object[] result = Arrays.copyOf(bound, bound.length);
+
+    for (Map.Entry<Input<?>, ?> entry : bindings.entrySet()) {
+      final Input<?> input = entry.getKey();
+      final int index = plan.inputIndex(input);
+
+      if (index >= 0) {
+        checkState(result[index] == null && !plan.isBoundBySubgraph(index),
+                   "Duplicate binding for input: " + input);
+        result[index] = checkNotNull(entry.getValue(), "value");
+      }
     }
+
+    return result;
   }
 
   private PreparedGraph<R> addToInputs(Input<?> input, Object value) {
-    checkState(!inputBindings.containsKey(input), "Duplicate binding for input: " + input);
-
-    return new PreparedGraph<R>(
-        graph,
-        ImmutableMap.<Input<?>, Object>builder()
-          .putAll(inputBindings)
-          .put(input, value)
-          .build(), debug);
+    checkNotNull(input, "input");
+    checkNotNull(value, "value");
+
+    final ExecutionPlan<R> plan = graph.getPlan();
+    final int index = plan.inputIndex(input);
+
+    if (index < 0) {
+      checkState(!unplannedBindings.containsKey(input), "Duplicate binding for input: " + input);
+
+      return new PreparedGraph<R>(
+          graph,
+          slots,
+          boundCount,
+          ImmutableMap.<Input<?>, Object>builder()
+            .putAll(unplannedBindings)
+            .put(input, value)
+            .build(), debugEvery, lightweightExceptions, listener);
+    }
+
+    checkState(!slots.isBound(index, boundCount) && !plan.isBoundBySubgraph(index),
+               "Duplicate binding for input: " + input);
+
+    return new PreparedGraph<R>(graph, slots.bind(index, value, boundCount), boundCount + 1,
+                                unplannedBindings, debugEvery, lightweightExceptions, listener);
+  }
+
+  /**
+   * Returns the values bound to the input slots of the plan by this graph. The array is shared
+   * and must not be modified.
+   */
+  private Object[] inputBindings() {
+    Object[] result = inputBindings;
+
+    if (result == null) {
+      result = boundCount == 0 ? graph.getPlan().noBindings() : slots.toArray(boundCount);
+      inputBindings = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * Values bound to input slots, shared by a chain of graphs that each bind one more input than
+   * the graph they were bound from. Each slot records the position in the chain at which it was
+   * bound, and a graph that has bound {@code count} inputs only sees the slots bound before that
+   * position. Binding from the graph at the end of the chain writes the next slot in place, so an
+   * n-input graph can be bound one input at a time without copying the slots n times. Binding
+   * from a graph that has already been bound from copies the slots it sees, starting a new chain.
+   */
+  private static final class Slots {
+    private final Object[] values;
+    // unbound slots are at position MAX_VALUE, so that a graph reading the slots while another
+    // thread binds the next one never sees that slot as bound
+    private final int[] positions;
+    private final AtomicInteger count = new AtomicInteger();
+
+    Slots(int size) {
+      values = new Object[size];
+      positions = new int[size];
+      Arrays.fill(positions, Integer.MAX_VALUE);
+    }
+
+    boolean isBound(int index, int boundCount) {
+      return positions[index] < boundCount;
+    }
+
+    /**
+     * Binds a slot at position {@code boundCount}, returning the slots to use for the resulting
+     * graph; these slots if no other graph has been bound from the same one, or a copy otherwise.
+     */
+    Slots bind(int index, Object value, int boundCount) {
+      final Slots result =
+          count.compareAndSet(boundCount, boundCount + 1) ? this : copy(boundCount);
+
+      result.values[index] = value;
+      result.positions[index] = boundCount;
+      return result;
+    }
+
+    private Slots copy(int boundCount) {
+      final Slots result = new Slots(values.length);
+
+      for (int i = 0; i < values.length; i++) {
+        if (isBound(i, boundCount)) {
+          result.values[i] = values[i];
+          result.positions[i] = positions[i];
+        }
+      }
+
+      result.count.set(boundCount + 1);
+      return result;
+    }
+
+    Object[] toArray(int boundCount) {
+      final Object[] result = new Object[values.length];
+
+      for (int i = 0; i < values.length; i++) {
+        if (isBound(i, boundCount)) {
+          result[i] = values[i];
+        }
+      }
+
+      return result;
+    }
   }
 
   @Override
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Describes how a node is retried when it fails. See {@link ConfigurableGraph#retry(RetryPolicy)}.
+ *
+ * Retries are delayed by an exponential backoff, which starts at {@link
+ * #DEFAULT_INITIAL_BACKOFF_MILLIS} milliseconds and doubles for each retry up to {@link
+ * #DEFAULT_MAX_BACKOFF_MILLIS} milliseconds unless configured otherwise, and is randomly reduced
+ * by up to half, so that nodes that failed together don't all retry at the same time. The delays
+ * are timers, so no thread is blocked while waiting to retry.
+ *
+ * Each run has a budget of retries, shared by all nodes retried with policies that have the same
+ * budget or a larger one, so that a run whose backend is down doesn't multiply the calls to it by
+ * the number of attempts of every node. It defaults to {@link #DEFAULT_RUN_BUDGET} retries.
+ *
+ * Instances are immutable; the configuration methods return a new policy.
+ */
+public final class RetryPolicy {
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 10;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+  public static final double DEFAULT_JITTER = 0.5;
+  public static final int DEFAULT_RUN_BUDGET = 10;
+
+  // a Random per thread, so that computing delays doesn't contend
+  private static final ThreadLocal<Random> JITTER = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+
+  private static final Predicate<Object> NOT_CANCELLED =
+      Predicates.not(Predicates.instanceOf(CancellationException.class));
+
+  private final int maxAttempts;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final double jitter;
+  private final Predicate<? super Throwable> retryable;
+  private final int runBudget;
+
+  private RetryPolicy(int maxAttempts, long initialBackoffNanos, long maxBackoffNanos,
+                      double jitter, Predicate<? super Throwable> retryable, int runBudget) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffNanos = initialBackoffNanos;
+    this.maxBackoffNanos = maxBackoffNanos;
+    this.jitter = jitter;
+    this.retryable = retryable;
+    this.runBudget = runBudget;
+  }
+
+  /**
+   * Creates a policy that invokes a node at most {@code maxAttempts} times in total, retrying any
+   * failure other than cancellation.
+   */
+  public static RetryPolicy maxAttempts(int maxAttempts) {
+    checkArgument(maxAttempts > 0, "maxAttempts must be positive: %s", maxAttempts);
+
+    return new RetryPolicy(maxAttempts,
+                           TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_BACKOFF_MILLIS),
+                           TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BACKOFF_MILLIS),
+                           DEFAULT_JITTER, NOT_CANCELLED, DEFAULT_RUN_BUDGET);
+  }
+
+  /**
+   * Returns a policy that waits {@code initialDelay} before the first retry, and twice as long
+   * before each further retry, but never longer than {@code maxDelay}. A delay of zero retries
+   * right away.
+   */
+  public RetryPolicy backoff(long initialDelay, long maxDelay, TimeUnit unit) {
+    checkArgument(initialDelay >= 0, "initialDelay must not be negative: %s", initialDelay);
+    checkArgument(maxDelay >= initialDelay,
+                  "maxDelay must be at least initialDelay: %s < %s", maxDelay, initialDelay);
+    checkNotNull(unit, "unit");
+
+    return new RetryPolicy(maxAttempts, unit.toNanos(initialDelay), unit.toNanos(maxDelay), jitter,
+                           retryable, runBudget);
+  }
+
+  /**
+   * Returns a policy that reduces each delay by a random fraction of up to {@code jitter}, which
+   * must be between 0, for exact delays, and 1, for delays anywhere between zero and the backoff.
+   */
+  public RetryPolicy jitter(double jitter) {
+    checkArgument(jitter >= 0 && jitter <= 1, "jitter must be between 0 and 1: %s", jitter);
+
+    return new RetryPolicy(maxAttempts, initialBackoffNanos, maxBackoffNanos, jitter, retryable,
+                           runBudget);
+  }
+
+  /**
+   * Returns a policy that only retries failures matching the supplied predicate. Cancellations
+   * are never retried.
+   */
+  public RetryPolicy retryOn(Predicate<? super Throwable> retryable) {
+    checkNotNull(retryable, "retryable");
+
+    return new RetryPolicy(maxAttempts, initialBackoffNanos, maxBackoffNanos, jitter,
+                           Predicates.<Throwable>and(NOT_CANCELLED, retryable), runBudget);
+  }
+
+  /**
+   * Returns a policy that only retries a node if fewer than {@code maxRetries} retries have been
+   * made so far in the run, by any node. Zero means that nodes with this policy are never
+   * retried.
+   */
+  public RetryPolicy runBudget(int maxRetries) {
+    checkArgument(maxRetries >= 0, "maxRetries must not be negative: %s", maxRetries);
+
+    return new RetryPolicy(maxAttempts, initialBackoffNanos, maxBackoffNanos, jitter, retryable,
+                           maxRetries);
+  }
+
+  int maxAttempts() {
+    return maxAttempts;
+  }
+
+  int runBudget() {
+    return runBudget;
+  }
+
+  /**
+   * Returns true if a node that failed on its given attempt, counting from one, may be retried,
+   * not considering the run's budget.
+   */
+  boolean shouldRetry(Throwable failure, int attempt) {
+    checkNotNull(failure, "failure");
+
+    return attempt < maxAttempts && retryable.apply(failure);
+  }
+
+  /**
+   * Returns the delay in nanoseconds before retrying a node that failed on its given attempt,
+   * counting from one.
+   */
+  long delayNanos(int attempt) {
+    return delayNanos(attempt, JITTER.get().nextDouble());
+  }
+
+  /**
+   * Returns the delay before a retry, given a random number between 0 and 1 for the jitter.
+   */
+  long delayNanos(int attempt, double random) {
+    long backoff = initialBackoffNanos;
+
+    for (int i = 1; i < attempt && backoff < maxBackoffNanos; i++) {
+      backoff = backoff > maxBackoffNanos / 2 ? maxBackoffNanos : backoff * 2;
+    }
+
+    return (long) (backoff * (1 - jitter * random));
+  }
+}
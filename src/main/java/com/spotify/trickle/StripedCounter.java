@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is spread over several cells, so that threads updating it concurrently mostly
+ * update different cells and don't contend. The cell used is picked by thread id, and cells are
+ * padded so that they don't share cache lines.
+ */
+final class StripedCounter {
+  // 64-byte cache lines hold 8 longs
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells = new AtomicLongArray(Stripes.COUNT * PADDING);
+
+  void increment() {
+    cells.incrementAndGet(Stripes.current() * PADDING);
+  }
+
+  void decrement() {
+    cells.decrementAndGet(Stripes.current() * PADDING);
+  }
+
+  long get() {
+    long sum = 0;
+
+    for (int i = 0; i < Stripes.COUNT; i++) {
+      sum += cells.get(i * PADDING);
+    }
+
+    return sum;
+  }
+
+  /**
+   * Returns the current value and resets the counter to zero. Increments made concurrently are
+   * either included in the returned value or kept for the next call, never lost.
+   */
+  long getAndReset() {
+    long sum = 0;
+
+    for (int i = 0; i < Stripes.COUNT; i++) {
+      sum += cells.getAndSet(i * PADDING, 0);
+    }
+
+    return sum;
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+/**
+ * Picks the stripe that the current thread should use in striped data structures.
+ */
+final class Stripes {
+  /**
+   * The number of stripes; a power of two no larger than needed for the number of processors,
+   * and at most 16.
+   */
+  static final int COUNT =
+      Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  private static final int MASK = COUNT - 1;
+
+  private Stripes() {
+    // prevent instantiation
+  }
+
+  static int current() {
+    final long id = Thread.currentThread().getId();
+
+    // thread ids are usually sequential, so the low bits are spread well enough
+    return (int) (id ^ (id >>> 32)) & MASK;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
+/**
+ * Node that fails with a {@link TimeoutException} if the node it wraps hasn't completed within a
+ * given time from when it was invoked. The failure is handled like any other node failure, so the
+ * node's fallback is used if it has one, on the executor the node was invoked with. The wrapped
+ * node's future is cancelled when it times out, as well as when the returned future is cancelled.
+ */
+final class TimeoutNode<V> extends TrickleNode<V> {
+  private final TrickleNode<V> delegate;
+  private final long timeout;
+  private final TimeUnit unit;
+
+  TimeoutNode(TrickleNode<V> delegate, long timeout, TimeUnit unit) {
+    checkArgument(timeout > 0, "timeout must be positive: %s", timeout);
+
+    this.delegate = checkNotNull(delegate, "delegate");
+    this.timeout = timeout;
+    this.unit = checkNotNull(unit, "unit");
+  }
+
+  @Override
+  public ListenableFuture<V> run(List<Object> values) {
+    return run(values, Trampoline.INSTANCE, null);
+  }
+
+  @Override
+  ListenableFuture<V> run(List<Object> values, final Executor executor,
+                          @Nullable NodeExecution execution) {
+    final ListenableFuture<V> future = delegate.run(values, executor, execution);
+
+    if (future == null || future.isDone()) {
+      return future;
+    }
+
+    final SettableFuture<V> result = SettableFuture.create();
+
+    // failing the result runs the node's fallback and the nodes after it, so that is done on the
+    // node's executor rather than the timer thread; the wrapped node's future is cancelled after
+    // that, so it doesn't win the race
+    final TimerWheel.Timeout timer = Timers.schedule(new Runnable() {
+      @Override
+      public void run() {
+        Timers.handOff(new Runnable() {
+          @Override
+          public void run() {
+            result.setException(
+                new TimeoutException("Node didn't complete within " + timeout + " " + unit));
+            future.cancel(false);
+          }
+        }, executor);
+      }
+    }, timeout, unit);
+
+    Futures.addCallback(future, new FutureCallback<V>() {
+      @Override
+      public void onSuccess(@Nullable V value) {
+        timer.cancel();
+        result.set(value);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        timer.cancel();
+        result.setException(t);
+      }
+    });
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (result.isCancelled()) {
+          timer.cancel();
+          future.cancel(false);
+        }
+      }
+    }, sameThreadExecutor());
+
+    return result;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.collect.Lists;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A hashed timer wheel: a single thread advances through a ring of buckets at a fixed tick
+ * rate, running the tasks whose deadlines have passed. Scheduling and cancelling a task are
+ * constant time operations that don't take any locks, which makes it cheap enough to have a timer
+ * for every node invocation. The price is precision; tasks run up to one tick late.
+ *
+ * The thread parks when there is nothing scheduled, and is woken up when a task is added.
+ * Cancelled tasks are dropped the next time the wheel passes their bucket.
+ */
+final class TimerWheel {
+  private final long tickNanos;
+  private final int mask;
+  private final List<List<Timeout>> wheel;
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+  private final Thread worker;
+
+  private volatile boolean idle;
+
+  TimerWheel(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int wheelSize) {
+    checkNotNull(threadFactory, "threadFactory");
+    checkArgument(tickDuration > 0, "tickDuration must be positive: %s", tickDuration);
+    checkArgument(wheelSize > 0 && Integer.bitCount(wheelSize) == 1,
+                  "wheelSize must be a power of two: %s", wheelSize);
+
+    this.tickNanos = checkNotNull(unit, "unit").toNanos(tickDuration);
+    this.mask = wheelSize - 1;
+
+    this.wheel = Lists.newArrayListWithCapacity(wheelSize);
+    for (int i = 0; i < wheelSize; i++) {
+      wheel.add(Lists.<Timeout>newLinkedList());
+    }
+
+    this.worker = threadFactory.newThread(new Worker());
+    worker.start();
+  }
+
+  /**
+   * Schedules a task to run on the timer thread once the delay has passed. Tasks should be short;
+   * anything expensive should be handed off to an executor.
+   */
+  Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    checkNotNull(task, "task");
+    checkNotNull(unit, "unit");
+
+    final Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+    added.add(timeout);
+
+    if (idle) {
+      LockSupport.unpark(worker);
+    }
+
+    return timeout;
+  }
+
+  /**
+   * A handle for a scheduled task.
+   */
+  static final class Timeout {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    // only accessed from the timer thread
+    private long remainingRounds;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Prevents the task from running, unless it already has. Returns true if the task will not
+     * run as a result of this call.
+     */
+    boolean cancel() {
+      return state.compareAndSet(PENDING, CANCELLED);
+    }
+
+    boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    private boolean expire() {
+      return state.compareAndSet(PENDING, EXPIRED);
+    }
+  }
+
+  private final class Worker implements Runnable {
+    private final long startTime = System.nanoTime();
+    private long tick;
+    private int scheduled;
+
+    @Override
+    public void run() {
+      while (true) {
+        waitForNextTick();
+        transferAdded();
+        expire(wheel.get((int) (tick & mask)));
+        tick++;
+
+        if (scheduled == 0) {
+          parkUntilAdded();
+        }
+      }
+    }
+
+    private void waitForNextTick() {
+      final long deadline = startTime + (tick + 1) * tickNanos;
+
+      for (long now = System.nanoTime(); now - deadline < 0; now = System.nanoTime()) {
+        LockSupport.parkNanos(deadline - now);
+      }
+    }
+
+    private void parkUntilAdded() {
+      idle = true;
+
+      // re-check after publishing the idle flag, or a task added in between could be missed
+      while (added.isEmpty()) {
+        LockSupport.park();
+      }
+
+      idle = false;
+
+      // skip the ticks that passed while parked; there was nothing in their buckets
+      tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+    }
+
+    private void transferAdded() {
+      for (Timeout timeout = added.poll(); timeout != null; timeout = added.poll()) {
+        if (timeout.isCancelled()) {
+          continue;
+        }
+
+        final long deadlineTick = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+
+        timeout.remainingRounds = (deadlineTick - tick) / wheel.size();
+        wheel.get((int) (deadlineTick & mask)).add(timeout);
+        scheduled++;
+      }
+    }
+
+    private void expire(List<Timeout> bucket) {
+      for (Iterator<Timeout> iterator = bucket.iterator(); iterator.hasNext(); ) {
+        final Timeout timeout = iterator.next();
+
+        if (timeout.remainingRounds > 0 && !timeout.isCancelled()) {
+          timeout.remainingRounds--;
+          continue;
+        }
+
+        iterator.remove();
+        scheduled--;
+
+        if (timeout.expire()) {
+          runTask(timeout.task);
+        }
+      }
+    }
+
+    private void runTask(Runnable task) {
+      try {
+        task.run();
+      } catch (Throwable t) {
+        // report it without letting it kill the timer thread
+        final Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+      }
+    }
+  }
+}
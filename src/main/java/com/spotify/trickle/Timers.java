@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Holds the timer shared by all graphs for delayed actions, such as flushing batches and timing
+ * out nodes. Timer tasks should be short; anything expensive should be handed off to an executor.
+ *
+ * The timer is a {@link TimerWheel} with a one millisecond tick, so timers are cheap to create and
+ * cancel, but may fire up to a millisecond late.
+ */
+final class Timers {
+  private Timers() {
+    // prevent instantiation
+  }
+
+  private static final long TICK_MILLIS = 1;
+  private static final int WHEEL_SIZE = 512;
+  private static final long TASK_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  static TimerWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    checkNotNull(task, "task");
+    checkNotNull(unit, "unit");
+
+    return Holder.TIMER.schedule(task, delay, unit);
+  }
+
+  /**
+   * Returns the executor that timer tasks hand work off to when they have no executor of their
+   * own, so that user code never runs on the timer thread and can't delay other timers. User code
+   * does run on it, though: batch functions of batches sent after their delay, and nodes,
+   * fallbacks and the nodes after them in runs on the calling thread that are resumed by a timer,
+   * for instance to retry a node. Like any node code, that code shouldn't block.
+   *
+   * The executor has one thread per processor at most, so a burst of timeouts can't create
+   * threads without bound; further work waits in its queue. Its threads are daemons, and are only
+   * kept while there is work for them.
+   */
+  static Executor executor() {
+    return TaskHolder.EXECUTOR;
+  }
+
+  /**
+   * Hands work off from a timer task to the executor a node was invoked with, so that it runs
+   * where the node's other work does. A run on the calling thread has no executor of its own, so
+   * its work goes to the timers' executor instead, as does work that the node's executor rejects.
+   */
+  static void handOff(Runnable task, Executor executor) {
+    checkNotNull(task, "task");
+    checkNotNull(executor, "executor");
+
+    if (executor != Trampoline.INSTANCE) {
+      try {
+        executor.execute(task);
+        return;
+      } catch (RejectedExecutionException e) {
+        // run it on the timers' executor instead
+      }
+    }
+
+    executor().execute(task);
+  }
+
+  /**
+   * Lazy holder for the timer, so the thread is only started once something is scheduled.
+   */
+  private static final class Holder {
+    static final TimerWheel TIMER = createTimer();
+
+    private static TimerWheel createTimer() {
+      return new TimerWheel(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("trickle-timer-%d")
+              .build(),
+          TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+  }
+
+  /**
+   * Lazy holder for the executor, separate from the timer's, since tasks may be handed off without
+   * using the timer.
+   */
+  private static final class TaskHolder {
+    static final Executor EXECUTOR = createExecutor();
+
+    private static Executor createExecutor() {
+      final int threads = Runtime.getRuntime().availableProcessors();
+      final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+          threads, threads, TASK_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("trickle-timer-task-%d")
+              .build());
+
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
+}
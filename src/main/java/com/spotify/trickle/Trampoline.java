@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An executor that runs tasks on the calling thread, like {@link
+ * com.google.common.util.concurrent.MoreExecutors#sameThreadExecutor()}, except that tasks
+ * submitted while it is already running a task on the same thread are queued, and run once that
+ * task has returned. That way, a chain of futures where the completion of each one triggers the
+ * next through this executor runs in a loop rather than as nested calls, and the length of the
+ * chain isn't limited by the size of the thread stack.
+ *
+ * All tasks have run by the time the outermost call to {@link #execute(Runnable)} returns. If
+ * tasks throw, the first exception is rethrown from that call, once the queue is empty.
+ */
+final class Trampoline implements Executor {
+  static final Trampoline INSTANCE = new Trampoline();
+
+  // the queue of the thread's running trampoline, or null if it isn't running one
+  private static final ThreadLocal<Queue<Runnable>> QUEUE = new ThreadLocal<Queue<Runnable>>();
+
+  private Trampoline() {
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    checkNotNull(command, "command");
+
+    Queue<Runnable> queue = QUEUE.get();
+
+    if (queue != null) {
+      queue.add(command);
+      return;
+    }
+
+    queue = new ArrayDeque<Runnable>();
+    QUEUE.set(queue);
+
+    RuntimeException failure = null;
+
+    try {
+      for (Runnable task = command; task != null; task = queue.poll()) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    } finally {
+      QUEUE.remove();
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -17,112 +17,200 @@
 package com.spotify.trickle;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
-import static com.google.common.collect.Lists.newLinkedList;
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
 
 /**
- * Defines how to traverse a {@link Graph}, ensuring that nodes are only invoked once. May
- * optionally collect debug information about each node invocation, simplifying troubleshooting.
+ * Holds the state of a single graph run, such as the executor to use. May optionally collect
+ * debug information about each node invocation, simplifying troubleshooting. The traversal itself
+ * is defined by the graph's {@link ExecutionPlan}.
+ *
+ * Debug information is recorded into an array with a slot per node invocation, allocated by
+ * {@link #prepareCalls(int)} before the run starts. Recording only stores a reference to the
+ * futures passed to the node; their values are read if and when an exception is reported.
+ * The runs of a batch each have their own state, created by {@link #newRun()}, so that an
+ * exception only reports the calls of the run it happened in.
  *
- * Implementation note: all state-changing methods - those updating the {@link #visited} and
- * {@link #calls} fields as well as any call to {@link #addBindings(java.util.Map)} - are
- * run from the same thread, when graph execution is started. This class is NOT threadsafe if that
- * should change.
+ * Implementation note: all state-changing methods are run from the same thread, when graph
+ * execution is started. Other threads may read the recorded calls while that is still going on;
+ * that is safe since {@link FutureCallInformation} is immutable, but a call recorded concurrently
+ * may or may not be seen. The count of retries is the exception; it is updated by whichever
+ * thread a node fails on, so it is atomic.
  */
 class TraverseState {
-  private final Map<Input<?>, Object> bindings;
+  private static final Class<?> SAME_THREAD_EXECUTOR_CLASS = sameThreadExecutor().getClass();
+
   private final Executor executor;
   private final boolean collectCallInformation;
-  private final Map<Graph<?>, ListenableFuture<?>> visited = newHashMap();
-  private final List<FutureCallInformation> calls = newLinkedList();
+  private final boolean lightweightExceptions;
+  private final boolean canRunInline;
+  @Nullable
+  private final Deadline deadline;
+  @Nullable
+  private final ExecutionListener listener;
+  private final AtomicInteger retries = new AtomicInteger();
+  @Nullable
+  private FutureCallInformation[] calls;
 
-  TraverseState(Map<Input<?>, Object> bindings, Executor executor, boolean collectCallInformation) {
-    this.bindings = checkNotNull(bindings, "bindings");
-    this.executor = checkNotNull(executor, "executor");
-    this.collectCallInformation = collectCallInformation;
+  TraverseState(Executor executor, boolean collectCallInformation) {
+    this(executor, collectCallInformation, false, null, null);
   }
 
-  <T> T getBinding(Input<T> input) {
-    checkNotNull(input, "input");
+  TraverseState(Executor executor, boolean collectCallInformation, boolean lightweightExceptions,
+                @Nullable Deadline deadline, @Nullable ExecutionListener listener) {
+    checkNotNull(executor, "executor");
+
+    this.collectCallInformation = collectCallInformation;
+    this.lightweightExceptions = lightweightExceptions;
+    this.canRunInline = executor.getClass() == SAME_THREAD_EXECUTOR_CLASS;
+    // when nodes whose inputs complete later run on the thread completing them, each node would
+    // otherwise invoke the next one from its completion callback, nesting calls as deep as the
+    // graph
+    this.executor = canRunInline ? Trampoline.INSTANCE : executor;
+    this.deadline = deadline;
+    this.listener = listener;
+  }
 
-    // this cast is fine because the API enforces it
-    //noinspection unchecked
-    return (T) bindings.get(input);
+  private TraverseState(TraverseState other) {
+    this.executor = other.executor;
+    this.collectCallInformation = other.collectCallInformation;
+    this.lightweightExceptions = other.lightweightExceptions;
+    this.canRunInline = other.canRunInline;
+    this.deadline = other.deadline;
+    this.listener = other.listener;
   }
 
-  <T> ListenableFuture<T> futureForGraph(Graph<T> graph) {
-    checkNotNull(graph, "node");
-    final ListenableFuture<T> future;
+  /**
+   * Returns the state of another run with the same settings as this one, for running a batch. It
+   * has its own debug information and its own count of retries.
+   */
+  TraverseState newRun() {
+    return new TraverseState(this);
+  }
 
-    if (hasVisited(graph)) {
-      future = getVisited(graph);
-    } else {
-      future = graph.run(this);
-      visit(graph, future);
-    }
-    return future;
+  /**
+   * Returns the executor to dispatch nodes to. If the run's executor is the same thread executor,
+   * this is a {@link Trampoline}, which runs nodes on the same thread without nesting.
+   */
+  Executor getExecutor() {
+    return executor;
   }
 
-  <T> boolean hasVisited(Graph<T> graph) {
-    checkNotNull(graph, "graph");
+  /**
+   * Returns true if node methods may be invoked directly on the thread that finds their inputs
+   * ready, which is what the executor would do anyway. For any other executor, nodes must always
+   * be dispatched through it.
+   */
+  boolean canRunInline() {
+    return canRunInline;
+  }
 
-    return visited.containsKey(graph);
+  /**
+   * Returns true if {@link GraphExecutionException}s should be created without stack traces, and
+   * with their messages rendered lazily.
+   */
+  boolean lightweightExceptions() {
+    return lightweightExceptions;
   }
 
-  <T> ListenableFuture<T> getVisited(Graph<T> graph) {
-    checkNotNull(graph, "graph");
+  @Nullable
+  ExecutionListener getListener() {
+    return listener;
+  }
 
-    // this cast is fine because the API enforces it
-    //noinspection unchecked
-    return (ListenableFuture<T>) visited.get(graph);
+  /**
+   * Returns a future that fails when the run's deadline expires, or null if the run has no
+   * deadline.
+   */
+  @Nullable
+  ListenableFuture<Void> deadlineExpiry() {
+    return deadline == null ? null : deadline.expiry();
   }
 
-  <T> void visit(Graph<T> graph, ListenableFuture<T> future) {
-    checkNotNull(graph, "graph");
-    checkNotNull(future, "future");
+  /**
+   * Counts a retry of a node against the run's retry budget, returning false without counting it
+   * if {@code budget} retries have already been made in this run.
+   */
+  boolean tryRetry(int budget) {
+    while (true) {
+      final int made = retries.get();
 
-    visited.put(graph, future);
+      if (made >= budget) {
+        return false;
+      }
+      if (retries.compareAndSet(made, made + 1)) {
+        return true;
+      }
+    }
   }
 
-  Executor getExecutor() {
-    return executor;
+  /**
+   * Allocates room for recording debug information about the given number of node invocations,
+   * if debug information is collected for this run.
+   */
+  void prepareCalls(int count) {
+    if (collectCallInformation) {
+      calls = new FutureCallInformation[count];
+    }
   }
 
   public List<FutureCallInformation> getCalls() {
-    return ImmutableList.copyOf(calls);
-  }
+    final FutureCallInformation[] recorded = calls;
+
+    if (recorded == null) {
+      return ImmutableList.of();
+    }
+
+    final ImmutableList.Builder<FutureCallInformation> result = ImmutableList.builder();
+
+    for (FutureCallInformation call : recorded) {
+      if (call != null) {
+        result.add(call);
+      }
+    }
 
-  void addBindings(Map<Input<?>, Object> newBindings) {
-    Sets.SetView<Input<?>> intersection = Sets.intersection(bindings.keySet(), newBindings.keySet());
-    checkState(intersection.isEmpty(), "Duplicate binding for inputs: %s", intersection);
-    bindings.putAll(newBindings);
+    return result.build();
   }
 
-  FutureCallInformation record(NodeInfo node, List<ListenableFuture<?>> parameterValues) {
+  /**
+   * Returns information about a node invocation, recording it in the given slot if debug
+   * information is collected for this run.
+   */
+  FutureCallInformation record(int index, NodeInfo node,
+                               List<ListenableFuture<?>> parameterValues) {
     checkNotNull(node, "node");
     checkNotNull(parameterValues, "parameterValues");
 
     FutureCallInformation futureCallInformation = new FutureCallInformation(node, parameterValues);
 
-    if (collectCallInformation) {
-      calls.add(futureCallInformation);
+    if (calls != null) {
+      calls[index] = futureCallInformation;
     }
 
     return futureCallInformation;
   }
 
-  static TraverseState empty(Executor executor, boolean collectCallInformation) {
-    return new TraverseState(Maps.<Input<?>, Object>newHashMap(), executor, collectCallInformation);
+  /**
+   * Records the information about a node invocation that another run recorded in the given slot,
+   * for a node invocation that is shared by the runs of a batch.
+   */
+  void recordShared(int index, TraverseState other) {
+    checkNotNull(other, "other");
+
+    if (calls != null && other.calls != null) {
+      calls[index] = other.calls[index];
+    }
   }
 
   static class FutureCallInformation {
@@ -144,6 +232,28 @@ class TraverseState {
       return true;
     }
 
+    /**
+     * Returns true if any of the parameters has failed or been cancelled, meaning the node won't
+     * be or wasn't invoked.
+     */
+    public boolean hasFailedParameter() {
+      for (ListenableFuture<?> parameterFuture : parameterFutures) {
+        if (!parameterFuture.isDone()) {
+          continue;
+        }
+
+        try {
+          Uninterruptibles.getUninterruptibly(parameterFuture);
+        } catch (ExecutionException e) {
+          return true;
+        } catch (CancellationException e) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
     public NodeInfo getNode() {
       return node;
     }
@@ -17,6 +17,7 @@
 package com.spotify.trickle;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Static methods for constructing Trickle graphs. See the documentation at
@@ -82,6 +83,76 @@ public final class Trickle {
     return new GraphBuilder.ListGraphBuilder<A, R>(func);
   }
 
+  /**
+   * Initiates construction of a new sink node that looks up values for a single key parameter,
+   * collecting keys from concurrent invocations and looking them up together. A batch of keys is
+   * sent to the supplied function when it contains {@code maxSize} invocations, or when {@code
+   * maxDelay} has passed since the first invocation was added to it, whichever comes first.
+   * Batches are collected across all runs of all graphs this node is part of.
+   *
+   * @param func     function that looks up values for a list of keys
+   * @param maxSize  the maximum number of node invocations per batch
+   * @param maxDelay the maximum time an invocation waits for its batch to fill up
+   * @param unit     the time unit of {@code maxDelay}
+   */
+  public static <K, V> NeedsParameters1<K, V> call(BatchFunc<K, V> func, int maxSize,
+                                                   long maxDelay, TimeUnit unit) {
+    return new GraphBuilder.GraphBuilder1<K, V>(
+        new BatchingNode<K, V>(func, maxSize, maxDelay, unit));
+  }
+
+  /**
+   * Creates a graph consisting of a single node executing the supplied blocking function on a
+   * thread of its own. On a JDK with virtual threads, each invocation runs on a new virtual thread;
+   * otherwise, on a thread from a shared pool that grows as needed.
+   */
+  public static <R> ConfigurableGraph<R> callBlocking(BlockingFunc0<R> func) {
+    return new GraphBuilder<R>(BlockingNodes.adapt(func));
+  }
+
+  /**
+   * Initiates construction of a new sink node with a single parameter dependency, running the
+   * supplied blocking function on a thread of its own. See {@link #callBlocking(BlockingFunc0)}.
+   */
+  public static <A, R> NeedsParameters1<A, R> callBlocking(BlockingFunc1<A, R> func) {
+    return new GraphBuilder.GraphBuilder1<A, R>(BlockingNodes.adapt(func));
+  }
+
+  /**
+   * Initiates construction of a new sink node with two parameter dependencies, running the
+   * supplied blocking function on a thread of its own. See {@link #callBlocking(BlockingFunc0)}.
+   */
+  public static <A, B, R> NeedsParameters2<A, B, R> callBlocking(BlockingFunc2<A, B, R> func) {
+    return new GraphBuilder.GraphBuilder2<A, B, R>(BlockingNodes.adapt(func));
+  }
+
+  /**
+   * Initiates construction of a new sink node with three parameter dependencies, running the
+   * supplied blocking function on a thread of its own. See {@link #callBlocking(BlockingFunc0)}.
+   */
+  public static <A, B, C, R> NeedsParameters3<A, B, C, R> callBlocking(
+      BlockingFunc3<A, B, C, R> func) {
+    return new GraphBuilder.GraphBuilder3<A, B, C, R>(BlockingNodes.adapt(func));
+  }
+
+  /**
+   * Initiates construction of a new sink node with four parameter dependencies, running the
+   * supplied blocking function on a thread of its own. See {@link #callBlocking(BlockingFunc0)}.
+   */
+  public static <A, B, C, D, R> NeedsParameters4<A, B, C, D, R> callBlocking(
+      BlockingFunc4<A, B, C, D, R> func) {
+    return new GraphBuilder.GraphBuilder4<A, B, C, D, R>(BlockingNodes.adapt(func));
+  }
+
+  /**
+   * Initiates construction of a new sink node with five parameter dependencies, running the
+   * supplied blocking function on a thread of its own. See {@link #callBlocking(BlockingFunc0)}.
+   */
+  public static <A, B, C, D, E, R> NeedsParameters5<A, B, C, D, E, R> callBlocking(
+      BlockingFunc5<A, B, C, D, E, R> func) {
+    return new GraphBuilder.GraphBuilder5<A, B, C, D, E, R>(BlockingNodes.adapt(func));
+  }
+
   public interface NeedsParameters1<A, R> {
     /**
      * Indicate where to find values for the parameters required to invoke the function in this
@@ -19,6 +19,9 @@ package com.spotify.trickle;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -29,6 +32,19 @@ abstract class TrickleNode<N> {
 
   public abstract ListenableFuture<N> run(List<Object> values);
 
+  /**
+   * Invokes the node from a graph run that dispatches nodes to the given executor. Nodes that wrap
+   * another one pass it on, and nodes that start calls later, once other calls have completed,
+   * start them on it. The execution, if the run has a listener, is passed on the same way, so
+   * that nodes can report what happens to the call, such as being queued by a {@link Bulkhead}.
+   */
+  ListenableFuture<N> run(List<Object> values, Executor executor,
+                          @Nullable NodeExecution execution) {
+    checkNotNull(executor, "executor");
+
+    return run(values);
+  }
+
   static <V> TrickleNode<V> create(Func<V> func) {
     checkNotNull(func);
 
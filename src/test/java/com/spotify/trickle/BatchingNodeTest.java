@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.isA;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BatchingNodeTest {
+  List<List<String>> calls;
+  SettableFuture<Map<String, Integer>> response;
+  BatchFunc<String, Integer> func;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() throws Exception {
+    calls = Lists.newCopyOnWriteArrayList();
+    response = SettableFuture.create();
+
+    func = new BatchFunc<String, Integer>() {
+      @Override
+      public ListenableFuture<Map<String, Integer>> run(List<String> keys) {
+        calls.add(keys);
+        return response;
+      }
+    };
+  }
+
+  @Test
+  public void shouldSendBatchWhenFull() throws Exception {
+    BatchingNode<String, Integer> node = new BatchingNode<String, Integer>(func, 2, 1, TimeUnit.HOURS);
+
+    ListenableFuture<Integer> first = node.run(ImmutableList.<Object>of("a"));
+    assertThat(calls.isEmpty(), is(true));
+
+    ListenableFuture<Integer> second = node.run(ImmutableList.<Object>of("b"));
+    assertThat(calls, equalTo((List<List<String>>) ImmutableList.<List<String>>of(ImmutableList.of("a", "b"))));
+
+    response.set(ImmutableMap.of("a", 1, "b", 2));
+
+    assertThat(first.get(), equalTo(1));
+    assertThat(second.get(), equalTo(2));
+  }
+
+  @Test
+  public void shouldSendBatchAfterMaxDelay() throws Exception {
+    BatchingNode<String, Integer> node =
+        new BatchingNode<String, Integer>(func, 100, 10, TimeUnit.MILLISECONDS);
+
+    ListenableFuture<Integer> future = node.run(ImmutableList.<Object>of("a"));
+    response.set(ImmutableMap.of("a", 1));
+
+    assertThat(future.get(1, TimeUnit.SECONDS), equalTo(1));
+    assertThat(calls.size(), equalTo(1));
+  }
+
+  @Test
+  public void shouldNotSendDelayedBatchOnTimerThread() throws Exception {
+    final List<String> threads = Lists.newCopyOnWriteArrayList();
+    BatchFunc<String, Integer> recordThread = new BatchFunc<String, Integer>() {
+      @Override
+      public ListenableFuture<Map<String, Integer>> run(List<String> keys) {
+        threads.add(Thread.currentThread().getName());
+        return response;
+      }
+    };
+    BatchingNode<String, Integer> node =
+        new BatchingNode<String, Integer>(recordThread, 100, 10, TimeUnit.MILLISECONDS);
+
+    ListenableFuture<Integer> future = node.run(ImmutableList.<Object>of("a"));
+    response.set(ImmutableMap.of("a", 1));
+
+    assertThat(future.get(1, TimeUnit.SECONDS), equalTo(1));
+    assertThat(threads.get(0).startsWith("trickle-timer-task-"), is(true));
+  }
+
+  @Test
+  public void shouldLookUpDuplicateKeysOnce() throws Exception {
+    BatchingNode<String, Integer> node = new BatchingNode<String, Integer>(func, 3, 1, TimeUnit.HOURS);
+
+    ListenableFuture<Integer> first = node.run(ImmutableList.<Object>of("a"));
+    ListenableFuture<Integer> second = node.run(ImmutableList.<Object>of("b"));
+    ListenableFuture<Integer> third = node.run(ImmutableList.<Object>of("a"));
+
+    response.set(ImmutableMap.of("a", 1, "b", 2));
+
+    assertThat(calls, equalTo((List<List<String>>) ImmutableList.<List<String>>of(ImmutableList.of("a", "b"))));
+    assertThat(first.get(), equalTo(1));
+    assertThat(second.get(), equalTo(2));
+    assertThat(third.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldLeaveKeysOfCancelledInvocationsOutOfBatch() throws Exception {
+    BatchingNode<String, Integer> node = new BatchingNode<String, Integer>(func, 4, 1, TimeUnit.HOURS);
+
+    ListenableFuture<Integer> first = node.run(ImmutableList.<Object>of("a"));
+    node.run(ImmutableList.<Object>of("b")).cancel(false);
+    ListenableFuture<Integer> third = node.run(ImmutableList.<Object>of("c"));
+    ListenableFuture<Integer> fourth = node.run(ImmutableList.<Object>of("c"));
+    third.cancel(false);
+
+    response.set(ImmutableMap.of("a", 1, "c", 3));
+
+    assertThat(calls, equalTo((List<List<String>>) ImmutableList.<List<String>>of(ImmutableList.of("a", "c"))));
+    assertThat(first.get(), equalTo(1));
+    assertThat(fourth.get(), equalTo(3));
+  }
+
+  @Test
+  public void shouldNotSendBatchIfAllInvocationsAreCancelled() throws Exception {
+    BatchingNode<String, Integer> node =
+        new BatchingNode<String, Integer>(func, 100, 10, TimeUnit.MILLISECONDS);
+
+    node.run(ImmutableList.<Object>of("a")).cancel(false);
+    Thread.sleep(100);
+
+    assertThat(calls.isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldFailInvocationsForMissingKeys() throws Exception {
+    BatchingNode<String, Integer> node = new BatchingNode<String, Integer>(func, 1, 1, TimeUnit.HOURS);
+
+    ListenableFuture<Integer> future = node.run(ImmutableList.<Object>of("missing"));
+    response.set(ImmutableMap.<String, Integer>of());
+
+    thrown.expectCause(isA(NoSuchElementException.class));
+    future.get();
+  }
+
+  @Test
+  public void shouldFailAllInvocationsIfLookupFails() throws Exception {
+    final RuntimeException expected = new RuntimeException("expected");
+    BatchingNode<String, Integer> node = new BatchingNode<String, Integer>(
+        new BatchFunc<String, Integer>() {
+          @Override
+          public ListenableFuture<Map<String, Integer>> run(List<String> keys) {
+            return immediateFailedFuture(expected);
+          }
+        }, 1, 1, TimeUnit.HOURS);
+
+    thrown.expectCause(equalTo((Throwable) expected));
+    node.run(ImmutableList.<Object>of("a")).get();
+  }
+
+  @Test
+  public void shouldBatchKeysAcrossGraphRuns() throws Exception {
+    Input<String> key = Input.named("key");
+    Graph<Integer> graph = call(func, 3, 1, TimeUnit.HOURS).with(key);
+
+    ListenableFuture<List<Integer>> result = graph.runBatch(ImmutableList.of(
+        ImmutableMap.<Input<?>, Object>of(key, "a"),
+        ImmutableMap.<Input<?>, Object>of(key, "b"),
+        ImmutableMap.<Input<?>, Object>of(key, "c")));
+
+    response.set(ImmutableMap.of("a", 1, "b", 2, "c", 3));
+
+    assertThat(result.get(), equalTo((List<Integer>) ImmutableList.of(1, 2, 3)));
+    assertThat(calls.size(), equalTo(1));
+  }
+}
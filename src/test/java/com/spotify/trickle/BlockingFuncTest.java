@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static com.spotify.trickle.Trickle.callBlocking;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BlockingFuncTest {
+  Input<String> input;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+  }
+
+  @Test
+  public void shouldRunBlockingFunctionOnAnotherThread() throws Exception {
+    final Thread[] invokedOn = new Thread[1];
+    BlockingFunc1<String, String> func = new BlockingFunc1<String, String>() {
+      @Override
+      public String run(String arg) {
+        invokedOn[0] = Thread.currentThread();
+        return arg + "!";
+      }
+    };
+
+    assertThat(callBlocking(func).with(input).bind(input, "hi").run().get(), equalTo("hi!"));
+    assertThat(invokedOn[0], not(sameInstance(Thread.currentThread())));
+  }
+
+  @Test
+  public void shouldPassAllParameters() throws Exception {
+    Input<Integer> count = Input.named("count");
+    BlockingFunc2<String, Integer, String> repeat = new BlockingFunc2<String, Integer, String>() {
+      @Override
+      public String run(String arg1, Integer arg2) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < arg2; i++) {
+          result.append(arg1);
+        }
+        return result.toString();
+      }
+    };
+
+    Graph<String> graph = callBlocking(repeat).with(input, count);
+
+    assertThat(graph.bind(input, "ho").bind(count, 3).run().get(), equalTo("hohoho"));
+  }
+
+  @Test
+  public void shouldRunBlockingCallsConcurrently() throws Exception {
+    final int calls = 100;
+    final CountDownLatch allStarted = new CountDownLatch(calls);
+    BlockingFunc1<String, Boolean> waitForOthers = new BlockingFunc1<String, Boolean>() {
+      @Override
+      public Boolean run(String arg) throws InterruptedException {
+        allStarted.countDown();
+        return allStarted.await(10, TimeUnit.SECONDS);
+      }
+    };
+    ListFunc<Boolean, Boolean> all = new ListFunc<Boolean, Boolean>() {
+      @Override
+      public ListenableFuture<Boolean> run(List<? extends Boolean> arg) {
+        return immediateFuture(!arg.contains(false));
+      }
+    };
+
+    List<Graph<Boolean>> nodes = Lists.newArrayList();
+    for (int i = 0; i < calls; i++) {
+      nodes.add(callBlocking(waitForOthers).with(input));
+    }
+
+    assertThat(call(all).with(nodes).bind(input, "go").run().get(), is(true));
+  }
+
+  @Test
+  public void shouldFailNodeWithExceptionThrownByFunction() throws Exception {
+    final IOException expected = new IOException("expected");
+    BlockingFunc0<String> failing = new BlockingFunc0<String>() {
+      @Override
+      public String run() throws IOException {
+        throw expected;
+      }
+    };
+
+    try {
+      callBlocking(failing).run().get();
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), is(instanceOf(GraphExecutionException.class)));
+      assertThat(e.getCause().getCause(), equalTo((Throwable) expected));
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class BulkheadTest {
+  Input<String> input;
+  List<SettableFuture<String>> calls;
+  Func1<String, String> pending;
+  List<Throwable> fallbackCauses;
+  AsyncFunction<Throwable, String> fallback;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    calls = Lists.newArrayList();
+    pending = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        SettableFuture<String> call = SettableFuture.create();
+        calls.add(call);
+        return call;
+      }
+    };
+    fallbackCauses = Lists.newArrayList();
+    fallback = new AsyncFunction<Throwable, String>() {
+      @Override
+      public ListenableFuture<String> apply(Throwable input) {
+        fallbackCauses.add(input);
+        return immediateFuture("rejected");
+      }
+    };
+  }
+
+  @Test
+  public void shouldRejectCallsBeyondLimitIntoFallback() throws Exception {
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(2);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    graph.bind(input, "a").run();
+    graph.bind(input, "b").run();
+    ListenableFuture<String> third = graph.bind(input, "c").run();
+
+    assertThat(third.get(), equalTo("rejected"));
+    assertThat(fallbackCauses.get(0), is(instanceOf(RejectedExecutionException.class)));
+    assertThat(calls.size(), equalTo(2));
+    assertThat(bulkhead.inFlight(), equalTo(2));
+    assertThat(bulkhead.rejected(), equalTo(1L));
+  }
+
+  @Test
+  public void shouldAllowNewCallsOnceCallsComplete() throws Exception {
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    ListenableFuture<String> first = graph.bind(input, "a").run();
+    calls.get(0).set("done");
+
+    ListenableFuture<String> second = graph.bind(input, "b").run();
+
+    assertThat(first.get(), equalTo("done"));
+    assertThat(second.isDone(), is(false));
+    assertThat(calls.size(), equalTo(2));
+    assertThat(bulkhead.rejected(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldQueueCallsBeyondLimit() throws Exception {
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, 2);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    ListenableFuture<String> first = graph.bind(input, "a").run();
+    ListenableFuture<String> second = graph.bind(input, "b").run();
+    ListenableFuture<String> third = graph.bind(input, "c").run();
+
+    assertThat(calls.size(), equalTo(1));
+    assertThat(bulkhead.queued(), equalTo(2));
+
+    calls.get(0).set("1");
+
+    assertThat(first.get(), equalTo("1"));
+    assertThat(calls.size(), equalTo(2));
+    assertThat(bulkhead.queued(), equalTo(1));
+
+    calls.get(1).setException(new RuntimeException("expected"));
+    calls.get(2).set("3");
+
+    assertThat(second.get(), equalTo("rejected"));
+    assertThat(third.get(), equalTo("3"));
+    assertThat(bulkhead.inFlight(), equalTo(0));
+    assertThat(bulkhead.queued(), equalTo(0));
+  }
+
+  @Test
+  public void shouldStartQueuedCallOnExecutorOfCaller() throws Exception {
+    final SettableFuture<String> first = SettableFuture.create();
+    Func1<String, String> threadName = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return arg.equals("first") ? first : immediateFuture(Thread.currentThread().getName());
+      }
+    };
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, 1);
+    Graph<String> graph = call(threadName).with(input).bulkhead(bulkhead);
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("caller-%d").build());
+
+    try {
+      graph.bind(input, "first").run();
+      ListenableFuture<String> queued = graph.bind(input, "queued").run(executor);
+
+      awaitQueued(bulkhead);
+      first.set("done");
+
+      assertThat(queued.get(1, TimeUnit.SECONDS), equalTo("caller-0"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldRejectCallsWhenQueueIsFull() throws Exception {
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, 1);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    graph.bind(input, "a").run();
+    graph.bind(input, "b").run();
+
+    assertThat(graph.bind(input, "c").run().get(), equalTo("rejected"));
+    assertThat(bulkhead.rejected(), equalTo(1L));
+  }
+
+  @Test
+  public void shouldLimitCallsOfNodesSharingBulkhead() throws Exception {
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1);
+    Graph<String> left = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+    Graph<String> right = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    left.bind(input, "a").run();
+
+    assertThat(right.bind(input, "b").run().get(), equalTo("rejected"));
+  }
+
+  @Test
+  public void shouldRemoveCancelledCallsFromQueue() throws Exception {
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, 1);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead);
+
+    graph.bind(input, "a").run();
+    ListenableFuture<String> queued = graph.bind(input, "b").run();
+
+    queued.cancel(false);
+
+    assertThat(bulkhead.queued(), equalTo(0));
+
+    calls.get(0).set("done");
+
+    assertThat(calls.size(), equalTo(1));
+    assertThat(bulkhead.inFlight(), equalTo(0));
+  }
+
+  @Test
+  public void shouldStartQueuedCallsThatCompleteImmediatelyWithoutNesting() throws Exception {
+    final int queueSize = 50000;
+    final SettableFuture<String> first = SettableFuture.create();
+    Func1<String, String> firstPending = new Func1<String, String>() {
+      boolean invoked;
+
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        if (!invoked) {
+          invoked = true;
+          return first;
+        }
+        return immediateFuture(arg);
+      }
+    };
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, queueSize);
+    Graph<String> graph = call(firstPending).with(input).bulkhead(bulkhead);
+
+    graph.bind(input, "first").run();
+    ListenableFuture<String> last = null;
+    for (int i = 0; i < queueSize; i++) {
+      last = graph.bind(input, "last").run();
+    }
+
+    first.set("first");
+
+    assertThat(last.get(), equalTo("last"));
+    assertThat(bulkhead.inFlight(), equalTo(0));
+  }
+
+  @Test
+  public void shouldShrinkAdaptiveLimitWhenCallsAreSlow() throws Exception {
+    Bulkhead bulkhead = Bulkhead.aimd(4, 10, 1, TimeUnit.NANOSECONDS);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    for (int i = 0; i < 4; i++) {
+      graph.bind(input, "a").run();
+    }
+    for (SettableFuture<String> call : calls) {
+      call.set("slow");
+    }
+
+    assertThat(bulkhead.limit(), equalTo(1));
+
+    graph.bind(input, "b").run();
+
+    assertThat(graph.bind(input, "c").run().get(), equalTo("rejected"));
+  }
+
+  @Test
+  public void shouldGrowAdaptiveLimitWhileCallsAreFast() throws Exception {
+    Bulkhead bulkhead = Bulkhead.aimd(2, 10, 1, TimeUnit.HOURS);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    graph.bind(input, "a").run();
+    graph.bind(input, "b").run();
+    calls.get(0).set("fast");
+
+    assertThat(bulkhead.limit(), equalTo(3));
+
+    graph.bind(input, "c").run();
+    graph.bind(input, "d").run();
+
+    assertThat(bulkhead.inFlight(), equalTo(3));
+    assertThat(bulkhead.rejected(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldShrinkAdaptiveLimitWhenCallsTimeOut() throws Exception {
+    Bulkhead bulkhead = Bulkhead.aimd(4, 10, 1, TimeUnit.HOURS);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    graph.bind(input, "a").run();
+    calls.get(0).setException(new TimeoutException("expected"));
+
+    assertThat(bulkhead.limit(), equalTo(3));
+  }
+
+  @Test
+  public void shouldStartSeveralQueuedCallsWhenLimitGrows() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Aimd(1, 10, TimeUnit.HOURS.toNanos(1));
+    Bulkhead bulkhead = new Bulkhead(limit, 2);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead);
+
+    graph.bind(input, "a").run();
+    graph.bind(input, "b").run();
+    graph.bind(input, "c").run();
+    calls.get(0).set("fast");
+
+    assertThat(bulkhead.limit(), equalTo(2));
+    assertThat(calls.size(), equalTo(3));
+    assertThat(bulkhead.inFlight(), equalTo(2));
+    assertThat(bulkhead.queued(), equalTo(0));
+  }
+
+  @Test
+  public void shouldQueueCallsBeyondAimdLimit() throws Exception {
+    Bulkhead bulkhead = Bulkhead.aimd(1, 10, 1, TimeUnit.HOURS, 1);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    graph.bind(input, "a").run();
+    ListenableFuture<String> second = graph.bind(input, "b").run();
+    ListenableFuture<String> third = graph.bind(input, "c").run();
+
+    assertThat(bulkhead.queued(), equalTo(1));
+    assertThat(third.get(), equalTo("rejected"));
+
+    calls.get(0).set("1");
+    calls.get(1).set("2");
+
+    assertThat(second.get(), equalTo("2"));
+  }
+
+  @Test
+  public void shouldQueueCallsBeyondGradientLimit() throws Exception {
+    Bulkhead bulkhead = Bulkhead.gradient(1, 10, 1);
+    Graph<String> graph = call(pending).with(input).bulkhead(bulkhead).fallback(fallback);
+
+    graph.bind(input, "a").run();
+    ListenableFuture<String> second = graph.bind(input, "b").run();
+    ListenableFuture<String> third = graph.bind(input, "c").run();
+
+    assertThat(bulkhead.queued(), equalTo(1));
+    assertThat(third.get(), equalTo("rejected"));
+
+    calls.get(0).set("1");
+    calls.get(1).set("2");
+
+    assertThat(second.get(), equalTo("2"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectNonPositiveLimit() throws Exception {
+    Bulkhead.maxConcurrent(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectNegativeQueueSize() throws Exception {
+    Bulkhead.maxConcurrent(1, -1);
+  }
+
+  private static void awaitQueued(Bulkhead bulkhead) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+
+    while (bulkhead.queued() == 0) {
+      assertTrue("timed out waiting for a queued call", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CancellationTest {
+  Input<String> input;
+  SettableFuture<String> backend;
+  AtomicInteger invocations;
+  Func1<String, String> slow;
+  Func1<String, String> counting;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    backend = SettableFuture.create();
+    invocations = new AtomicInteger();
+
+    slow = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return backend;
+      }
+    };
+    counting = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        invocations.incrementAndGet();
+        return immediateFuture(arg + "!");
+      }
+    };
+  }
+
+  @Test
+  public void shouldCancelRunningUpstreamNodeWhenResultIsCancelled() throws Exception {
+    Graph<String> graph = call(counting).with(call(slow).with(input));
+
+    ListenableFuture<String> result = graph.bind(input, "hi").run();
+    result.cancel(false);
+
+    assertThat(backend.isCancelled(), is(true));
+  }
+
+  @Test
+  public void shouldNeverInvokeNodesThatHaveNotStarted() throws Exception {
+    SettableFuture<String> inputFuture = SettableFuture.create();
+    Graph<String> graph = call(counting).with(call(counting).with(input));
+
+    ListenableFuture<String> result = graph.bind(input, inputFuture).run();
+    result.cancel(false);
+    inputFuture.set("too late");
+
+    assertThat(invocations.get(), equalTo(0));
+  }
+
+  @Test
+  public void shouldNotCancelBoundInputFutures() throws Exception {
+    SettableFuture<String> inputFuture = SettableFuture.create();
+    Graph<String> graph = call(counting).with(input);
+
+    ListenableFuture<String> result = graph.bind(input, inputFuture).run();
+    result.cancel(false);
+
+    assertThat(inputFuture.isCancelled(), is(false));
+  }
+
+  @Test
+  public void shouldNotCancelCoalescedNodeNeededByOtherRun() throws Exception {
+    Graph<String> graph = call(counting).with(call(slow).with(input).coalesced());
+
+    ListenableFuture<String> first = graph.bind(input, "hi").run();
+    ListenableFuture<String> second = graph.bind(input, "hi").run();
+    first.cancel(false);
+    backend.set("value");
+
+    assertThat(backend.isCancelled(), is(false));
+    assertThat(second.get(), equalTo("value!"));
+  }
+
+  @Test
+  public void shouldCancelNodesOfBatchWhenResultIsCancelled() throws Exception {
+    Graph<String> graph = call(counting).with(call(slow).with(input));
+
+    ListenableFuture<List<String>> result = graph.runBatch(ImmutableList.of(
+        ImmutableMap.<Input<?>, Object>of(input, "a"),
+        ImmutableMap.<Input<?>, Object>of(input, "b")));
+    result.cancel(false);
+    backend.set("too late");
+
+    assertThat(backend.isCancelled(), is(true));
+    assertThat(invocations.get(), equalTo(0));
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Fallbacks.always;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeThat;
+
+public class ChromeTracerTest {
+  Input<String> input;
+  Func1<String, String> func;
+  ByteArrayOutputStream out;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    func = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFuture(arg + "!");
+      }
+    };
+    out = new ByteArrayOutputStream();
+  }
+
+  @Test
+  public void shouldWriteCompleteEventPerNode() throws Exception {
+    ChromeTracer tracer = ChromeTracer.to(out, 1);
+    Graph<String> first = call(func).with(input).named("first");
+    Graph<String> second = call(func).with(first).named("second \"quoted\"");
+
+    second.bind(input, "hi").listener(tracer.sample()).run().get();
+    tracer.close();
+
+    String trace = trace();
+
+    assertThat(trace, containsString("\"name\":\"first\",\"cat\":\"trickle\",\"ph\":\"X\""));
+    assertThat(trace, containsString("\"name\":\"second \\\"quoted\\\"\""));
+    assertThat(trace, containsString("\"arguments\":[\"in\"]"));
+    assertThat(trace, containsString("\"arguments\":[\"first\"]"));
+    assertThat(trace, containsString("\"name\":\"thread_name\""));
+    assertValidJson(trace);
+  }
+
+  @Test
+  public void shouldSampleOneInEveryNRuns() throws Exception {
+    ChromeTracer tracer = ChromeTracer.to(out, 3);
+    Graph<String> graph = call(func).with(input).named("node");
+
+    int sampled = 0;
+    for (int i = 0; i < 9; i++) {
+      ExecutionListener listener = tracer.sample();
+      if (listener != null) {
+        sampled++;
+      }
+      graph.bind(input, "hi").listener(listener).run().get();
+    }
+    tracer.close();
+
+    assertThat(sampled, equalTo(3));
+    assertThat(trace().split("\"ph\":\"X\"").length - 1, equalTo(3));
+    assertValidJson(trace());
+  }
+
+  @Test
+  public void shouldRecordFailuresAndNodesThatNeverStarted() throws Exception {
+    ChromeTracer tracer = ChromeTracer.to(out, 1);
+    Func1<String, String> failing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFailedFuture(new RuntimeException("expected"));
+      }
+    };
+    Graph<String> failed = call(failing).with(input).named("failing");
+    Graph<String> skipped = call(func).with(failed).named("skipped").fallback(always("x"));
+
+    skipped.bind(input, "hi").listener(tracer.sample()).run().get();
+    tracer.close();
+
+    String trace = trace();
+
+    assertThat(trace, containsString("\"failure\":\"java.lang.RuntimeException: expected\""));
+    assertThat(trace, containsString("\"name\":\"skipped\",\"cat\":\"trickle\",\"ph\":\"i\""));
+    assertValidJson(trace);
+  }
+
+  @Test
+  public void shouldWriteEventsFromExecutorThreads() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    ChromeTracer tracer = ChromeTracer.to(out, 1);
+    try {
+      Func2<String, String, String> concat = new Func2<String, String, String>() {
+        @Override
+        public ListenableFuture<String> run(String arg1, String arg2) {
+          return immediateFuture(arg1 + arg2);
+        }
+      };
+      Graph<String> graph = call(concat).with(call(func).with(input), call(func).with(input));
+
+      for (int i = 0; i < 10; i++) {
+        graph.bind(input, "hi").listener(tracer.sample()).run(executor).get();
+      }
+    } finally {
+      executor.shutdown();
+      tracer.close();
+    }
+
+    assertThat(trace().split("\"ph\":\"X\"").length - 1, equalTo(30));
+    assertThat(trace(), containsString("queued_us"));
+    assertValidJson(trace());
+  }
+
+  @Test
+  public void shouldWriteEmptyTraceIfNothingWasSampled() throws Exception {
+    ChromeTracer.to(out, 1).close();
+
+    assertThat(trace(), equalTo("[]\n"));
+  }
+
+  @Test
+  public void shouldStopWritingAndReportWriteFailures() throws Exception {
+    final IOException failure = new IOException("expected");
+    ChromeTracer tracer = ChromeTracer.to(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw failure;
+      }
+    }, 1);
+
+    // the buffer only hits the stream once it fills up
+    Graph<String> graph = call(func).with(input).named(repeat('x', 10000));
+    graph.bind(input, "hi").listener(tracer.sample()).run().get();
+    graph.bind(input, "hi").listener(tracer.sample()).run().get();
+
+    try {
+      tracer.flush();
+    } catch (IOException e) {
+      assertThat(e == failure, equalTo(true));
+      return;
+    }
+    throw new AssertionError("expected an IOException");
+  }
+
+  private String trace() {
+    return new String(out.toByteArray(), Charsets.UTF_8);
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  private static void assertValidJson(String json) throws Exception {
+    ScriptEngine engine = new ScriptEngineManager().getEngineByName("javascript");
+    assumeThat(engine, notNullValue());
+
+    engine.put("json", json);
+    assertThat(engine.eval("JSON.parse(json).length > 0 ? null : 'empty'"), nullValue());
+  }
+}
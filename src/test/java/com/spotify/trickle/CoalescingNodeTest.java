@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CoalescingNodeTest {
+  Map<Object, SettableFuture<String>> pending;
+  List<Object> calls;
+  CoalescingNode<String> node;
+
+  @Before
+  public void setUp() throws Exception {
+    pending = new ConcurrentHashMap<Object, SettableFuture<String>>();
+    calls = new CopyOnWriteArrayList<Object>();
+
+    node = new CoalescingNode<String>(new TrickleNode<String>() {
+      @Override
+      public ListenableFuture<String> run(List<Object> values) {
+        calls.add(values.get(0));
+        SettableFuture<String> future = SettableFuture.create();
+        pending.put(values.get(0), future);
+        return future;
+      }
+    });
+  }
+
+  @Test
+  public void shouldShareInFlightInvocationWithEqualArguments() throws Exception {
+    ListenableFuture<String> first = node.run(ImmutableList.<Object>of("a"));
+    ListenableFuture<String> second = node.run(ImmutableList.<Object>of("a"));
+    pending.get("a").set("shared");
+
+    assertThat(first.get(), equalTo("shared"));
+    assertThat(second.get(), equalTo("shared"));
+    assertThat(calls.size(), equalTo(1));
+  }
+
+  @Test
+  public void shouldShareInvocationWhileNodeIsBeingCalled() throws Exception {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final SettableFuture<String> backend = SettableFuture.create();
+    final CoalescingNode<String> slow = new CoalescingNode<String>(new TrickleNode<String>() {
+      @Override
+      public ListenableFuture<String> run(List<Object> values) {
+        calls.add(values.get(0));
+        entered.countDown();
+        Uninterruptibles.awaitUninterruptibly(proceed);
+        return backend;
+      }
+    });
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<ListenableFuture<String>> first = executor.submit(
+          new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() throws Exception {
+              return slow.run(ImmutableList.<Object>of("a"));
+            }
+          });
+      entered.await();
+
+      ListenableFuture<String> second = slow.run(ImmutableList.<Object>of("a"));
+      proceed.countDown();
+      backend.set("shared");
+
+      assertThat(first.get().get(), equalTo("shared"));
+      assertThat(second.get(), equalTo("shared"));
+      assertThat(calls.size(), equalTo(1));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldNotCancelInvocationWhileOtherCallersWaitForIt() throws Exception {
+    ListenableFuture<String> first = node.run(ImmutableList.<Object>of("a"));
+    ListenableFuture<String> second = node.run(ImmutableList.<Object>of("a"));
+
+    first.cancel(false);
+    pending.get("a").set("shared");
+
+    assertThat(pending.get("a").isCancelled(), is(false));
+    assertThat(second.get(), equalTo("shared"));
+  }
+
+  @Test
+  public void shouldCancelInvocationWhenAllCallersHaveCancelled() throws Exception {
+    ListenableFuture<String> first = node.run(ImmutableList.<Object>of("a"));
+    ListenableFuture<String> second = node.run(ImmutableList.<Object>of("a"));
+
+    first.cancel(false);
+    second.cancel(false);
+
+    assertThat(pending.get("a").isCancelled(), is(true));
+    assertThat(node.inFlightCount(), equalTo(0));
+  }
+
+  @Test
+  public void shouldNotShareInvocationsWithDifferentArguments() throws Exception {
+    node.run(ImmutableList.<Object>of("a"));
+    node.run(ImmutableList.<Object>of("b"));
+
+    assertThat(calls.size(), equalTo(2));
+  }
+
+  @Test
+  public void shouldForgetInvocationOnceCompleted() throws Exception {
+    ListenableFuture<String> first = node.run(ImmutableList.<Object>of("a"));
+    pending.get("a").set("done");
+
+    assertThat(first.get(), equalTo("done"));
+    assertThat(node.inFlightCount(), equalTo(0));
+
+    node.run(ImmutableList.<Object>of("a"));
+    assertThat(calls.size(), equalTo(2));
+  }
+
+  @Test
+  public void shouldForgetInvocationOnceFailed() throws Exception {
+    node.run(ImmutableList.<Object>of("a"));
+    pending.get("a").setException(new RuntimeException("expected"));
+
+    assertThat(node.inFlightCount(), equalTo(0));
+  }
+
+  @Test
+  public void shouldCoalesceAcrossGraphRuns() throws Exception {
+    final SettableFuture<String> backend = SettableFuture.create();
+    final List<String> invocations = new CopyOnWriteArrayList<String>();
+    Func1<String, String> func = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        invocations.add(arg);
+        return backend;
+      }
+    };
+    Input<String> input = Input.named("in");
+    Graph<String> graph = call(func).with(input).coalesced();
+
+    ListenableFuture<String> first = graph.bind(input, "key").run();
+    ListenableFuture<String> second = graph.bind(input, "key").run();
+    backend.set("value");
+
+    assertThat(first.get(), equalTo("value"));
+    assertThat(second.get(), equalTo("value"));
+    assertThat(invocations.size(), equalTo(1));
+  }
+
+  @Test
+  public void shouldNotRegisterCompletedInvocations() throws Exception {
+    CoalescingNode<String> immediate = new CoalescingNode<String>(new TrickleNode<String>() {
+      @Override
+      public ListenableFuture<String> run(List<Object> values) {
+        return immediateFuture("done");
+      }
+    });
+
+    immediate.run(ImmutableList.<Object>of("a"));
+
+    assertThat(immediate.inFlightCount(), equalTo(0));
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimitTest {
+  static final long BASE_LATENCY = 1000000;
+  static final int CAPACITY = 20;
+
+  @Test
+  public void aimdShouldGrowWhileFastAndInUse() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Aimd(4, 10, BASE_LATENCY);
+
+    limit.onSample(BASE_LATENCY / 2, 4, false);
+    limit.onSample(BASE_LATENCY / 2, 5, false);
+
+    assertThat(limit.get(), equalTo(6));
+  }
+
+  @Test
+  public void aimdShouldNotGrowWhileIdle() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Aimd(4, 10, BASE_LATENCY);
+
+    limit.onSample(BASE_LATENCY / 2, 1, false);
+
+    assertThat(limit.get(), equalTo(4));
+  }
+
+  @Test
+  public void aimdShouldNotGrowBeyondMax() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Aimd(4, 5, BASE_LATENCY);
+
+    for (int i = 0; i < 10; i++) {
+      limit.onSample(BASE_LATENCY / 2, limit.get(), false);
+    }
+
+    assertThat(limit.get(), equalTo(5));
+  }
+
+  @Test
+  public void aimdShouldShrinkForSlowOrDroppedCalls() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Aimd(10, 10, BASE_LATENCY);
+
+    limit.onSample(BASE_LATENCY * 2, 10, false);
+    assertThat(limit.get(), equalTo(9));
+
+    limit.onSample(BASE_LATENCY / 2, 1, true);
+    assertThat(limit.get(), equalTo(8));
+  }
+
+  @Test
+  public void aimdShouldNotShrinkBelowOne() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Aimd(1, 10, BASE_LATENCY);
+
+    limit.onSample(BASE_LATENCY * 2, 1, true);
+
+    assertThat(limit.get(), equalTo(1));
+  }
+
+  @Test
+  public void aimdShouldConvergeNearCapacity() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Aimd(1, 1000, BASE_LATENCY * 3 / 2);
+
+    simulate(limit, BASE_LATENCY, 10000);
+
+    assertConverged(limit);
+  }
+
+  @Test
+  public void gradientShouldHalveForDroppedCalls() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Gradient(10, 10);
+
+    limit.onSample(BASE_LATENCY, 10, true);
+
+    assertThat(limit.get(), equalTo(5));
+  }
+
+  @Test
+  public void gradientShouldNotChangeWhileIdle() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Gradient(10, 100);
+
+    for (int i = 0; i < 100; i++) {
+      limit.onSample(BASE_LATENCY, 1, false);
+    }
+
+    assertThat(limit.get(), equalTo(10));
+  }
+
+  @Test
+  public void gradientShouldConvergeNearCapacity() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Gradient(5, 1000);
+
+    simulate(limit, BASE_LATENCY, 20000);
+
+    assertConverged(limit);
+  }
+
+  @Test
+  public void gradientShouldNotCreepUpUnderSustainedOverload() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Gradient(5, 1000);
+
+    simulate(limit, BASE_LATENCY, 20000);
+    int converged = limit.get();
+    simulate(limit, BASE_LATENCY, 100000);
+
+    assertTrue(Math.abs(limit.get() - converged) <= 2);
+  }
+
+  @Test
+  public void gradientShouldFollowLastingSlowdown() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit.Gradient(5, 1000);
+
+    simulate(limit, BASE_LATENCY, 20000);
+    simulate(limit, BASE_LATENCY * 3, 20000);
+
+    // the backend still takes the same number of calls, just more slowly
+    assertConverged(limit);
+  }
+
+  /**
+   * Feeds the limit samples from a backend that takes up to {@link #CAPACITY} calls without
+   * slowing down, and gets proportionally slower beyond that, with callers that always keep the
+   * limit full.
+   */
+  private static void simulate(ConcurrencyLimit limit, long baseLatency, int samples) {
+    for (int i = 0; i < samples; i++) {
+      int inFlight = limit.get();
+      long latency = baseLatency * Math.max(CAPACITY, inFlight) / CAPACITY;
+
+      limit.onSample(latency, inFlight, false);
+    }
+  }
+
+  private static void assertConverged(ConcurrencyLimit limit) {
+    assertTrue("limit " + limit.get(), limit.get() >= CAPACITY && limit.get() < CAPACITY * 2);
+  }
+}
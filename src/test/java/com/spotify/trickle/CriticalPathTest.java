@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class CriticalPathTest {
+  Input<String> input;
+  ExecutorService executor;
+  CriticalPathRecorder recorder;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    executor = Executors.newFixedThreadPool(4);
+    recorder = new CriticalPathRecorder();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdown();
+  }
+
+  @Test
+  public void shouldFindSlowestChainThroughArguments() throws Exception {
+    Graph<String> first = call(sleeping(10)).with(input).named("first");
+    Graph<String> fast = call(sleeping(0)).with(first).named("fast");
+    Graph<String> slow = call(sleeping(50)).with(first).named("slow");
+    Graph<String> root = call(concat()).with(fast, slow).named("root");
+
+    root.bind(input, "hi").listener(recorder).run(executor).get();
+
+    CriticalPath path = recorder.report();
+
+    assertThat(names(path.path()), equalTo(names("first", "slow", "root")));
+    assertTrue(path.durationNanos() >= TimeUnit.MILLISECONDS.toNanos(60));
+    assertTrue(slack(path, "fast") >= TimeUnit.MILLISECONDS.toNanos(30));
+    assertTrue(slack(path, "slow") < slack(path, "fast"));
+    assertThat(path.nodes().size(), equalTo(4));
+  }
+
+  @Test
+  public void shouldFollowPredecessors() throws Exception {
+    Graph<String> slow = call(sleeping(30)).with(input).named("slow");
+    Graph<String> fast = call(sleeping(0)).with(input).named("fast");
+    Graph<String> root = call(sleeping(0)).with(fast).after(slow).named("root");
+
+    root.bind(input, "hi").listener(recorder).run(executor).get();
+
+    assertThat(names(recorder.report().path()), equalTo(names("slow", "root")));
+  }
+
+  @Test
+  public void shouldOrderNodesByStartTime() throws Exception {
+    Graph<String> first = call(sleeping(0)).with(input).named("first");
+    Graph<String> second = call(sleeping(0)).with(first).named("second");
+
+    second.bind(input, "hi").listener(recorder).run().get();
+
+    CriticalPath path = recorder.report();
+
+    assertThat(names(path.nodes()), equalTo(names("first", "second")));
+    assertThat(path.path().get(0).startNanos() <= path.path().get(1).startNanos(),
+               equalTo(true));
+  }
+
+  @Test
+  public void shouldHandleDeepGraphs() throws Exception {
+    Graph<String> graph = call(sleeping(0)).with(input);
+    for (int i = 1; i < 50000; i++) {
+      graph = call(sleeping(0)).with(graph);
+    }
+
+    graph.bind(input, "hi").listener(recorder).run().get();
+
+    assertThat(recorder.report().path().size(), equalTo(50000));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shouldFailIfNothingWasRecorded() throws Exception {
+    recorder.report();
+  }
+
+  private static double slack(CriticalPath path, String name) {
+    for (CriticalPath.Segment segment : path.nodes()) {
+      if (segment.node().name().equals(name)) {
+        return segment.slackNanos();
+      }
+    }
+    throw new AssertionError("no node named " + name);
+  }
+
+  private static List<String> names(List<CriticalPath.Segment> segments) {
+    List<String> result = Lists.newArrayList();
+    for (CriticalPath.Segment segment : segments) {
+      result.add(segment.node().name());
+    }
+    return result;
+  }
+
+  private static List<String> names(String... names) {
+    return Lists.newArrayList(names);
+  }
+
+  private static Func1<String, String> sleeping(final long millis) {
+    return new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        try {
+          Thread.sleep(millis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return immediateFuture(arg);
+      }
+    };
+  }
+
+  private static Func2<String, String, String> concat() {
+    return new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg1, String arg2) {
+        return immediateFuture(arg1 + arg2);
+      }
+    };
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that the depth of a graph isn't limited by the size of the thread stack, neither when
+ * the graph is compiled, nor when a long chain of nodes completes one after the other.
+ */
+public class DeepGraphTest {
+  private static final int DEPTH = 50000;
+
+  Input<Integer> input;
+  Func1<Integer, Integer> increment;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    increment = new Func1<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> run(Integer arg) {
+        return immediateFuture(arg + 1);
+      }
+    };
+  }
+
+  @Test
+  public void shouldRunDeepGraphWithAvailableInput() throws Exception {
+    assertThat(chain(DEPTH).bind(input, 0).run().get(), equalTo(DEPTH));
+  }
+
+  @Test
+  public void shouldRunDeepGraphWhenInputCompletesLater() throws Exception {
+    SettableFuture<Integer> value = SettableFuture.create();
+    ListenableFuture<Integer> result = chain(DEPTH).bind(input, value).run();
+
+    value.set(0);
+
+    assertThat(result.get(), equalTo(DEPTH));
+  }
+
+  @Test
+  public void shouldPropagateFailureThroughDeepGraph() throws Exception {
+    SettableFuture<Integer> value = SettableFuture.create();
+    ListenableFuture<Integer> result = chain(DEPTH).bind(input, value).run();
+
+    RuntimeException failure = new RuntimeException("expected");
+    value.setException(failure);
+
+    try {
+      result.get();
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(GraphExecutionException.class));
+      assertThat(e.getCause().getCause(), sameInstance((Throwable) failure));
+    }
+  }
+
+  @Test
+  public void shouldRunDeepGraphWithAsynchronousNodes() throws Exception {
+    final SettableFuture<Integer> first = SettableFuture.create();
+    Func1<Integer, Integer> waiting = new Func1<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> run(Integer arg) {
+        return first;
+      }
+    };
+
+    Graph<Integer> graph = call(waiting).with(input);
+    for (int i = 1; i < DEPTH; i++) {
+      graph = call(increment).with(graph);
+    }
+
+    ListenableFuture<Integer> result = graph.bind(input, 0).run();
+    first.set(1);
+
+    assertThat(result.get(), equalTo(DEPTH));
+  }
+
+  @Test
+  public void shouldRunDeepGraphOnExecutor() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      assertThat(chain(DEPTH).bind(input, 0).run(executor).get(), equalTo(DEPTH));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldRunDeepChainOfPredecessors() throws Exception {
+    Graph<Integer> graph = call(increment).with(input);
+    for (int i = 1; i < DEPTH; i++) {
+      graph = call(increment).with(input).after(graph);
+    }
+
+    assertThat(graph.bind(input, 0).run().get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldFailDeepGraphWithFailingNode() throws Exception {
+    Func1<Integer, Integer> failing = new Func1<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> run(Integer arg) {
+        return immediateFailedFuture(new RuntimeException("expected"));
+      }
+    };
+
+    Graph<Integer> graph = call(failing).with(input);
+    for (int i = 1; i < DEPTH; i++) {
+      graph = call(increment).with(graph);
+    }
+
+    try {
+      graph.bind(input, 0).run().get();
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(GraphExecutionException.class));
+    }
+  }
+
+  private Graph<Integer> chain(int depth) {
+    Graph<Integer> graph = call(increment).with(input);
+
+    for (int i = 1; i < depth; i++) {
+      graph = call(increment).with(graph);
+    }
+
+    return graph;
+  }
+}
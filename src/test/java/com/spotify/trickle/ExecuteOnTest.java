@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ExecuteOnTest {
+  ExecutorService pool;
+  Input<String> input;
+  Func1<String, String> threadName;
+
+  @Before
+  public void setUp() throws Exception {
+    pool = Executors.newFixedThreadPool(
+        2, new ThreadFactoryBuilder().setNameFormat("node-pool-%d").build());
+    input = Input.named("in");
+    threadName = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFuture(Thread.currentThread().getName());
+      }
+    };
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdown();
+  }
+
+  @Test
+  public void shouldInvokeNodeOnItsExecutor() throws Exception {
+    Graph<String> graph = call(threadName).with(input).executeOn(pool);
+
+    assertThat(graph.bind(input, "hi").run().get().startsWith("node-pool-"), is(true));
+  }
+
+  @Test
+  public void shouldInvokeOtherNodesOnRunExecutor() throws Exception {
+    Graph<String> onPool = call(threadName).with(input).executeOn(pool);
+    Graph<String> graph = call(threadName).with(onPool);
+
+    ExecutorService runExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("run-executor-%d").build());
+    try {
+      assertThat(graph.bind(input, "hi").run(runExecutor).get(), equalTo("run-executor-0"));
+    } finally {
+      runExecutor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldNotResubmitNodeWhoseInputWasProducedOnSameExecutor() throws Exception {
+    final AtomicInteger submissions = new AtomicInteger();
+    Executor counting = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        submissions.incrementAndGet();
+        pool.execute(command);
+      }
+    };
+
+    Graph<String> graph = call(threadName).with(input).executeOn(counting);
+    for (int i = 0; i < 5; i++) {
+      graph = call(threadName).with(graph).executeOn(counting);
+    }
+
+    // the input completes after the run has started, so the whole chain is waiting for it
+    SettableFuture<String> value = SettableFuture.create();
+    ListenableFuture<String> result = graph.bind(input, value).run();
+    value.set("hi");
+
+    assertThat(result.get().startsWith("node-pool-"), is(true));
+    assertThat(submissions.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldRunNodesThatBecomeReadyTogetherInParallel() throws Exception {
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    Func1<String, Boolean> waitForOther = new Func1<String, Boolean>() {
+      @Override
+      public ListenableFuture<Boolean> run(String arg) {
+        bothStarted.countDown();
+        try {
+          return immediateFuture(bothStarted.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    Func2<Boolean, Boolean, Boolean> and = new Func2<Boolean, Boolean, Boolean>() {
+      @Override
+      public ListenableFuture<Boolean> run(Boolean arg1, Boolean arg2) {
+        return immediateFuture(arg1 && arg2);
+      }
+    };
+
+    Graph<String> first = call(threadName).with(input).executeOn(pool);
+    Graph<Boolean> left = call(waitForOther).with(first).executeOn(pool);
+    Graph<Boolean> right = call(waitForOther).with(first).executeOn(pool);
+
+    assertThat(call(and).with(left, right).bind(input, "hi").run().get(), is(true));
+  }
+
+  @Test
+  public void shouldNotDeferNodesOfRunOnSameExecutorAsBlockingNode() throws Exception {
+    final Graph<String> inner = call(threadName).with(input);
+    Func1<String, String> blocking = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        try {
+          return immediateFuture(inner.bind(input, arg).run(pool).get(5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+
+    Graph<String> graph = call(blocking).with(input).executeOn(pool);
+
+    assertThat(graph.bind(input, "hi").run().get(10, TimeUnit.SECONDS).startsWith("node-pool-"),
+               is(true));
+  }
+
+  @Test
+  public void shouldRunDeferredTaskWhenTaskThrowsError() throws Exception {
+    final AtomicBoolean deferredRan = new AtomicBoolean();
+    final AffinityExecutor executor = new AffinityExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              deferredRan.set(true);
+            }
+          });
+          throw new Error("expected");
+        }
+      });
+      fail("expected an error");
+    } catch (Error e) {
+      assertThat(e.getMessage(), equalTo("expected"));
+    }
+
+    assertThat(deferredRan.get(), is(true));
+  }
+}
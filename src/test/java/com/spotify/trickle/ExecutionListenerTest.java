@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Fallbacks.always;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ExecutionListenerTest {
+  private static final List<NodeInfo> NO_ARGUMENTS = ImmutableList.of();
+
+  Input<String> input;
+  Func1<String, String> func;
+  RecordingListener listener;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    func = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFuture(arg + "!");
+      }
+    };
+    listener = new RecordingListener();
+  }
+
+  @Test
+  public void shouldReportEventsInOrderForEachNode() throws Exception {
+    Graph<String> first = call(func).with(input).named("first");
+    Graph<String> second = call(func).with(first).named("second");
+
+    second.bind(input, "hi").listener(listener).run().get();
+
+    assertThat(listener.events, equalTo((List<String>) ImmutableList.of(
+        "scheduled first", "ready first", "started first", "completed first",
+        "scheduled second", "ready second", "started second", "completed second")));
+  }
+
+  @Test
+  public void shouldReportEventsForNodesWaitingForInputs() throws Exception {
+    SettableFuture<String> value = SettableFuture.create();
+    Graph<String> graph = call(func).with(input).named("node");
+
+    ListenableFuture<String> result = graph.bind(input, value).listener(listener).run();
+    assertThat(listener.events, equalTo((List<String>) ImmutableList.of("scheduled node")));
+
+    value.set("hi");
+    result.get();
+
+    assertThat(listener.events, equalTo((List<String>) ImmutableList.of(
+        "scheduled node", "ready node", "started node", "completed node")));
+  }
+
+  @Test
+  public void shouldReportEventsWhenRunOnExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Graph<String> graph = call(func).with(input).named("node");
+
+      graph.bind(input, "hi").listener(listener).run(executor).get();
+
+      assertThat(listener.events, equalTo((List<String>) ImmutableList.of(
+          "scheduled node", "ready node", "started node", "completed node")));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldReportFailureBeforeFallback() throws Exception {
+    Func1<String, String> failing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFailedFuture(new RuntimeException("expected"));
+      }
+    };
+    Graph<String> graph = call(failing).with(input).named("node").fallback(always("fallback"));
+
+    assertThat(graph.bind(input, "hi").listener(listener).run().get(), equalTo("fallback"));
+    assertThat(listener.events, equalTo((List<String>) ImmutableList.of(
+        "scheduled node", "ready node", "started node", "failed node expected",
+        "fallback node expected")));
+  }
+
+  @Test
+  public void shouldNotStartNodeWhoseInputsFailed() throws Exception {
+    Graph<String> graph = call(func).with(input).named("node").fallback(always("fallback"));
+
+    graph.bind(input, Futures.<String>immediateFailedFuture(new RuntimeException("input")))
+        .listener(listener).run().get();
+
+    assertThat(listener.events, equalTo((List<String>) ImmutableList.of(
+        "scheduled node", "failed node input", "fallback node input")));
+  }
+
+  @Test
+  public void shouldPassSameExecutionToAllEventsOfAnInvocation() throws Exception {
+    final List<NodeExecution> executions = new CopyOnWriteArrayList<NodeExecution>();
+    ExecutionListener collecting = new ExecutionListener() {
+      @Override
+      public void nodeScheduled(NodeExecution execution) {
+        executions.add(execution);
+      }
+
+      @Override
+      public void nodeCompleted(NodeExecution execution) {
+        executions.add(execution);
+      }
+    };
+
+    call(func).with(input).bind(input, "hi").listener(collecting).run().get();
+
+    assertThat(executions.size(), equalTo(2));
+    assertThat(executions.get(0) == executions.get(1), equalTo(true));
+    assertThat(executions.get(0).finishedNanos() - executions.get(0).startedNanos() >= 0,
+               equalTo(true));
+  }
+
+  @Test
+  public void shouldUseTimestampsFromNanoTime() throws Exception {
+    final long before = System.nanoTime();
+
+    call(func).with(input).bind(input, "hi").listener(listener).run().get();
+
+    for (long time : listener.times) {
+      assertThat(time - before >= 0, equalTo(true));
+      assertThat(System.nanoTime() - time >= 0, equalTo(true));
+    }
+  }
+
+  @Test
+  public void shouldReportCallsQueuedAndRejectedByBulkhead() throws Exception {
+    final SettableFuture<String> value = SettableFuture.create();
+    Func1<String, String> pending = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return value;
+      }
+    };
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, 1);
+    Graph<String> graph = call(pending).with(input).named("node").bulkhead(bulkhead)
+        .fallback(always("rejected"));
+    RecordingListener rejectedListener = new RecordingListener();
+
+    graph.bind(input, "a").run();
+    ListenableFuture<String> queued = graph.bind(input, "b").listener(listener).run();
+    graph.bind(input, "c").listener(rejectedListener).run();
+    value.set("done");
+    queued.get();
+
+    assertThat(listener.events, equalTo((List<String>) ImmutableList.of(
+        "scheduled node", "ready node", "started node", "queued node", "dequeued node",
+        "completed node")));
+    assertThat(rejectedListener.events.subList(0, 4), equalTo((List<String>) ImmutableList.of(
+        "scheduled node", "ready node", "started node", "rejected node")));
+  }
+
+  @Test
+  public void shouldNotReportStartOfNodeThatHasAlreadyFailed() throws Exception {
+    NodeExecution execution = new NodeExecution(new FakeNodeInfo("node", NO_ARGUMENTS), listener);
+
+    // as when a run is cancelled on another thread while the node is being started
+    execution.failed(new CancellationException("cancelled"));
+    execution.started();
+
+    assertThat(listener.events, equalTo((List<String>) ImmutableList.of("failed node cancelled")));
+    assertThat(execution.wasStarted(), equalTo(false));
+  }
+
+  private static class RecordingListener extends ExecutionListener {
+    final List<String> events = new CopyOnWriteArrayList<String>();
+    final List<Long> times = new CopyOnWriteArrayList<Long>();
+
+    @Override
+    public void nodeScheduled(NodeExecution execution) {
+      record("scheduled " + execution.node().name(), execution.scheduledNanos());
+    }
+
+    @Override
+    public void nodeInputsReady(NodeExecution execution) {
+      record("ready " + execution.node().name(), execution.inputsReadyNanos());
+    }
+
+    @Override
+    public void nodeStarted(NodeExecution execution) {
+      record("started " + execution.node().name(), execution.startedNanos());
+    }
+
+    @Override
+    public void nodeCompleted(NodeExecution execution) {
+      record("completed " + execution.node().name(), execution.finishedNanos());
+    }
+
+    @Override
+    public void nodeFailed(NodeExecution execution, Throwable failure) {
+      record("failed " + execution.node().name() + " " + failure.getMessage(),
+             execution.finishedNanos());
+    }
+
+    @Override
+    public void nodeFallback(NodeExecution execution, Throwable failure) {
+      events.add("fallback " + execution.node().name() + " " + failure.getMessage());
+    }
+
+    @Override
+    public void nodeQueued(NodeExecution execution) {
+      events.add("queued " + execution.node().name());
+    }
+
+    @Override
+    public void nodeDequeued(NodeExecution execution) {
+      events.add("dequeued " + execution.node().name());
+    }
+
+    @Override
+    public void nodeRejected(NodeExecution execution) {
+      events.add("rejected " + execution.node().name());
+    }
+
+    private void record(String event, long nanoTime) {
+      events.add(event);
+      times.add(nanoTime);
+    }
+  }
+}
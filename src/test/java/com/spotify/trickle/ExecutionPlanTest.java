@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Fallbacks.always;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.isA;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ExecutionPlanTest {
+  Input<String> input;
+  AtomicInteger counter;
+  Func1<String, String> func1;
+  Func2<String, String, String> func2;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    counter = new AtomicInteger();
+
+    func1 = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        counter.incrementAndGet();
+        return immediateFuture(arg + "!");
+      }
+    };
+    func2 = new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg1, String arg2) {
+        return immediateFuture(arg1 + arg2);
+      }
+    };
+  }
+
+  @Test
+  public void shouldCompilePlanOnlyOnce() throws Exception {
+    GraphBuilder<String> graph = (GraphBuilder<String>) call(func1).with(input);
+
+    graph.bind(input, "a").run();
+    graph.bind(input, "b").run();
+
+    assertThat(graph.getPlan(), sameInstance(graph.getPlan()));
+  }
+
+  @Test
+  public void shouldInvokeSharedNodeOncePerRun() throws Exception {
+    Graph<String> shared = call(func1).with(input);
+    Graph<String> left = call(func1).with(shared);
+    Graph<String> right = call(func1).with(shared);
+    Graph<String> root = call(func2).with(left, right);
+
+    assertThat(root.bind(input, "hi").run().get(), equalTo("hi!!hi!!"));
+    assertThat(root.bind(input, "ho").run().get(), equalTo("ho!!ho!!"));
+    assertThat(counter.get(), equalTo(6));
+  }
+
+  @Test
+  public void shouldUseBindingsOfBoundSubgraphs() throws Exception {
+    Input<String> other = Input.named("other");
+
+    Graph<String> bound = call(func1).with(input).bind(input, "bound");
+    Graph<String> root = call(func2).with(bound, other);
+
+    assertThat(root.bind(other, " value").run().get(), equalTo("bound! value"));
+  }
+
+  @Test
+  public void shouldAssignDenseIndexesToInputs() throws Exception {
+    Input<String> other = Input.named("other");
+
+    GraphBuilder<String> graph =
+        (GraphBuilder<String>) call(func2).with(call(func1).with(input), other);
+
+    assertThat(graph.getPlan().inputIndex(input), equalTo(0));
+    assertThat(graph.getPlan().inputIndex(other), equalTo(1));
+    assertThat(graph.getPlan().inputIndex(Input.named("unused")), equalTo(-1));
+  }
+
+  @Test
+  public void shouldMakeInputsBoundToUnusedInputsAvailableToEnclosingGraph() throws Exception {
+    Input<String> other = Input.named("other");
+
+    Graph<String> bound = call(func1).with(input).bind(input, "bound").bind(other, " unused");
+    Graph<String> root = call(func2).with(bound, other);
+
+    assertThat(root.run().get(), equalTo("bound! unused"));
+  }
+
+  @Test
+  public void shouldKeepBindingsOfGraphsBoundFromSameGraphApart() throws Exception {
+    Input<String> other = Input.named("other");
+    Graph<String> graph = call(func2).with(input, other);
+
+    Graph<String> base = graph.bind(input, "a");
+    Graph<String> first = base.bind(other, "b");
+    Graph<String> second = base.bind(other, "c");
+    Graph<String> rebound = graph.bind(other, "d").bind(input, "e");
+
+    assertThat(first.run().get(), equalTo("ab"));
+    assertThat(second.run().get(), equalTo("ac"));
+    assertThat(rebound.run().get(), equalTo("ed"));
+    assertThat(base.bind(other, "f").run().get(), equalTo("af"));
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Input not bound to a value");
+
+    base.run();
+  }
+
+  @Test
+  public void shouldInvokeNodesWithReadyInputsOnSuppliedExecutor() throws Exception {
+    final AtomicInteger executions = new AtomicInteger();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        executions.incrementAndGet();
+        command.run();
+      }
+    };
+
+    Graph<String> graph = call(func1).with(input).bind(input, "hi");
+
+    assertThat(graph.run(executor).get(), equalTo("hi!"));
+    assertThat(executions.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldApplyFallbackWhenNodeWithReadyInputsThrows() throws Exception {
+    Func1<String, String> throwing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        throw new RuntimeException("expected");
+      }
+    };
+
+    Graph<String> graph = call(throwing).with(input).fallback(always("fallback"));
+
+    assertThat(graph.bind(input, "hi").run().get(), equalTo("fallback"));
+  }
+
+  @Test
+  public void shouldFailWhenNodeWithReadyInputsReturnsNull() throws Exception {
+    Func1<String, String> returnsNull = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return null;
+      }
+    };
+
+    ListenableFuture<String> future = call(returnsNull).with(input).bind(input, "hi").run();
+
+    thrown.expectCause(isA(GraphExecutionException.class));
+    future.get();
+  }
+
+  @Test
+  public void shouldPassMaterializedArgumentListToListNodes() throws Exception {
+    final List<List<?>> received = Lists.newArrayList();
+
+    Func0<String> returnsNull = new Func0<String>() {
+      @Override
+      public ListenableFuture<String> run() {
+        return immediateFuture(null);
+      }
+    };
+    ListFunc<String, Integer> listFunc = new ListFunc<String, Integer>() {
+      @Override
+      public ListenableFuture<Integer> run(List<? extends String> arg) {
+        received.add(arg);
+        return immediateFuture(arg.size());
+      }
+    };
+
+    List<Parameter<String>> args = ImmutableList.<Parameter<String>>of(
+        input, call(returnsNull), call(func1).with(input));
+
+    assertThat(call(listFunc).with(args).bind(input, "hi").run().get(), equalTo(3));
+    assertThat(received.get(0).equals(Arrays.asList("hi", null, "hi!")), is(true));
+
+    thrown.expect(UnsupportedOperationException.class);
+    //noinspection unchecked
+    ((List<Object>) received.get(0)).set(0, "changed");
+  }
+
+  @Test
+  public void shouldApplyFallbackWhenExecutorRejectsNode() throws Exception {
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException("expected");
+      }
+    };
+
+    Graph<String> graph = call(func1).with(input).fallback(always("fallback"));
+
+    assertThat(graph.bind(input, "hi").run(rejecting).get(), equalTo("fallback"));
+    assertThat(counter.get(), equalTo(0));
+  }
+
+  @Test
+  public void shouldCancelNodeResultWhenRunIsCancelled() throws Exception {
+    final SettableFuture<String> nodeResult = SettableFuture.create();
+    Func1<String, String> waiting = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return nodeResult;
+      }
+    };
+    SettableFuture<String> value = SettableFuture.create();
+
+    ListenableFuture<String> future = call(waiting).with(input).bind(input, value).run();
+    value.set("hi");
+    future.cancel(false);
+
+    assertThat(nodeResult.isCancelled(), is(true));
+  }
+
+  @Test
+  public void shouldCancelFallbackResultWhenRunIsCancelled() throws Exception {
+    final SettableFuture<String> fallbackResult = SettableFuture.create();
+    SettableFuture<String> value = SettableFuture.create();
+
+    ListenableFuture<String> future = call(func1).with(input)
+        .fallback(new AsyncFunction<Throwable, String>() {
+          @Override
+          public ListenableFuture<String> apply(Throwable input) {
+            return fallbackResult;
+          }
+        })
+        .bind(input, value).run();
+    value.setException(new RuntimeException("expected"));
+    future.cancel(false);
+
+    assertThat(fallbackResult.isCancelled(), is(true));
+  }
+}
@@ -31,13 +31,13 @@ import org.junit.rules.ExpectedException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.spotify.trickle.GraphExceptionWrapper.wrapException;
+import static com.spotify.trickle.GraphExceptionWrapper.wrapParameterFailure;
 import static com.spotify.trickle.Util.hasAncestor;
 import static java.util.Collections.emptyList;
 import static org.hamcrest.CoreMatchers.containsString;
@@ -65,8 +65,8 @@ public class GraphExceptionWrapperTest {
   public void setUp() throws Exception {
     t = new RuntimeException("the original problem");
 
-    Map<Input<?>, Object> emptyMap = Collections.emptyMap();
-    traverseState = new TraverseState(emptyMap, MoreExecutors.sameThreadExecutor(), true);
+    traverseState = new TraverseState(MoreExecutors.sameThreadExecutor(), true);
+    traverseState.prepareCalls(2);
 
     List<? extends NodeInfo> currentNodeParameters = ImmutableList.of(
         new FakeNodeInfo("arg1", Collections .<NodeInfo>emptyList()),
@@ -119,8 +119,8 @@ public class GraphExceptionWrapperTest {
                                               new FakeNodeInfo("param 1", NO_ARGS),
                                               new FakeNodeInfo("param 2", NO_ARGS)
                                           ));
-    traverseState.record(node1, NO_VALUES);
-    traverseState.record(node2, asFutures("value 1", "value 2"));
+    traverseState.record(0, node1, NO_VALUES);
+    traverseState.record(1, node2, asFutures("value 1", "value 2"));
 
     GraphExecutionException e =
         (GraphExecutionException) wrapException(t, currentCall, traverseState);
@@ -148,8 +148,8 @@ public class GraphExceptionWrapperTest {
                                           ));
     SettableFuture<?> future = SettableFuture.create();
 
-    traverseState.record(node1, NO_VALUES);
-    traverseState.record(node2, ImmutableList.<ListenableFuture<?>>of(future));
+    traverseState.record(0, node1, NO_VALUES);
+    traverseState.record(1, node2, ImmutableList.<ListenableFuture<?>>of(future));
 
     GraphExecutionException e =
         (GraphExecutionException) wrapException(t, currentCall, traverseState);
@@ -168,6 +168,34 @@ public class GraphExceptionWrapperTest {
     assertThat(found2, is(false));
   }
 
+  @Test
+  public void shouldNotIncludeCallsWithFailedParametersInInfo() throws Exception {
+    FakeNodeInfo node1 = new FakeNodeInfo("completed 1", NO_ARGS);
+    FakeNodeInfo node2 = new FakeNodeInfo("failed input 2",
+                                          ImmutableList.<NodeInfo>of(
+                                              new FakeNodeInfo("param 1", NO_ARGS)
+                                          ));
+
+    traverseState.record(0, node1, NO_VALUES);
+    traverseState.record(1, node2, ImmutableList.<ListenableFuture<?>>of(
+        immediateFailedFuture(new RuntimeException("failing input"))));
+
+    GraphExecutionException e =
+        (GraphExecutionException) wrapException(t, currentCall, traverseState);
+
+    assertThat(e.getCalls().size(), equalTo(1));
+    assertThat(e.getCalls().get(0).getNodeInfo(), equalTo((NodeInfo) node1));
+  }
+
+  @Test
+  public void shouldNotRecordCallsWithDebugOff() throws Exception {
+    TraverseState state = new TraverseState(MoreExecutors.sameThreadExecutor(), false);
+    state.prepareCalls(1);
+    state.record(0, new FakeNodeInfo("completed 1", NO_ARGS), NO_VALUES);
+
+    assertThat(state.getCalls().isEmpty(), is(true));
+  }
+
   @Test
   public void shouldReportIncompleteInputs() throws Exception {
     ListenableFuture<Object> element = SettableFuture.create();
@@ -198,6 +226,65 @@ public class GraphExceptionWrapperTest {
     wrapException(t, currentCall, traverseState).getMessage();
  }
 
+  @Test
+  public void shouldDescribeFailedInputsOfParameterFailure() throws Exception {
+    RuntimeException inputException = new RuntimeException("failing input");
+    List<ListenableFuture<?>> parameterValues = ImmutableList.of(
+        immediateFailedFuture(inputException),
+        immediateFuture("hi")
+    );
+
+    currentCall = new TraverseState.FutureCallInformation(currentNodeInfo, parameterValues);
+
+    Throwable e = wrapParameterFailure(inputException, currentCall, traverseState);
+
+    assertThat(e.getCause(), equalTo((Throwable) inputException));
+    assertThat(e.getMessage(), containsString("FAILED FUTURE"));
+  }
+
+  @Test
+  public void shouldFillInStackTraceByDefault() throws Exception {
+    assertThat(wrapException(t, currentCall, traverseState).getStackTrace().length > 0, is(true));
+  }
+
+  @Test
+  public void shouldNotFillInStackTraceOfLightweightExceptions() throws Exception {
+    Throwable e = wrapException(t, currentCall, lightweightState());
+
+    assertThat(e.getStackTrace().length, equalTo(0));
+    assertThat(e.getCause(), equalTo(t));
+  }
+
+  @Test
+  public void shouldRenderMessageOfLightweightExceptionsLazily() throws Exception {
+    SettableFuture<Object> element = SettableFuture.create();
+    currentCall = new TraverseState.FutureCallInformation(
+        currentNodeInfo, ImmutableList.<ListenableFuture<?>>of(immediateFuture("hi"), element));
+
+    Throwable e = wrapException(t, currentCall, lightweightState());
+    element.set("set after wrapping");
+
+    assertThat(e.getMessage(), containsString(currentNodeInfo.name()));
+    assertThat(e.getMessage(), containsString("set after wrapping"));
+  }
+
+  @Test
+  public void shouldDescribeFailedInputsInLightweightExceptions() throws Exception {
+    RuntimeException inputException = new RuntimeException("failing input");
+    currentCall = new TraverseState.FutureCallInformation(
+        currentNodeInfo,
+        ImmutableList.<ListenableFuture<?>>of(immediateFailedFuture(inputException),
+                                              immediateFuture("hi")));
+
+    String message = wrapException(t, currentCall, lightweightState()).getMessage();
+
+    assertThat(message, containsString("failing input"));
+  }
+
+  private TraverseState lightweightState() {
+    return new TraverseState(MoreExecutors.sameThreadExecutor(), true, true, null, null);
+  }
+
   private List<ListenableFuture<?>> asFutures(String... values) {
     return Lists.transform(Arrays.asList(values), new Function<String, ListenableFuture<?>>() {
       @Nullable
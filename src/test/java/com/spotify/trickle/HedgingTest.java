@@ -0,0 +1,311 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Fallbacks.always;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgingTest {
+  Input<String> input;
+  List<SettableFuture<String>> calls;
+  Func1<String, String> pending;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    calls = new CopyOnWriteArrayList<SettableFuture<String>>();
+    pending = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        SettableFuture<String> call = SettableFuture.create();
+        calls.add(call);
+        return call;
+      }
+    };
+  }
+
+  @Test
+  public void shouldUseHedgeIfItSucceedsFirst() throws Exception {
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(pending).with(input).hedge(hedging);
+
+    ListenableFuture<String> result = graph.bind(input, "a").run();
+    awaitCalls(2);
+    calls.get(1).set("hedge");
+
+    assertThat(result.get(), equalTo("hedge"));
+    assertThat(calls.get(0).isCancelled(), is(true));
+    assertThat(hedging.calls(), equalTo(1L));
+    assertThat(hedging.hedged(), equalTo(1L));
+    assertThat(hedging.wins(), equalTo(1L));
+  }
+
+  @Test
+  public void shouldNotMakeHedgeOnTimerThread() throws Exception {
+    final List<String> threads = new CopyOnWriteArrayList<String>();
+    Func1<String, String> recordThread = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        threads.add(Thread.currentThread().getName());
+        return pending.run(arg);
+      }
+    };
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(recordThread).with(input).hedge(hedging);
+
+    graph.bind(input, "a").run();
+    awaitCalls(2);
+
+    assertThat(threads.get(1).matches("trickle-timer-\\d+"), is(false));
+  }
+
+  @Test
+  public void shouldMakeHedgeOnExecutorOfRun() throws Exception {
+    final List<String> threads = new CopyOnWriteArrayList<String>();
+    Func1<String, String> recordThread = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        threads.add(Thread.currentThread().getName());
+        return pending.run(arg);
+      }
+    };
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(recordThread).with(input).hedge(hedging);
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("run-executor-%d").build());
+
+    try {
+      graph.bind(input, "a").run(executor);
+      awaitCalls(2);
+
+      assertThat(threads.get(1), equalTo("run-executor-0"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldCancelHedgeIfFirstCallSucceedsFirst() throws Exception {
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(pending).with(input).hedge(hedging);
+
+    ListenableFuture<String> result = graph.bind(input, "a").run();
+    awaitCalls(2);
+    calls.get(0).set("first");
+
+    assertThat(result.get(), equalTo("first"));
+    assertThat(calls.get(1).isCancelled(), is(true));
+    assertThat(hedging.hedged(), equalTo(1L));
+    assertThat(hedging.wins(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldNotHedgeCallsThatCompleteInTime() throws Exception {
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(pending).with(input).hedge(hedging);
+
+    ListenableFuture<String> result = graph.bind(input, "a").run();
+    calls.get(0).set("first");
+    Thread.sleep(50);
+
+    assertThat(result.get(), equalTo("first"));
+    assertThat(calls.size(), equalTo(1));
+    assertThat(hedging.hedged(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldWaitForHedgeIfFirstCallFailsAfterHedging() throws Exception {
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(pending).with(input).hedge(hedging);
+
+    ListenableFuture<String> result = graph.bind(input, "a").run();
+    awaitCalls(2);
+    calls.get(0).setException(new RuntimeException("expected"));
+
+    assertThat(result.isDone(), is(false));
+
+    calls.get(1).set("hedge");
+
+    assertThat(result.get(), equalTo("hedge"));
+  }
+
+  @Test
+  public void shouldFailIfBothCallsFail() throws Exception {
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(pending).with(input).hedge(hedging);
+
+    ListenableFuture<String> result = graph.bind(input, "a").run();
+    awaitCalls(2);
+    calls.get(0).setException(new RuntimeException("first"));
+    calls.get(1).setException(new RuntimeException("hedge"));
+
+    try {
+      result.get();
+      fail("expected exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getCause().getMessage(), equalTo("hedge"));
+    }
+  }
+
+  @Test
+  public void shouldFailWithoutHedgingIfFirstCallFailsBeforeDelay() throws Exception {
+    Hedging hedging = Hedging.after(1, TimeUnit.HOURS, 1.0);
+    Graph<String> graph = call(pending).with(input).hedge(hedging).fallback(always("fallback"));
+
+    ListenableFuture<String> result = graph.bind(input, "a").run();
+    calls.get(0).setException(new RuntimeException("expected"));
+
+    assertThat(result.get(), equalTo("fallback"));
+    assertThat(hedging.hedged(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldLimitHedgesToMaxRatio() throws Exception {
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 0.5);
+    Graph<String> graph = call(pending).with(input).hedge(hedging);
+
+    for (int i = 0; i < 4; i++) {
+      graph.bind(input, "a").run();
+    }
+    awaitCalls(6);
+    Thread.sleep(50);
+
+    assertThat(calls.size(), equalTo(6));
+    assertThat(hedging.hedged(), equalTo(2L));
+  }
+
+  @Test
+  public void shouldCancelBothCallsWhenRunIsCancelled() throws Exception {
+    Hedging hedging = Hedging.after(10, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(pending).with(input).hedge(hedging);
+
+    ListenableFuture<String> result = graph.bind(input, "a").run();
+    awaitCalls(2);
+    result.cancel(false);
+
+    assertThat(calls.get(0).isCancelled(), is(true));
+    assertThat(calls.get(1).isCancelled(), is(true));
+  }
+
+  @Test
+  public void shouldHedgeAtPercentileOfObservedLatencies() throws Exception {
+    Hedging hedging = Hedging.atPercentile(95, 1, TimeUnit.HOURS);
+    Func1<String, String> fast = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFuture(arg);
+      }
+    };
+    Graph<String> graph = call(fast).with(input).hedge(hedging);
+
+    assertThat(hedging.delay(TimeUnit.HOURS), equalTo(1L));
+
+    for (int i = 0; i < Hedging.WINDOW; i++) {
+      graph.bind(input, "a").run().get();
+    }
+
+    assertTrue(hedging.delay(TimeUnit.MILLISECONDS) < 100);
+  }
+
+  @Test
+  public void shouldCountLatenciesOfFailedCalls() throws Exception {
+    Hedging hedging = Hedging.atPercentile(95, 1, TimeUnit.HOURS);
+    Func1<String, String> failing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFailedFuture(new RuntimeException("expected"));
+      }
+    };
+    Graph<String> graph = call(failing).with(input).hedge(hedging).fallback(always("fallback"));
+
+    for (int i = 0; i < Hedging.WINDOW; i++) {
+      graph.bind(input, "a").run().get();
+    }
+
+    assertTrue(hedging.delay(TimeUnit.MILLISECONDS) < 100);
+  }
+
+  @Test
+  public void shouldCountFirstCallsThatLoseToHedgesAsAtLeastTheirElapsedTime() throws Exception {
+    final Thread runThread = Thread.currentThread();
+    Func1<String, String> slowFirstCall = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        // first calls are made from the thread starting the run, hedges from another one
+        return Thread.currentThread() == runThread
+               ? pending.run(arg)
+               : immediateFuture(arg);
+      }
+    };
+    Hedging hedging = Hedging.atPercentile(50, 5, TimeUnit.MILLISECONDS, 1.0);
+    Graph<String> graph = call(slowFirstCall).with(input).hedge(hedging);
+
+    for (int i = 0; i < Hedging.WINDOW; i++) {
+      assertThat(graph.bind(input, "a").run().get(), equalTo("a"));
+    }
+
+    // the latency of the last call is recorded once it has been cancelled, after the result
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (hedging.delay(TimeUnit.NANOSECONDS) == TimeUnit.MILLISECONDS.toNanos(5)) {
+      assertTrue("timed out waiting for the delay to be updated", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+
+    // hedges complete at once, but the calls they win over have taken at least the delay
+    assertTrue(hedging.delay(TimeUnit.MILLISECONDS) >= 5);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectRatioAboveOne() throws Exception {
+    Hedging.after(1, TimeUnit.MILLISECONDS, 2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectPercentileOfHundred() throws Exception {
+    Hedging.atPercentile(100, 1, TimeUnit.MILLISECONDS);
+  }
+
+  private void awaitCalls(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+
+    while (calls.size() < count) {
+      assertTrue("timed out waiting for " + count + " calls", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Fallbacks.always;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class NodeCacheTest {
+  Input<String> input;
+  Input<String> other;
+  AtomicInteger upstreamCalls;
+  AtomicInteger cachedCalls;
+  Func1<String, String> upstream;
+  Func1<String, String> expensive;
+  Func2<String, String, String> concat;
+  NodeCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    other = Input.named("other");
+    upstreamCalls = new AtomicInteger();
+    cachedCalls = new AtomicInteger();
+
+    upstream = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        upstreamCalls.incrementAndGet();
+        return immediateFuture(arg + "-");
+      }
+    };
+    expensive = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        cachedCalls.incrementAndGet();
+        return immediateFuture(arg + "!");
+      }
+    };
+    concat = new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg1, String arg2) {
+        return immediateFuture(arg1 + arg2);
+      }
+    };
+
+    cache = NodeCache.maximumSize(100);
+  }
+
+  @Test
+  public void shouldSkipCachedNodeAndItsDependenciesOnHit() throws Exception {
+    Graph<String> cached = call(expensive).with(call(upstream).with(input)).cached(cache);
+    Graph<String> root = call(concat).with(cached, other);
+
+    assertThat(root.bind(input, "a").bind(other, "1").run().get(), equalTo("a-!1"));
+    assertThat(root.bind(input, "a").bind(other, "2").run().get(), equalTo("a-!2"));
+
+    assertThat(upstreamCalls.get(), equalTo(1));
+    assertThat(cachedCalls.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldInvokeNodeForNewInputValues() throws Exception {
+    Graph<String> graph = call(expensive).with(input).cached(cache);
+
+    assertThat(graph.bind(input, "a").run().get(), equalTo("a!"));
+    assertThat(graph.bind(input, "b").run().get(), equalTo("b!"));
+    assertThat(graph.bind(input, "a").run().get(), equalTo("a!"));
+
+    assertThat(cachedCalls.get(), equalTo(2));
+    assertThat(cache.stats().hitCount(), equalTo(1L));
+    assertThat(cache.stats().missCount(), equalTo(2L));
+  }
+
+  @Test
+  public void shouldShareCachedResultsOfNodeBetweenGraphs() throws Exception {
+    Graph<String> cached = call(concat).with(input, other).cached(cache);
+    // uses the inputs in the opposite order of the cached node, so they get other slots
+    Graph<String> outer = call(concat).with(call(upstream).with(other), cached);
+
+    assertThat(cached.bind(input, "1").bind(other, "2").run().get(), equalTo("12"));
+    assertThat(outer.bind(input, "2").bind(other, "1").run().get(), equalTo("1-21"));
+    assertThat(outer.bind(input, "1").bind(other, "2").run().get(), equalTo("2-12"));
+
+    assertThat(cache.stats().hitCount(), equalTo(1L));
+    assertThat(cache.stats().missCount(), equalTo(2L));
+  }
+
+  @Test
+  public void shouldNotCacheFallbackValues() throws Exception {
+    Func1<String, String> failing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        cachedCalls.incrementAndGet();
+        throw new RuntimeException("expected");
+      }
+    };
+    Graph<String> graph = call(failing).with(input).fallback(always("fallback")).cached(cache);
+
+    assertThat(graph.bind(input, "a").run().get(), equalTo("fallback"));
+    assertThat(graph.bind(input, "a").run().get(), equalTo("fallback"));
+
+    assertThat(cachedCalls.get(), equalTo(2));
+    assertThat(cache.size(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldCacheResultsThatCompleteLater() throws Exception {
+    final SettableFuture<String> result = SettableFuture.create();
+    Func1<String, String> slow = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        cachedCalls.incrementAndGet();
+        return result;
+      }
+    };
+    Graph<String> graph = call(slow).with(input).cached(cache);
+
+    ListenableFuture<String> first = graph.bind(input, "a").run();
+    result.set("done");
+
+    assertThat(first.get(), equalTo("done"));
+    assertThat(graph.bind(input, "a").run().get(), equalTo("done"));
+    assertThat(cachedCalls.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldBypassCacheForIncompleteInputFutures() throws Exception {
+    Graph<String> graph = call(expensive).with(input).cached(cache);
+
+    SettableFuture<String> pending = SettableFuture.create();
+    ListenableFuture<String> future = graph.bind(input, pending).run();
+    pending.set("a");
+
+    assertThat(future.get(), equalTo("a!"));
+    assertThat(graph.bind(input, immediateFuture("a")).run().get(), equalTo("a!"));
+    assertThat(cachedCalls.get(), equalTo(2));
+    assertThat(graph.bind(input, immediateFuture("a")).run().get(), equalTo("a!"));
+    assertThat(cachedCalls.get(), equalTo(2));
+  }
+
+  @Test
+  public void shouldUseCacheInBatchRuns() throws Exception {
+    Graph<String> graph = call(expensive).with(input).cached(cache);
+
+    graph.bind(input, "a").run().get();
+
+    assertThat(graph.runBatch(ImmutableList.of(ImmutableMap.<Input<?>, Object>of(input, "a"),
+                                               ImmutableMap.<Input<?>, Object>of(input, "b"),
+                                               ImmutableMap.<Input<?>, Object>of(input, "b"))).get(),
+               equalTo((List<String>) ImmutableList.of("a!", "b!", "b!")));
+    assertThat(cachedCalls.get(), equalTo(2));
+  }
+}
@@ -25,9 +25,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import static com.google.common.util.concurrent.Futures.immediateFuture;
@@ -59,8 +57,7 @@ public class NodeExecutionFallbackTest {
     when(graphBuilder.getFallback())
         .thenReturn(Optional.<AsyncFunction<Throwable, String>>absent());
 
-    Map<Input<?>, Object> emptyMap = Collections.emptyMap();
-    traverseState = new TraverseState(emptyMap, MoreExecutors.sameThreadExecutor(), true);
+    traverseState = new TraverseState(MoreExecutors.sameThreadExecutor(), true);
 
     List<? extends NodeInfo> currentNodeParameters = ImmutableList.of();
 
@@ -70,7 +67,7 @@ public class NodeExecutionFallbackTest {
     currentCall = new TraverseState.FutureCallInformation(currentNodeInfo, currentNodeValues);
     currentCallInfo = new CallInfo(currentNodeInfo, NO_PARAMS);
 
-    fallback = new NodeExecutionFallback<String>(graphBuilder, currentCall, traverseState);
+    fallback = new NodeExecutionFallback<String>(graphBuilder, currentCall, traverseState, null);
   }
 
   @Test
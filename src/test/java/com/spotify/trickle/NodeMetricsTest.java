@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.spotify.trickle.Fallbacks.always;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class NodeMetricsTest {
+  Input<String> input;
+  Func1<String, String> func;
+  NodeMetrics metrics;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    func = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFuture(arg + "!");
+      }
+    };
+    metrics = new NodeMetrics();
+  }
+
+  @Test
+  public void shouldCountInvocationsPerNodeName() throws Exception {
+    Graph<String> first = call(func).with(input).named("first");
+    Graph<String> second = call(func).with(first).named("second");
+
+    for (int i = 0; i < 3; i++) {
+      second.bind(input, "hi").listener(metrics).run().get();
+    }
+
+    Map<String, NodeMetrics.Snapshot> snapshot = metrics.snapshot();
+
+    assertThat(snapshot.get("first").invocations(), equalTo(3L));
+    assertThat(snapshot.get("second").invocations(), equalTo(3L));
+    assertThat(snapshot.get("second").executionTime().count(), equalTo(3L));
+    assertThat(snapshot.get("second").inputWaitTime().count(), equalTo(3L));
+    assertThat(snapshot.get("second").failures(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldCountFailuresAndFallbacks() throws Exception {
+    Func1<String, String> failing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFailedFuture(new RuntimeException("expected"));
+      }
+    };
+    Graph<String> graph = call(failing).with(input).named("node").fallback(always("fallback"));
+
+    graph.bind(input, "hi").listener(metrics).run().get();
+    graph.bind(input, "ho").listener(metrics).run().get();
+
+    NodeMetrics.Snapshot snapshot = metrics.snapshot().get("node");
+
+    assertThat(snapshot.invocations(), equalTo(2L));
+    assertThat(snapshot.failures(), equalTo(2L));
+    assertThat(snapshot.fallbacks(), equalTo(2L));
+    assertThat(snapshot.executionTime().count(), equalTo(2L));
+  }
+
+  @Test
+  public void shouldMeasureExecutionTime() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Func1<String, String> slow = new Func1<String, String>() {
+        @Override
+        public ListenableFuture<String> run(String arg) {
+          try {
+            Thread.sleep(20);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return immediateFuture(arg);
+        }
+      };
+
+      call(slow).with(input).named("slow").bind(input, "hi").listener(metrics)
+          .run(executor).get();
+
+      NodeMetrics.Latencies latencies = metrics.snapshot().get("slow").executionTime();
+
+      assertTrue(latencies.maxNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+      assertTrue(latencies.totalNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+      assertThat(latencies.percentileNanos(50), equalTo(latencies.maxNanos()));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldResetWhenSnapshotting() throws Exception {
+    Graph<String> graph = call(func).with(input).named("node");
+
+    graph.bind(input, "hi").listener(metrics).run().get();
+
+    assertThat(metrics.snapshotAndReset().get("node").invocations(), equalTo(1L));
+    assertThat(metrics.snapshot().get("node").invocations(), equalTo(0L));
+    assertThat(metrics.snapshot().get("node").executionTime().count(), equalTo(0L));
+
+    graph.bind(input, "hi").listener(metrics).run().get();
+
+    assertThat(metrics.snapshot().get("node").invocations(), equalTo(1L));
+  }
+
+  @Test
+  public void shouldReportConcurrencyOfNodesSharingBulkhead() throws Exception {
+    final List<SettableFuture<String>> calls = Lists.newArrayList();
+    Func1<String, String> pending = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        SettableFuture<String> call = SettableFuture.create();
+        calls.add(call);
+        return call;
+      }
+    };
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, 1);
+    Graph<String> first = call(pending).with(input).named("first").bulkhead(bulkhead);
+    Graph<String> second = call(pending).with(input).named("second").bulkhead(bulkhead)
+        .fallback(always("rejected"));
+
+    first.bind(input, "a").listener(metrics).run();
+    second.bind(input, "b").listener(metrics).run();
+    second.bind(input, "c").listener(metrics).run();
+
+    Map<String, NodeMetrics.Snapshot> snapshot = metrics.snapshotAndReset();
+
+    assertThat(snapshot.get("first").inFlight(), equalTo(1L));
+    assertThat(snapshot.get("first").queued(), equalTo(0L));
+    assertThat(snapshot.get("second").inFlight(), equalTo(0L));
+    assertThat(snapshot.get("second").queued(), equalTo(1L));
+    assertThat(snapshot.get("second").rejected(), equalTo(1L));
+
+    calls.get(0).set("done");
+    snapshot = metrics.snapshot();
+
+    assertThat(snapshot.get("first").inFlight(), equalTo(0L));
+    assertThat(snapshot.get("second").inFlight(), equalTo(1L));
+    assertThat(snapshot.get("second").queued(), equalTo(0L));
+    assertThat(snapshot.get("second").rejected(), equalTo(0L));
+
+    calls.get(1).set("done");
+
+    assertThat(metrics.snapshot().get("second").inFlight(), equalTo(0L));
+  }
+
+  @Test
+  public void shouldNotCountCancelledQueuedCallsAsQueued() throws Exception {
+    Bulkhead bulkhead = Bulkhead.maxConcurrent(1, 1);
+    Func1<String, String> never = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return SettableFuture.create();
+      }
+    };
+    Graph<String> graph = call(never).with(input).named("node").bulkhead(bulkhead);
+
+    ListenableFuture<String> first = graph.bind(input, "a").listener(metrics).run();
+    ListenableFuture<String> second = graph.bind(input, "b").listener(metrics).run();
+
+    assertThat(metrics.snapshot().get("node").queued(), equalTo(1L));
+
+    second.cancel(false);
+    first.cancel(false);
+
+    assertThat(metrics.snapshot().get("node").queued(), equalTo(0L));
+    assertThat(metrics.snapshot().get("node").inFlight(), equalTo(0L));
+    assertThat(bulkhead.queued(), equalTo(0));
+  }
+
+  @Test
+  public void shouldComputePercentilesWithBoundedError() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+
+    NodeMetrics.Latencies latencies = histogram.snapshot();
+
+    assertThat(latencies.count(), equalTo(1000L));
+    assertThat(latencies.totalNanos(), equalTo(500500000L));
+    assertWithinEighth(latencies.percentileNanos(50), 500000);
+    assertWithinEighth(latencies.percentileNanos(99), 990000);
+    assertWithinEighth(latencies.maxNanos(), 1000000);
+  }
+
+  @Test
+  public void shouldPlaceValuesInBucketsThatContainThem() throws Exception {
+    long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, 1L << 37, Long.MAX_VALUE};
+
+    for (long value : values) {
+      int index = LatencyHistogram.bucketIndex(value);
+
+      assertTrue(index >= 0 && index < LatencyHistogram.BUCKETS);
+      if (index < LatencyHistogram.BUCKETS - 1) {
+        assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+      }
+      if (index > 0) {
+        assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+      }
+    }
+  }
+
+  private static void assertWithinEighth(long actual, long expected) {
+    assertTrue(actual + " should be close to " + expected,
+               Math.abs(actual - expected) <= expected / 8);
+  }
+}
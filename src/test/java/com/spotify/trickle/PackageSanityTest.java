@@ -25,6 +25,7 @@ import org.junit.Before;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class PackageSanityTest extends AbstractPackageSanityTests {
 
@@ -80,8 +81,14 @@ public class PackageSanityTest extends AbstractPackageSanityTests {
 
     setDefault(Graph.class, graphBuilder);
     setDefault(GraphBuilder.class, graphBuilder);
-    setDefault(TraverseState.class, TraverseState.empty(MoreExecutors.sameThreadExecutor(), false));
+    setDefault(TraverseState.class, new TraverseState(MoreExecutors.sameThreadExecutor(), false));
     setDefault(TraverseState.FutureCallInformation.class, NO_INFO);
+    final ExecutionListener listener = new ExecutionListener() { };
+    setDefault(ExecutionListener.class, listener);
+    setDefault(NodeExecution.class, new NodeExecution(nodeInfo, listener));
+    setDefault(Bulkhead.class, Bulkhead.maxConcurrent(1));
+    setDefault(RetryPolicy.class, RetryPolicy.maxAttempts(1));
+    setDefault(Hedging.class, Hedging.after(1, TimeUnit.MILLISECONDS));
     setDefault(CallInfo.class,
                new CallInfo(graphBuilder, Collections.<ParameterValue<?>>emptyList()));
     setDistinctValues(ParameterValue.class,
@@ -91,6 +98,9 @@ public class PackageSanityTest extends AbstractPackageSanityTests {
     // test classes we don't need to worry about
     ignoreClasses(Predicates.<Class<?>>equalTo(Util.class));
     ignoreClasses(Predicates.<Class<?>>equalTo(FakeNodeInfo.class));
+    // listeners inherit no-op methods that don't check their arguments; they are only ever
+    // called by the graph, with non-null arguments
+    ignoreClasses(Predicates.<Class<?>>assignableFrom(ExecutionListener.class));
 
     super.setUp();
   }
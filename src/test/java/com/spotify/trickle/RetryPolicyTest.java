@@ -0,0 +1,263 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+  static final RetryPolicy IMMEDIATE =
+      RetryPolicy.maxAttempts(3).backoff(0, 0, TimeUnit.MILLISECONDS);
+
+  Input<String> input;
+  AtomicInteger calls;
+  List<Throwable> fallbackCauses;
+  AsyncFunction<Throwable, String> fallback;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    calls = new AtomicInteger();
+    fallbackCauses = Lists.newArrayList();
+    fallback = new AsyncFunction<Throwable, String>() {
+      @Override
+      public ListenableFuture<String> apply(Throwable input) {
+        fallbackCauses.add(input);
+        return immediateFuture("fallback");
+      }
+    };
+  }
+
+  @Test
+  public void shouldRetryUntilNodeSucceeds() throws Exception {
+    Graph<String> graph = call(failingTimes(2)).with(input).retry(IMMEDIATE);
+
+    assertThat(graph.bind(input, "hi").run().get(), equalTo("hi!"));
+    assertThat(calls.get(), equalTo(3));
+  }
+
+  @Test
+  public void shouldRetryNodesThatThrow() throws Exception {
+    Func1<String, String> throwing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        if (calls.incrementAndGet() == 1) {
+          throw new IllegalStateException("expected");
+        }
+        return immediateFuture(arg);
+      }
+    };
+
+    Graph<String> graph = call(throwing).with(input).retry(IMMEDIATE);
+
+    assertThat(graph.bind(input, "hi").run().get(), equalTo("hi"));
+    assertThat(calls.get(), equalTo(2));
+  }
+
+  @Test
+  public void shouldFallBackWithLastFailureAfterMaxAttempts() throws Exception {
+    Graph<String> graph = call(failingTimes(10)).with(input).retry(IMMEDIATE).fallback(fallback);
+
+    assertThat(graph.bind(input, "hi").run().get(), equalTo("fallback"));
+    assertThat(calls.get(), equalTo(3));
+    assertThat(fallbackCauses.size(), equalTo(1));
+    assertThat(fallbackCauses.get(0).getMessage(), equalTo("failure 3"));
+  }
+
+  @Test
+  public void shouldNotRetryFailuresThatArentRetryable() throws Exception {
+    RetryPolicy policy = IMMEDIATE.retryOn(Predicates.instanceOf(IOException.class));
+    Graph<String> graph = call(failingTimes(10)).with(input).retry(policy).fallback(fallback);
+
+    assertThat(graph.bind(input, "hi").run().get(), equalTo("fallback"));
+    assertThat(calls.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldNotRetryFailedInputs() throws Exception {
+    Graph<String> graph = call(failingTimes(0)).with(input).retry(IMMEDIATE).fallback(fallback);
+
+    ListenableFuture<String> result =
+        graph.bind(input, Futures.<String>immediateFailedFuture(new IOException("expected"))).run();
+
+    assertThat(result.get(), equalTo("fallback"));
+    assertThat(calls.get(), equalTo(0));
+  }
+
+  @Test
+  public void shouldRetryAfterBackoffWithoutBlocking() throws Exception {
+    RetryPolicy policy = RetryPolicy.maxAttempts(2).backoff(50, 50, TimeUnit.MILLISECONDS)
+        .jitter(0);
+    Graph<String> graph = call(failingTimes(1)).with(input).retry(policy);
+
+    long start = System.nanoTime();
+    ListenableFuture<String> result = graph.bind(input, "hi").run();
+
+    assertThat(result.isDone(), is(false));
+    assertThat(calls.get(), equalTo(1));
+
+    assertThat(result.get(1, TimeUnit.SECONDS), equalTo("hi!"));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45));
+    assertThat(calls.get(), equalTo(2));
+  }
+
+  @Test
+  public void shouldNotRetryOnTimerThread() throws Exception {
+    final List<String> threads = new CopyOnWriteArrayList<String>();
+    Func1<String, String> recordThread = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        threads.add(Thread.currentThread().getName());
+        return calls.incrementAndGet() == 1
+               ? Futures.<String>immediateFailedFuture(new IOException("expected"))
+               : immediateFuture(arg);
+      }
+    };
+    RetryPolicy policy = RetryPolicy.maxAttempts(2).backoff(10, 10, TimeUnit.MILLISECONDS);
+    Graph<String> graph = call(recordThread).with(input).retry(policy);
+
+    assertThat(graph.bind(input, "hi").run().get(1, TimeUnit.SECONDS), equalTo("hi"));
+    assertThat(threads.get(1).matches("trickle-timer-\\d+"), is(false));
+  }
+
+  @Test
+  public void shouldLimitRetriesToRunBudget() throws Exception {
+    RetryPolicy policy = RetryPolicy.maxAttempts(5).backoff(0, 0, TimeUnit.MILLISECONDS)
+        .runBudget(3);
+    Graph<String> left = call(failingTimes(10)).with(input).retry(policy).fallback(fallback);
+    Graph<String> right = call(failingTimes(10)).with(input).retry(policy).fallback(fallback);
+    Graph<String> both = call(concat()).with(left, right);
+
+    assertThat(both.bind(input, "hi").run().get(), equalTo("fallbackfallback"));
+    // one call each, plus the three retries of the budget
+    assertThat(calls.get(), equalTo(5));
+
+    both.bind(input, "hi").run().get();
+
+    assertThat(calls.get(), equalTo(10));
+  }
+
+  @Test
+  public void shouldNotRetryOnceRunIsCancelled() throws Exception {
+    RetryPolicy policy = RetryPolicy.maxAttempts(2).backoff(50, 50, TimeUnit.MILLISECONDS)
+        .jitter(0);
+    Graph<String> graph = call(failingTimes(1)).with(input).retry(policy);
+
+    ListenableFuture<String> result = graph.bind(input, "hi").run();
+    result.cancel(false);
+    Thread.sleep(100);
+
+    assertThat(calls.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldNotRetryBeyondDeadline() throws Exception {
+    RetryPolicy policy = RetryPolicy.maxAttempts(2).backoff(1, 1, TimeUnit.HOURS);
+    Graph<String> graph = call(failingTimes(1)).with(input).retry(policy).fallback(fallback);
+
+    ListenableFuture<String> result =
+        graph.bind(input, "hi").run(sameThreadExecutor(), 20, TimeUnit.MILLISECONDS);
+
+    assertThat(result.get(1, TimeUnit.SECONDS), equalTo("fallback"));
+    assertThat(fallbackCauses.get(0), is(instanceOf(TimeoutException.class)));
+    assertThat(calls.get(), equalTo(1));
+  }
+
+  @Test
+  public void shouldDoubleBackoffUpToMax() throws Exception {
+    RetryPolicy policy = RetryPolicy.maxAttempts(10).backoff(10, 100, TimeUnit.NANOSECONDS)
+        .jitter(0);
+
+    assertThat(policy.delayNanos(1), equalTo(10L));
+    assertThat(policy.delayNanos(2), equalTo(20L));
+    assertThat(policy.delayNanos(4), equalTo(80L));
+    assertThat(policy.delayNanos(5), equalTo(100L));
+    assertThat(policy.delayNanos(9), equalTo(100L));
+  }
+
+  @Test
+  public void shouldReduceBackoffByJitter() throws Exception {
+    RetryPolicy policy = RetryPolicy.maxAttempts(10).backoff(100, 100, TimeUnit.NANOSECONDS)
+        .jitter(0.5);
+
+    assertThat(policy.delayNanos(1, 0.0), equalTo(100L));
+    assertThat(policy.delayNanos(1, 1.0), equalTo(50L));
+  }
+
+  @Test
+  public void shouldNotOverflowHugeMaxBackoff() throws Exception {
+    RetryPolicy policy = RetryPolicy.maxAttempts(100).backoff(1, Long.MAX_VALUE, TimeUnit.DAYS)
+        .jitter(0);
+
+    assertThat(policy.delayNanos(99), equalTo(Long.MAX_VALUE));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectNonPositiveMaxAttempts() throws Exception {
+    RetryPolicy.maxAttempts(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectJitterAboveOne() throws Exception {
+    RetryPolicy.maxAttempts(1).jitter(1.5);
+  }
+
+  private Func1<String, String> failingTimes(final int failures) {
+    return new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        int call = calls.incrementAndGet();
+        if (call <= failures) {
+          return immediateFailedFuture(new RuntimeException("failure " + call));
+        }
+        return immediateFuture(arg + "!");
+      }
+    };
+  }
+
+  private static Func2<String, String, String> concat() {
+    return new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg1, String arg2) {
+        return immediateFuture(arg1 + arg2);
+      }
+    };
+  }
+}
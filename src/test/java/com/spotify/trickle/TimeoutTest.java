@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.TypeSafeMatcher;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static com.spotify.trickle.Fallbacks.always;
+import static com.spotify.trickle.Trickle.call;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TimeoutTest {
+  Input<String> input;
+  SettableFuture<String> never;
+  Func1<String, String> slow;
+  Func1<String, String> fast;
+  Func2<String, String, String> concat;
+
+  @Before
+  public void setUp() throws Exception {
+    input = Input.named("in");
+    never = SettableFuture.create();
+
+    slow = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return never;
+      }
+    };
+    fast = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFuture(arg + "!");
+      }
+    };
+    concat = new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg1, String arg2) {
+        return immediateFuture(arg1 + arg2);
+      }
+    };
+  }
+
+  @Test
+  public void shouldUseFallbackWhenNodeTimesOut() throws Exception {
+    Graph<String> graph = call(slow).with(input)
+        .timeout(10, TimeUnit.MILLISECONDS)
+        .fallback(always("fallback"));
+
+    assertThat(graph.bind(input, "hi").run().get(5, TimeUnit.SECONDS), equalTo("fallback"));
+  }
+
+  @Test
+  public void shouldFailWithTimeoutExceptionWhenNodeWithoutFallbackTimesOut() throws Exception {
+    Graph<String> graph = call(slow).with(input).timeout(10, TimeUnit.MILLISECONDS);
+
+    try {
+      graph.bind(input, "hi").run().get(5, TimeUnit.SECONDS);
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), is(instanceOf(GraphExecutionException.class)));
+      assertThat(e.getCause().getCause(), is(instanceOf(TimeoutException.class)));
+    }
+  }
+
+  @Test
+  public void shouldCancelNodeThatTimesOut() throws Exception {
+    Graph<String> graph = call(slow).with(input)
+        .timeout(10, TimeUnit.MILLISECONDS)
+        .fallback(always("fallback"));
+
+    graph.bind(input, "hi").run().get(5, TimeUnit.SECONDS);
+
+    // the node is cancelled once its timeout has been reported, which may be after the fallback
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (!never.isCancelled() && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+
+    assertThat(never.isCancelled(), is(true));
+  }
+
+  @Test
+  public void shouldNotRunFallbackOfTimedOutNodeOnTimerThread() throws Exception {
+    Graph<String> graph = call(slow).with(input)
+        .timeout(10, TimeUnit.MILLISECONDS)
+        .fallback(threadName());
+
+    assertThat(graph.bind(input, "hi").run().get(5, TimeUnit.SECONDS), not(isTimerThread()));
+  }
+
+  @Test
+  public void shouldRunFallbackOfTimedOutNodeOnExecutorOfRun() throws Exception {
+    Graph<String> graph = call(slow).with(input)
+        .timeout(10, TimeUnit.MILLISECONDS)
+        .fallback(threadName());
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("run-executor-%d").build());
+
+    try {
+      assertThat(graph.bind(input, "hi").run(executor).get(5, TimeUnit.SECONDS),
+                 equalTo("run-executor-0"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldNotTimeOutNodeThatCompletesInTime() throws Exception {
+    final SettableFuture<String> result = SettableFuture.create();
+    Func1<String, String> completing = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return result;
+      }
+    };
+
+    Graph<String> graph = call(completing).with(input).timeout(1, TimeUnit.SECONDS);
+    ListenableFuture<String> future = graph.bind(input, "hi").run();
+    result.set("done");
+
+    assertThat(future.get(), equalTo("done"));
+  }
+
+  @Test
+  public void shouldReturnDegradedResultWhenRunDeadlineExpires() throws Exception {
+    Graph<String> slowNode = call(slow).with(input).fallback(always("degraded"));
+    Graph<String> graph = call(concat).with(call(fast).with(input), slowNode);
+
+    ListenableFuture<String> future =
+        graph.bind(input, "hi").run(sameThreadExecutor(), 10, TimeUnit.MILLISECONDS);
+
+    assertThat(future.get(5, TimeUnit.SECONDS), equalTo("hi!degraded"));
+  }
+
+  @Test
+  public void shouldCancelNodeInProgressWhenRunDeadlineExpires() throws Exception {
+    Graph<String> graph = call(slow).with(input).fallback(always("degraded"));
+
+    ListenableFuture<String> future =
+        graph.bind(input, "hi").run(sameThreadExecutor(), 10, TimeUnit.MILLISECONDS);
+
+    assertThat(future.get(5, TimeUnit.SECONDS), equalTo("degraded"));
+    assertThat(never.isCancelled(), is(true));
+  }
+
+  @Test
+  public void shouldNotRunFallbacksOnTimerThreadWhenRunDeadlineExpires() throws Exception {
+    Graph<String> graph = call(slow).with(input).fallback(threadName());
+
+    ListenableFuture<String> future =
+        graph.bind(input, "hi").run(sameThreadExecutor(), 100, TimeUnit.MILLISECONDS);
+
+    assertThat(future.get(5, TimeUnit.SECONDS), not(isTimerThread()));
+  }
+
+  @Test
+  public void shouldTimeOutNodesWaitingForInputsWhenRunDeadlineExpires() throws Exception {
+    Graph<String> graph = call(fast).with(input).fallback(always("degraded"));
+
+    ListenableFuture<String> future =
+        graph.bind(input, never).run(sameThreadExecutor(), 10, TimeUnit.MILLISECONDS);
+
+    assertThat(future.get(5, TimeUnit.SECONDS), equalTo("degraded"));
+  }
+
+  @Test
+  public void shouldNotAffectRunsCompletingBeforeDeadline() throws Exception {
+    Graph<String> graph = call(fast).with(input);
+
+    assertThat(graph.bind(input, "hi").run(sameThreadExecutor(), 1, TimeUnit.SECONDS).get(),
+               equalTo("hi!"));
+  }
+
+  private static AsyncFunction<Throwable, String> threadName() {
+    return new AsyncFunction<Throwable, String>() {
+      @Override
+      public ListenableFuture<String> apply(Throwable input) {
+        return immediateFuture(Thread.currentThread().getName());
+      }
+    };
+  }
+
+  private static Matcher<String> isTimerThread() {
+    return new TypeSafeMatcher<String>() {
+      @Override
+      protected boolean matchesSafely(String threadName) {
+        return threadName.matches("trickle-timer-\\d+");
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("the timer thread");
+      }
+    };
+  }
+}
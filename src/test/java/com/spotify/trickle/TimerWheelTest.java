@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.trickle;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TimerWheelTest {
+  TimerWheel timer;
+
+  @Before
+  public void setUp() throws Exception {
+    timer = new TimerWheel(new ThreadFactoryBuilder().setDaemon(true).build(),
+                           1, TimeUnit.MILLISECONDS, 8);
+  }
+
+  @Test
+  public void shouldRunTaskAfterDelay() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long start = System.nanoTime();
+
+    timer.schedule(countDown(latch), 20, TimeUnit.MILLISECONDS);
+
+    assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20), is(true));
+  }
+
+  @Test
+  public void shouldRunTasksWithDelaysLongerThanOneRevolution() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(2);
+
+    timer.schedule(countDown(latch), 30, TimeUnit.MILLISECONDS);
+    timer.schedule(countDown(latch), 3, TimeUnit.MILLISECONDS);
+
+    assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void shouldRunTasksScheduledAfterBeingIdle() throws Exception {
+    final CountDownLatch first = new CountDownLatch(1);
+    timer.schedule(countDown(first), 1, TimeUnit.MILLISECONDS);
+    assertThat(first.await(5, TimeUnit.SECONDS), is(true));
+
+    Thread.sleep(20);
+
+    final CountDownLatch second = new CountDownLatch(1);
+    timer.schedule(countDown(second), 1, TimeUnit.MILLISECONDS);
+    assertThat(second.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void shouldNotRunCancelledTask() throws Exception {
+    final AtomicBoolean ran = new AtomicBoolean();
+    final CountDownLatch later = new CountDownLatch(1);
+
+    TimerWheel.Timeout timeout = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        ran.set(true);
+      }
+    }, 50, TimeUnit.MILLISECONDS);
+
+    assertThat(timeout.cancel(), is(true));
+
+    timer.schedule(countDown(later), 100, TimeUnit.MILLISECONDS);
+    assertThat(later.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(ran.get(), is(false));
+  }
+
+  @Test
+  public void shouldKeepRunningAfterTaskThrows() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        throw new RuntimeException("expected");
+      }
+    }, 1, TimeUnit.MILLISECONDS);
+    timer.schedule(countDown(latch), 5, TimeUnit.MILLISECONDS);
+
+    assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+}
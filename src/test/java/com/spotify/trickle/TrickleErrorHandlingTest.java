@@ -18,6 +18,8 @@ package com.spotify.trickle;
 
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -34,6 +36,8 @@ import org.junit.rules.ExpectedException;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.annotation.Nullable;
 
@@ -184,6 +188,82 @@ public class TrickleErrorHandlingTest {
     verifyCallInfos(g, ImmutableSet.<ComparableCallInfo>of());
   }
 
+  @Test
+  public void shouldIncludeCalledNodesInDebugInfoWhenRunOnExecutor() throws Exception {
+    RuntimeException expected = new RuntimeException("expected");
+    Graph<String> g = call(failingFunction(expected)).with(setupDebugInfoGraph()).named("failure")
+        .bind(debugInfoInput, "fail me").debug(true);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      g.run(executor).get();
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(((GraphExecutionException) e.getCause()).getCalls().size(), equalTo(3));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldCollectDebugInfoForEveryRunWhenSamplingEveryRun() throws Exception {
+    RuntimeException expected = new RuntimeException("expected");
+    Graph<String> g = call(failingFunction(expected)).with(setupDebugInfoGraph()).named("failure")
+        .bind(debugInfoInput, "fail me").debugEvery(1);
+
+    verifyCallInfos(g, expectedCallInfos(g, debugInfoReport));
+  }
+
+  @Test
+  public void shouldCollectDebugInfoForSampleOfRuns() throws Exception {
+    RuntimeException expected = new RuntimeException("expected");
+    Graph<String> g = call(failingFunction(expected)).with(setupDebugInfoGraph()).named("failure")
+        .bind(debugInfoInput, "fail me").debugEvery(4);
+
+    int sampled = 0;
+    for (int i = 0; i < 400; i++) {
+      try {
+        g.run().get();
+        fail("expected an exception");
+      } catch (ExecutionException e) {
+        if (!((GraphExecutionException) e.getCause()).getCalls().isEmpty()) {
+          sampled++;
+        }
+      }
+    }
+
+    // the expected number is 100; the probability of being outside these bounds is negligible
+    assertThat(sampled > 40 && sampled < 160, is(true));
+  }
+
+  @Test
+  public void shouldRejectNonPositiveDebugSampling() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+
+    setupDebugInfoGraph().debugEvery(0);
+  }
+
+  @Test
+  public void shouldReportFailingNodeWithLightweightExceptions() throws Exception {
+    RuntimeException expected = new RuntimeException("expected");
+    Graph<String> g =
+        call(failingFunction(expected)).with(setupDebugInfoGraph()).named("the node that fails")
+            .bind(debugInfoInput, "fail me").debug(true).lightweightExceptions(true);
+
+    try {
+      g.run().get();
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      GraphExecutionException graphExecutionException = (GraphExecutionException) e.getCause();
+
+      assertThat(graphExecutionException.getStackTrace().length, equalTo(0));
+      assertThat(graphExecutionException.getCause(), equalTo((Throwable) expected));
+      assertThat(graphExecutionException.getMessage(), CoreMatchers.containsString(
+          "the node that fails"));
+      assertThat(graphExecutionException.getCalls().size(), equalTo(3));
+    }
+  }
+
   @Test
   public void shouldNotBlockOnUnterminatedInputFuture() throws Exception {
     Input<String> nonTerminating = Input.named("nonTerminating");
@@ -208,6 +288,67 @@ public class TrickleErrorHandlingTest {
     g.bind(failing, failFuture).bind(nonTerminating, nonFuture).run().get();
   }
 
+  @Test
+  public void shouldWrapFailureOfBoundInputFuture() throws Exception {
+    Input<String> failing = Input.named("failing");
+    RuntimeException expected = new RuntimeException("expected");
+
+    Func1<String, String> func = new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(@Nullable String arg) {
+        return immediateFuture(arg);
+      }
+    };
+
+    Graph<String> g = call(func).with(call(func).with(failing)).named("the last node");
+
+    try {
+      g.bind(failing, Futures.<String>immediateFailedFuture(expected)).run().get();
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(GraphExecutionException.class));
+      assertThat(e.getCause().getCause(), is((Throwable) expected));
+    }
+  }
+
+  @Test
+  public void shouldOnlyReportCallsOfFailedRunInBatch() throws Exception {
+    Func0<String> constant = new Func0<String>() {
+      @Override
+      public ListenableFuture<String> run() {
+        return immediateFuture("!");
+      }
+    };
+    Func2<String, String, String> failOnB = new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(@Nullable String arg1, @Nullable String arg2) {
+        return "b".equals(arg1)
+               ? Futures.<String>immediateFailedFuture(new RuntimeException("expected"))
+               : immediateFuture(arg1 + arg2);
+      }
+    };
+
+    Graph<String> g = call(failOnB).with(debugInfoInput, call(constant).named("constant"))
+        .named("failure").debug(true);
+
+    try {
+      g.runBatch(ImmutableList.of(ImmutableMap.<Input<?>, Object>of(debugInfoInput, "a"),
+                                  ImmutableMap.<Input<?>, Object>of(debugInfoInput, "b"))).get();
+      fail("expected an exception");
+    } catch (ExecutionException e) {
+      GraphExecutionException graphExecutionException = (GraphExecutionException) e.getCause();
+
+      // the constant node is invoked once for the batch, and recorded for both runs
+      assertThat(comparableCallInfos(graphExecutionException.getCalls()), equalTo(
+          (Set<ComparableCallInfo>) ImmutableSet.of(
+              new ComparableCallInfo("constant", Lists.<String>newArrayList(),
+                                     Lists.<String>newArrayList()),
+              new ComparableCallInfo("failure",
+                                     newArrayList(debugInfoInput.getName(), "constant"),
+                                     newArrayList("b", "!")))));
+    }
+  }
+
   private Graph<String> setupDebugInfoGraph() {
     Func1<String, Integer> func1 = new Func1<String, Integer>() {
       @Override
@@ -267,28 +408,28 @@ public class TrickleErrorHandlingTest {
       // class cast exceptions here are OK; not getting a GEE at this stage is a bug
       GraphExecutionException graphExecutionException = (GraphExecutionException) e.getCause();
 
-      List<CallInfo> calls = graphExecutionException.getCalls();
-
-      Set<ComparableCallInfo>
-          actual =
-          Sets.newHashSet(Lists.transform(calls, new Function<CallInfo, ComparableCallInfo>() {
-            @Nullable
-            @Override
-            public ComparableCallInfo apply(@Nullable CallInfo input) {
-              List<String> parameterNames = extractParameterNames(input.getParameterValues());
-              List<String> parameterValues = extractParameterValues(input.getParameterValues());
-
-              return new ComparableCallInfo(input.getNodeInfo().name(),
-                                            parameterNames,
-                                            parameterValues);
-            }
-          }));
+      Set<ComparableCallInfo> actual = comparableCallInfos(graphExecutionException.getCalls());
 
       assertThat(actual, equalTo(expectedCallInfos));
 
     }
   }
 
+  private Set<ComparableCallInfo> comparableCallInfos(List<CallInfo> calls) {
+    return Sets.newHashSet(Lists.transform(calls, new Function<CallInfo, ComparableCallInfo>() {
+      @Nullable
+      @Override
+      public ComparableCallInfo apply(@Nullable CallInfo input) {
+        List<String> parameterNames = extractParameterNames(input.getParameterValues());
+        List<String> parameterValues = extractParameterValues(input.getParameterValues());
+
+        return new ComparableCallInfo(input.getNodeInfo().name(),
+                                      parameterNames,
+                                      parameterValues);
+      }
+    }));
+  }
+
   private List<String> extractParameterValues(List<ParameterValue<?>> parameterValues) {
     return Lists.transform(parameterValues,
                            new Function<ParameterValue<?>, String>() {
@@ -17,7 +17,9 @@
 package com.spotify.trickle;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -566,5 +568,82 @@ public class TrickleTest {
     assertThat(future.get(), equalTo(9));
   }
 
+  @Test
+  public void shouldRunGraphForEachBindingInBatch() throws Exception {
+    Func2<String, String, String> node = new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg1, String arg2) {
+        return immediateFuture(arg1 + " " + arg2);
+      }
+    };
+
+    Input<String> greeting = Input.named("greeting");
+    Input<String> name = Input.named("name");
+
+    Graph<String> g = call(node).with(greeting, name).bind(greeting, "hello");
+
+    List<String> result = g.runBatch(ImmutableList.of(
+        ImmutableMap.<Input<?>, Object>of(name, "petter"),
+        ImmutableMap.<Input<?>, Object>of(name, immediateFuture("rouz")))).get();
+
+    assertThat(result, equalTo((List<String>) ImmutableList.of("hello petter", "hello rouz")));
+  }
+
+  @Test
+  public void shouldInvokeNodesOnceForIdenticalInputsInBatch() throws Exception {
+    final AtomicInteger greetCounter = new AtomicInteger(0);
+    final AtomicInteger configCounter = new AtomicInteger(0);
+
+    Func0<String> config = new Func0<String>() {
+      @Override
+      public ListenableFuture<String> run() {
+        configCounter.incrementAndGet();
+        return immediateFuture("!");
+      }
+    };
+    Func2<String, String, String> greet = new Func2<String, String, String>() {
+      @Override
+      public ListenableFuture<String> run(String name, String suffix) {
+        greetCounter.incrementAndGet();
+        return immediateFuture("hello " + name + suffix);
+      }
+    };
+    Func2<String, Integer, String> repeat = new Func2<String, Integer, String>() {
+      @Override
+      public ListenableFuture<String> run(String greeting, Integer count) {
+        return immediateFuture(Strings.repeat(greeting, count));
+      }
+    };
+
+    Input<String> name = Input.named("name");
+    Input<Integer> count = Input.named("count");
+
+    Graph<String> greeting = call(greet).with(name, call(config));
+    Graph<String> g = call(repeat).with(greeting, count);
+
+    List<String> result = g.runBatch(ImmutableList.of(
+        ImmutableMap.<Input<?>, Object>of(name, "a", count, 1),
+        ImmutableMap.<Input<?>, Object>of(name, "a", count, 2),
+        ImmutableMap.<Input<?>, Object>of(name, "b", count, 1)), executorService).get();
+
+    assertThat(result, equalTo((List<String>) ImmutableList.of("hello a!", "hello a!hello a!", "hello b!")));
+    assertThat(configCounter.get(), equalTo(1));
+    assertThat(greetCounter.get(), equalTo(2));
+  }
 
+  @Test
+  public void shouldFailBatchForDuplicateBinding() throws Exception {
+    Input<String> input = Input.named("in");
+    Graph<String> g = call(new Func1<String, String>() {
+      @Override
+      public ListenableFuture<String> run(String arg) {
+        return immediateFuture(arg);
+      }
+    }).with(input).bind(input, "bound");
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Duplicate binding for input");
+
+    g.runBatch(ImmutableList.of(ImmutableMap.<Input<?>, Object>of(input, "again")));
+  }
 }